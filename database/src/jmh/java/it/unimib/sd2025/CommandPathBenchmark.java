@@ -0,0 +1,103 @@
+package it.unimib.sd2025;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Costo per comando del percorso comune ai due server: dai byte della richiesta ai byte della risposta,
+ * cioè parsing, esecuzione sul database e codifica della risposta in un buffer riusato.
+ * Non comprende la lettura e la scrittura sul socket.
+ *
+ * Si esegue con `mvn -Pjmh compile exec:exec` (solo questo benchmark, con il profiler `gc` che
+ * riporta i byte allocati per comando in `gc.alloc.rate.norm`).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandPathBenchmark {
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("benchmark");
+    private final ByteBuffer response = ByteBuffer.allocate(4096);
+
+    private final byte[] get = line("GET user");
+    private final byte[] set = line("SET user Mario Rossi");
+    private final byte[] geth = line("GETH RSSMRA80A01B138X name");
+    private final byte[] getl = line("GETL RSSMRA80A01B138X.vouchersIds");
+    private final ByteBuffer binaryGet = ByteBuffer.wrap(binary("GET", "user"));
+
+    @Setup
+    public void setUp() {
+        Database db = Database.getInstance();
+        db.set("user", "Mario Rossi");
+        LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+        fields.put("name", "Mario");
+        fields.put("surname", "Rossi");
+        db.seth("RSSMRA80A01B138X", fields);
+        for (int i = 0; i < 10; i++) {
+            db.addl("RSSMRA80A01B138X.vouchersIds", String.valueOf(i));
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer textGet() {
+        return text(get);
+    }
+
+    @Benchmark
+    public ByteBuffer textSet() {
+        return text(set);
+    }
+
+    @Benchmark
+    public ByteBuffer textGeth() {
+        return text(geth);
+    }
+
+    @Benchmark
+    public ByteBuffer textGetl() {
+        return text(getl);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryGet() throws BinaryProtocol.ProtocolException {
+        binaryGet.rewind();
+        Reply reply = processor.process(session, BinaryProtocol.parseCommand(binaryGet));
+        response.clear();
+        reply.writeBinary(response);
+        return response;
+    }
+
+    private ByteBuffer text(byte[] line) {
+        Reply reply = processor.process(session, line, 0, line.length);
+        response.clear();
+        reply.writeText(response);
+        return response;
+    }
+
+    private static byte[] line(String line) {
+        return line.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] binary(String... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryProtocol.writeCommand(out, args);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,97 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import javax.management.ObjectName;
+
+/**
+ * Memoria occupata dal database con i dati di N utenti sintetici, nelle due modalità di `db.storage`
+ * (vedi la sezione "Memoria" di TCP.md).
+ *
+ * Genera un file nel formato di initialData.txt con, per ogni utente, l'hash dell'utente con 5 campi,
+ * la lista `vouchersIds` e 2 hash dei buoni con 4 campi, più la lista `fiscalCodes`; lo carica con
+ * BulkLoader come all'avvio e stampa il totale di GC.class_histogram (lo stesso di
+ * `jcmd <pid> GC.class_histogram`, che conta solo gli oggetti raggiungibili) e le classi che occupano di più.
+ * I valori sono generati con un seme fisso, quindi ogni esecuzione carica gli stessi dati.
+ *
+ * Si esegue, per ogni modalità, con
+ *
+ *     mvn -Pjmh compile exec:exec -Djmh.main=it.unimib.sd2025.MemoryFootprint -Djmh.jvmArgs=-Xmx4g \
+ *         -Djmh.args="1000000 heap"
+ */
+public class MemoryFootprint {
+    private static final String[] TYPES = { "libri", "cinema", "musica", "sport" };
+    private static final int[] VALUES = { 5, 10, 20, 50 };
+    private static final int TOP_CLASSES = 10;
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        String storage = args.length > 1 ? args[1] : "heap";
+        // Va impostata prima di usare CompactStorage, che la legge una volta sola.
+        System.setProperty("db.storage", storage);
+
+        Path file = Files.createTempFile("memory-footprint", ".txt");
+        try {
+            generate(file, users);
+            Database db = Database.getInstance();
+            new BulkLoader(db, Runtime.getRuntime().availableProcessors()).load(file);
+
+            String histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                new Object[] { null }, new String[] { String[].class.getName() });
+            String[] lines = histogram.split("\n");
+            System.out.println("users=" + users + " storage=" + storage);
+            // Intestazione, classi più grandi e totale (ultima riga: "Total <oggetti> <byte>").
+            for (int i = 0; i < lines.length; i++) {
+                if (i < TOP_CLASSES + 2 || i == lines.length - 1) {
+                    System.out.println(lines[i]);
+                }
+            }
+            Reference.reachabilityFence(db);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Scrive i dati di `users` utenti nel formato di initialData.txt.
+     */
+    private static void generate(Path file, int users) throws IOException {
+        Random random = new Random(1);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1)) {
+            out.write("+fiscalCodes");
+            for (int i = 0; i < users; i++) {
+                out.write(' ');
+                out.write(fiscalCode(i));
+            }
+            out.write('\n');
+            for (int i = 0; i < users; i++) {
+                String user = fiscalCode(i);
+                out.write("#" + user + " name Nome" + i + "\n");
+                out.write("#" + user + " surname Cognome" + i + "\n");
+                out.write("#" + user + " email utente" + i + "@example.com\n");
+                out.write("#" + user + " balance " + random.nextInt(501) + "\n");
+                out.write("#" + user + " nextVoucherId 2\n");
+                out.write("+" + user + ".vouchersIds 0 1\n");
+                for (int voucher = 0; voucher < 2; voucher++) {
+                    String key = "#" + user + ".voucher" + voucher;
+                    out.write(key + " value " + VALUES[random.nextInt(VALUES.length)] + "\n");
+                    out.write(key + " consumed " + random.nextBoolean() + "\n");
+                    out.write(key + " type " + TYPES[random.nextInt(TYPES.length)] + "\n");
+                    out.write(key + " createdDateTime 22/06/2025 10:" + (10 + random.nextInt(50)) + ":25\n");
+                }
+            }
+        }
+    }
+
+    private static String fiscalCode(int i) {
+        return String.format("U%015d", i);
+    }
+}
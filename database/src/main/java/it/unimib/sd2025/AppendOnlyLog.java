@@ -0,0 +1,486 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Log su disco delle scritture (append-only file).
+ * Ogni scrittura applicata al database viene aggiunta in fondo al file come
+ * comando del protocollo binario (vedi BinaryProtocol), così i valori possono
+ * contenere qualsiasi byte; all'avvio il file viene rieseguito per
+ * ricostruire il contenuto del database. Le scritture atomiche su più chiavi
+ * (MSET e transazioni) sono salvate in un blocco MULTI/EXEC, quindi un blocco
+ * troncato da un crash viene scartato per intero.
+ *
+ * I comandi vengono accumulati in memoria e scritti su disco da un thread dedicato.
+ * Tutte le scritture arrivate mentre il thread stava scrivendo finiscono nella
+ * scrittura successiva e condividono la stessa fsync (group commit).
+ *
+ * Quando il file supera una soglia viene riscritto in background con il solo
+ * contenuto attuale del database.
+ */
+public class AppendOnlyLog implements WriteListener {
+    /**
+     * Politica di sincronizzazione del file con il disco.
+     */
+    public enum FsyncPolicy {
+        /** Fsync prima di rispondere a ogni scrittura. */
+        ALWAYS,
+        /** Fsync al massimo una volta al secondo. */
+        EVERYSEC,
+        /** Nessuna fsync: decide il sistema operativo quando scrivere. */
+        NO
+    }
+
+    private final Database db;
+    private final Path path;
+    /**
+     * Intestazione del file, seguita dai comandi nel formato del protocollo binario.
+     */
+    private static final byte[] HEADER = "SDBAOF1\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final FsyncPolicy fsyncPolicy;
+    private final long rewriteMinSize;
+
+    private FileChannel channel;
+
+    // Protegge i comandi in attesa e i contatori. È un ReentrantLock e non il monitor dell'oggetto
+    // perché i client (virtual thread) lo usano per attendere la fsync: con synchronized e wait()
+    // ogni client in attesa terrebbe occupato il suo carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Segnalata quando arrivano comandi da scrivere.
+    private final Condition commandsAdded = lock.newCondition();
+    // Segnalata quando i comandi sono stati scritti o sincronizzati con il disco.
+    private final Condition progress = lock.newCondition();
+
+    // Comandi non ancora scritti su disco.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    // Numero di blocchi aggiunti, scritti e sincronizzati con il disco.
+    private long appended = 0;
+    private long written = 0;
+    private long synced = 0;
+
+    // Durante una riscrittura contiene le scritture arrivate dopo la copia del database.
+    private ByteArrayOutputStream rewriteBuffer;
+    private volatile boolean rewriteRunning = false;
+    private long sizeAfterRewrite = 0;
+
+    // Serializza le operazioni sul file tra il thread di scrittura e la riscrittura,
+    // che non sono virtual thread.
+    private final Object fileLock = new Object();
+    // Incrementato a ogni sostituzione del file: i comandi presi prima della
+    // sostituzione sono già nel nuovo file e non vanno riscritti.
+    private long fileGeneration = 0;
+
+    // Ultimo blocco aggiunto da ogni thread, da attendere con la politica ALWAYS.
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * @param db             Database di cui salvare le scritture.
+     * @param path           Percorso del file.
+     * @param fsyncPolicy    Politica di sincronizzazione con il disco.
+     * @param rewriteMinSize Dimensione in byte oltre la quale il file viene riscritto.
+     */
+    public AppendOnlyLog(Database db, Path path, FsyncPolicy fsyncPolicy, long rewriteMinSize) {
+        this.db = db;
+        this.path = path;
+        this.fsyncPolicy = fsyncPolicy;
+        this.rewriteMinSize = rewriteMinSize;
+    }
+
+    /**
+     * @return true se esiste un log da cui ripristinare il database.
+     */
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * Riesegue i comandi del log sul database.
+     * Va chiamato prima di start(), quando il log non riceve ancora le scritture.
+     * Un ultimo comando incompleto (scrittura interrotta) viene ignorato,
+     * così come una transazione senza EXEC finale. In questi casi il file viene troncato
+     * dopo l'ultimo comando completo fuori da una transazione: altrimenti start() aggiungerebbe
+     * le nuove scritture dopo i byte incompleti, e alla rilettura successiva verrebbero
+     * lette come parte del comando interrotto o accodate alla transazione rimasta aperta.
+     *
+     * @return Il numero di comandi rieseguiti.
+     */
+    public long replay() throws IOException {
+        CommandProcessor processor = new CommandProcessor(false, false);
+        Session session = new Session("aof");
+        long count = 0;
+        // Fine dell'ultimo comando completo fuori da una transazione.
+        long validEnd = HEADER.length;
+        long size;
+
+        try (var counter = new CountingInputStream(
+                 new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 16));
+             var in = new DataInputStream(counter)) {
+            byte[] header = new byte[HEADER.length];
+            if (in.read(header) != HEADER.length || !Arrays.equals(header, HEADER)) {
+                throw new IOException("Unsupported append-only log format: " + path);
+            }
+            try {
+                String[] command;
+                while ((command = BinaryProtocol.readCommand(in)) != null) {
+                    Reply reply = processor.process(session, command);
+                    if (reply.isError()) {
+                        Main.log.warn("aof.replay_error", "command", String.join(" ", command), "reply", reply.toText());
+                    }
+                    count++;
+                    if (!session.inTransaction()) {
+                        validEnd = counter.position;
+                    }
+                }
+            } catch (EOFException e) {
+                Main.log.warn("aof.truncated", "file", path);
+            }
+            size = counter.position;
+        }
+        if (session.inTransaction()) {
+            Main.log.warn("aof.incomplete_transaction", "file", path);
+        }
+        if (validEnd < size) {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(validEnd);
+                file.force(true);
+            }
+            Main.log.warn("aof.repaired", "file", path, "size", validEnd, "removed_bytes", size - validEnd);
+        }
+        return count;
+    }
+
+    /**
+     * Apre il file in append e avvia il thread di scrittura.
+     * Se il file non esiste viene creato con il contenuto attuale del database.
+     */
+    public void start() throws IOException {
+        if (exists()) {
+            // Un log ereditato dall'esecuzione precedente viene compattato appena supera la soglia.
+            sizeAfterRewrite = 0;
+        } else {
+            Path temp = writeSnapshotToTemp(db.snapshot(() -> { }));
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            sizeAfterRewrite = Files.size(path);
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                   StandardOpenOption.APPEND);
+
+        Thread writer = new Thread(this::writeLoop, "aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        Main.log.info("aof.enabled", "file", path, "fsync", fsyncPolicy.name().toLowerCase());
+    }
+
+    @Override
+    public void onWrite(List<String[]> commands) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        if (commands.size() > 1) {
+            BinaryProtocol.writeCommand(block, "MULTI");
+        }
+        for (String[] command : commands) {
+            BinaryProtocol.writeCommand(block, command);
+        }
+        if (commands.size() > 1) {
+            BinaryProtocol.writeCommand(block, "EXEC");
+        }
+
+        byte[] bytes = block.toByteArray();
+        lock.lock();
+        try {
+            pending.writeBytes(bytes);
+            if (rewriteBuffer != null) {
+                rewriteBuffer.writeBytes(bytes);
+            }
+            lastAppended.get()[0] = ++appended;
+            commandsAdded.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void afterWrite() {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS) {
+            return;
+        }
+        long[] last = lastAppended.get();
+        if (last[0] == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (synced < last[0]) {
+                progress.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            lock.unlock();
+        }
+        last[0] = 0;
+    }
+
+    /**
+     * Ciclo del thread di scrittura: prende i comandi accumulati, li scrive
+     * con una sola operazione e, se richiesto dalla politica, fa la fsync.
+     */
+    private void writeLoop() {
+        long lastFsync = System.currentTimeMillis();
+        while (true) {
+            try {
+                byte[] data;
+                long upTo;
+                long generation;
+                lock.lock();
+                try {
+                    while (pending.size() == 0 && !(fsyncPolicy == FsyncPolicy.EVERYSEC && written > synced)) {
+                        commandsAdded.await();
+                    }
+                    if (pending.size() == 0) {
+                        // Con EVERYSEC ci sono dati scritti ma non sincronizzati: si attende
+                        // al massimo un secondo prima della fsync.
+                        commandsAdded.await(1000, TimeUnit.MILLISECONDS);
+                    }
+                    data = pending.toByteArray();
+                    pending.reset();
+                    upTo = appended;
+                    generation = fileGeneration;
+                } finally {
+                    lock.unlock();
+                }
+
+                synchronized (fileLock) {
+                    if (generation != fileGeneration) {
+                        continue;
+                    }
+                    if (data.length > 0) {
+                        ByteBuffer buffer = ByteBuffer.wrap(data);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                    boolean fsync = fsyncPolicy == FsyncPolicy.ALWAYS
+                                    || (fsyncPolicy == FsyncPolicy.EVERYSEC
+                                        && System.currentTimeMillis() - lastFsync >= 1000);
+                    if (fsync) {
+                        channel.force(false);
+                        lastFsync = System.currentTimeMillis();
+                    }
+                    lock.lock();
+                    try {
+                        written = Math.max(written, upTo);
+                        if (fsync || fsyncPolicy == FsyncPolicy.NO) {
+                            synced = Math.max(synced, upTo);
+                        }
+                        progress.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    rewriteIfNeeded();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Main.log.error("aof.write_error", "error", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Avvia la riscrittura in background se il file è cresciuto oltre la soglia
+     * e ad almeno il doppio della dimensione dopo l'ultima riscrittura.
+     */
+    private void rewriteIfNeeded() throws IOException {
+        long size = channel.size();
+        if (rewriteRunning || size < rewriteMinSize || size < 2 * sizeAfterRewrite) {
+            return;
+        }
+        rewriteRunning = true;
+        Thread rewriter = new Thread(this::rewrite, "aof-rewrite");
+        rewriter.setDaemon(true);
+        rewriter.start();
+    }
+
+    /**
+     * Riscrive il log con il contenuto attuale del database.
+     * Le scritture vengono bloccate solo nell'istante della copia (vedi Database.snapshot()):
+     * da quel momento le nuove scritture vengono salvate sia nel log attuale sia in un
+     * buffer, che viene aggiunto in fondo al nuovo file prima di sostituire il vecchio.
+     */
+    private void rewrite() {
+        try {
+            long start = System.currentTimeMillis();
+            Database.Snapshot snapshot = db.snapshot(() -> {
+                lock.lock();
+                try {
+                    rewriteBuffer = new ByteArrayOutputStream();
+                } finally {
+                    lock.unlock();
+                }
+            });
+
+            Path temp = writeSnapshotToTemp(snapshot);
+
+            synchronized (fileLock) {
+                byte[] tail;
+                lock.lock();
+                try {
+                    tail = rewriteBuffer.toByteArray();
+                    rewriteBuffer = null;
+                    // I comandi non ancora scritti sono già nella copia o nel buffer della riscrittura.
+                    pending.reset();
+                    fileGeneration++;
+                } finally {
+                    lock.unlock();
+                }
+                try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                                                                StandardOpenOption.APPEND)) {
+                    tempChannel.write(ByteBuffer.wrap(tail));
+                    tempChannel.force(true);
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                sizeAfterRewrite = channel.size();
+
+                lock.lock();
+                try {
+                    written = appended;
+                    synced = appended;
+                    progress.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            Main.log.info("aof.rewritten", "ms", System.currentTimeMillis() - start, "bytes", sizeAfterRewrite);
+        } catch (IOException e) {
+            Main.log.error("aof.rewrite_error", "error", e.getMessage());
+            lock.lock();
+            try {
+                rewriteBuffer = null;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            rewriteRunning = false;
+        }
+    }
+
+    /**
+     * Scrive in un file temporaneo il contenuto del database (vedi writeSnapshot()).
+     */
+    private Path writeSnapshotToTemp(Database.Snapshot snapshot) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".rewrite");
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file), 1 << 16);
+            out.write(HEADER);
+            writeSnapshot(out, snapshot);
+            out.flush();
+            file.force(true);
+        }
+        return temp;
+    }
+
+    /**
+     * Scrive un comando SET, SETL o SETH per ogni chiave e un PEXPIREAT per ogni scadenza:
+     * rieseguiti su un database vuoto ricostruiscono la copia.
+     * Usato anche per la sincronizzazione iniziale delle repliche (vedi ReplicationSource).
+     */
+    static void writeSnapshot(OutputStream out, Database.Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream command = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> entry : snapshot.strings().entrySet()) {
+            BinaryProtocol.writeCommand(command, "SET", entry.getKey(), entry.getValue());
+            command.writeTo(out);
+            command.reset();
+        }
+        writeArrays(out, command, "SETL", snapshot.lists());
+        writeArrays(out, command, "SETH", snapshot.hashes());
+        for (Map.Entry<String, Long> entry : snapshot.expires().entrySet()) {
+            BinaryProtocol.writeCommand(command, "PEXPIREAT", entry.getKey(), String.valueOf(entry.getValue()));
+            command.writeTo(out);
+            command.reset();
+        }
+    }
+
+    /**
+     * Scrive un comando per ogni chiave con il suo array di valori (liste o hash).
+     */
+    private static void writeArrays(OutputStream out, ByteArrayOutputStream command, String name,
+                                    Map<String, String[]> arrays) throws IOException {
+        for (Map.Entry<String, String[]> entry : arrays.entrySet()) {
+            String[] values = entry.getValue();
+            if (values.length > 0) {
+                String[] args = new String[values.length + 2];
+                args[0] = name;
+                args[1] = entry.getKey();
+                System.arraycopy(values, 0, args, 2, values.length);
+                BinaryProtocol.writeCommand(command, args);
+                command.writeTo(out);
+                command.reset();
+            }
+        }
+    }
+
+    /**
+     * Stream che conta i byte letti, per sapere dove finisce ogni comando nel file.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long position;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            position += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package it.unimib.sd2025;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codifica dei comandi nel protocollo binario.
+ *
+ * Un comando è il numero di argomenti seguito da ogni argomento come lunghezza e byte.
+ * Il primo argomento è il nome del comando. Numeri e lunghezze sono varint: 7 bit per byte,
+ * dal meno significativo, con il bit più alto a 1 se segue un altro byte; così una
+ * lunghezza sotto 128 occupa un solo byte, quanto lo spazio che separa gli argomenti
+ * nel protocollo testuale.
+ * Gli argomenti sono stringhe in cui ogni carattere rappresenta un byte (ISO-8859-1),
+ * quindi possono contenere spazi, a capo e qualsiasi altro byte.
+ * Le risposte sono codificate da Reply.writeBinary().
+ */
+public final class BinaryProtocol {
+    /**
+     * Numero massimo di argomenti di un comando.
+     */
+    public static final int MAX_ARGUMENTS = 1 << 20;
+    /**
+     * Dimensione massima di un comando in byte.
+     */
+    public static final int MAX_COMMAND_SIZE = 64 * 1024 * 1024;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Errore nel formato di un comando: la connessione non si può più
+     * sincronizzare sull'inizio del comando successivo e va chiusa.
+     */
+    public static class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Legge un comando dallo stream.
+     *
+     * @return Gli argomenti del comando, oppure null se lo stream è finito prima di un nuovo comando.
+     * @throws EOFException      Se lo stream finisce a metà di un comando.
+     * @throws ProtocolException Se il comando non è valido.
+     */
+    public static String[] readCommand(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        int count = readVarint(in, first);
+        checkCount(count);
+
+        String[] args = new String[count];
+        long size = varintSize(count);
+        for (int i = 0; i < count; i++) {
+            int length = readVarint(in, in.readUnsignedByte());
+            size += varintSize(length) + (long) length;
+            checkSize(size);
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            args[i] = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return args;
+    }
+
+    /**
+     * Legge un comando da un buffer pronto per la lettura (con array accessibile).
+     * Se il comando è completo la posizione del buffer avanza oltre il comando,
+     * altrimenti resta invariata.
+     *
+     * @return Gli argomenti del comando, oppure null se il buffer non contiene ancora tutto il comando.
+     * @throws ProtocolException Se il comando non è valido.
+     */
+    public static String[] parseCommand(ByteBuffer buffer) throws ProtocolException {
+        byte[] array = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int limit = buffer.arrayOffset() + buffer.limit();
+        int[] position = { start };
+
+        int count = getVarint(array, position, limit);
+        if (count < 0) {
+            return null;
+        }
+        checkCount(count);
+
+        // Prima controlla che il comando sia completo, senza creare stringhe.
+        int[] lengths = new int[count];
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            int length = getVarint(array, position, limit);
+            if (length < 0) {
+                return null;
+            }
+            checkSize((long) position[0] - start + length);
+            if (limit - position[0] < length) {
+                return null;
+            }
+            lengths[i] = length;
+            offsets[i] = position[0];
+            position[0] += length;
+        }
+
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = new String(array, offsets[i], lengths[i], StandardCharsets.ISO_8859_1);
+        }
+        buffer.position(position[0] - buffer.arrayOffset());
+        return args;
+    }
+
+    /**
+     * Scrive un comando nel formato binario.
+     */
+    public static void writeCommand(ByteArrayOutputStream out, String... args) {
+        writeVarint(out, args.length);
+        for (String arg : args) {
+            writeVarint(out, arg.length());
+            out.writeBytes(arg.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * @return Il numero di byte occupati dal varint.
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Legge un varint dallo stream, dato il primo byte già letto.
+     */
+    private static int readVarint(DataInputStream in, int first) throws IOException {
+        int value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 28) {
+                throw new ProtocolException("Invalid length");
+            }
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        if (value < 0) {
+            throw new ProtocolException("Invalid length");
+        }
+        return value;
+    }
+
+    /**
+     * Legge un varint dall'array a partire da position[0] e sposta la posizione dopo il varint.
+     *
+     * @return Il valore, oppure -1 se il varint non è ancora completo.
+     */
+    private static int getVarint(byte[] array, int[] position, int limit) throws ProtocolException {
+        int value = 0;
+        int shift = 0;
+        int i = position[0];
+        while (true) {
+            if (i >= limit) {
+                return -1;
+            }
+            if (shift > 28) {
+                throw new ProtocolException("Invalid length");
+            }
+            int b = array[i++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (value < 0) {
+            throw new ProtocolException("Invalid length");
+        }
+        position[0] = i;
+        return value;
+    }
+
+    private static void checkCount(int count) throws ProtocolException {
+        if (count < 1 || count > MAX_ARGUMENTS) {
+            throw new ProtocolException("Invalid number of arguments: " + count);
+        }
+    }
+
+    private static void checkSize(long commandSize) throws ProtocolException {
+        if (commandSize > MAX_COMMAND_SIZE) {
+            throw new ProtocolException("Command too long");
+        }
+    }
+}
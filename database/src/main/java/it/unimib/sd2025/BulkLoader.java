@@ -0,0 +1,263 @@
+package it.unimib.sd2025;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caricamento parallelo del file dei dati iniziali.
+ *
+ * Il file viene diviso in parti che iniziano e finiscono a capo riga; ogni parte
+ * viene mappata in memoria e letta da un thread diverso, che inserisce i dati
+ * direttamente nelle mappe del database senza lock.
+ * I byte del file vengono salvati così come sono (ISO-8859-1), come quelli ricevuti
+ * dal protocollo binario: un testo UTF-8 resta UTF-8 per i client.
+ * Se una chiave compare più volte in parti diverse del file non è definito quale
+ * valore resti: il file dei dati iniziali non dovrebbe contenere chiavi ripetute.
+ *
+ * Formato del file:
+ * - `-key value` per i valori di tipo stringa
+ * - `+key value1 value2 ...` per i valori di tipo lista
+ * - `#key field value` per un campo di un hash (una riga per campo)
+ */
+public class BulkLoader {
+    /**
+     * Dimensione massima di una parte del file.
+     */
+    private static final long CHUNK_SIZE = 32L << 20;
+
+    private final Database db;
+    private final int threads;
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong linesRead = new AtomicLong();
+
+    /**
+     * @param db      Database in cui caricare i dati.
+     * @param threads Numero di thread che leggono il file.
+     */
+    public BulkLoader(Database db, int threads) {
+        this.db = db;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Carica il file nel database. Va chiamato all'avvio, prima di accettare connessioni.
+     * Ogni secondo stampa quanta parte del file è stata letta.
+     *
+     * @return Il numero di righe lette.
+     */
+    public long load(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<long[]> chunks = split(channel, size);
+
+            var progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "load-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            progress.scheduleAtFixedRate(() -> printProgress(file, size, start), 1, 1, TimeUnit.SECONDS);
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, chunks.size()));
+            try {
+                List<Future<?>> results = new ArrayList<>();
+                for (long[] chunk : chunks) {
+                    results.add(executor.submit(() -> {
+                        loadChunk(channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]));
+                        return null;
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Loading interrupted", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+                progress.shutdownNow();
+            }
+
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            Main.log.info("load.done", "file", file, "lines", linesRead.get(), "mb", String.format("%.1f", size / 1e6),
+                          "seconds", String.format("%.2f", seconds), "threads", Math.min(threads, chunks.size()),
+                          "mb_per_sec", String.format("%.1f", size / 1e6 / seconds),
+                          "lines_per_sec", String.format("%.0f", linesRead.get() / seconds));
+            return linesRead.get();
+        }
+    }
+
+    /**
+     * Divide il file in parti di al massimo CHUNK_SIZE byte (e almeno una per thread),
+     * spostando ogni confine dopo il primo a capo successivo.
+     *
+     * @return Inizio e fine di ogni parte.
+     */
+    private List<long[]> split(FileChannel channel, long size) throws IOException {
+        long target = Math.max(1, Math.min(CHUNK_SIZE, size / threads + 1));
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long begin = 0;
+        while (begin < size) {
+            long end = Math.min(size, begin + target);
+            // Cerca il primo a capo dal confine in poi.
+            while (end < size) {
+                buffer.clear();
+                int read = channel.read(buffer, end);
+                int newline = -1;
+                for (int i = 0; i < read && newline < 0; i++) {
+                    if (buffer.get(i) == '\n') {
+                        newline = i;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += read;
+            }
+            chunks.add(new long[] { begin, end });
+            begin = end;
+        }
+        return chunks;
+    }
+
+    private void loadChunk(MappedByteBuffer chunk) {
+        byte[] line = new byte[256];
+        int length = 0;
+        long lines = 0;
+        int lastReported = 0;
+        while (chunk.hasRemaining()) {
+            byte b = chunk.get();
+            if (b != '\n') {
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = b;
+                if (chunk.hasRemaining()) {
+                    continue;
+                }
+            }
+            loadLine(line, length);
+            length = 0;
+            if (++lines % 65_536 == 0) {
+                bytesRead.addAndGet(chunk.position() - lastReported);
+                linesRead.addAndGet(65_536);
+                lastReported = chunk.position();
+            }
+        }
+        bytesRead.addAndGet(chunk.position() - lastReported);
+        linesRead.addAndGet(lines % 65_536);
+    }
+
+    /**
+     * Inserisce nel database una riga del file.
+     * La riga viene analizzata direttamente sui byte, creando solo le stringhe
+     * di chiave e valori.
+     */
+    private void loadLine(byte[] line, int length) {
+        int begin = 0;
+        int end = length;
+        // Salta spazi iniziali e finali, come String.trim()
+        while (begin < end && (line[begin] & 0xff) <= ' ') {
+            begin++;
+        }
+        while (end > begin && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (begin == end) {
+            return; // Salta le righe vuote
+        }
+
+        if (line[begin] == '-') {
+            // Divide la riga in chiave e valore (stringa) al primo spazio
+            int space = indexOf(line, ' ', begin + 1, end);
+            if (space < 0) {
+                Main.log.warn("load.invalid_line", "type", "string", "line", decode(line, begin, end));
+                return;
+            }
+            db.restore(decodeTrimmed(line, begin + 1, space), decodeTrimmed(line, space + 1, end));
+        } else if (line[begin] == '+') {
+            // Divide la riga in chiave e valori (lista) a ogni spazio
+            int space = indexOf(line, ' ', begin + 1, end);
+            if (space < 0) {
+                Main.log.warn("load.invalid_line", "type", "list", "line", decode(line, begin, end));
+                return;
+            }
+            String key = decodeTrimmed(line, begin + 1, space);
+            List<String> values = new ArrayList<>();
+            int from = space + 1;
+            while (from <= end) {
+                int next = indexOf(line, ' ', from, end);
+                if (next < 0) {
+                    next = end;
+                }
+                values.add(decode(line, from, next));
+                from = next + 1;
+            }
+            db.restoreList(key, values.toArray(new String[0]));
+        } else if (line[begin] == '#') {
+            // Divide la riga in chiave, campo e valore dell'hash ai primi due spazi
+            int space = indexOf(line, ' ', begin + 1, end);
+            int fieldEnd = space < 0 ? -1 : indexOf(line, ' ', space + 1, end);
+            if (fieldEnd < 0) {
+                Main.log.warn("load.invalid_line", "type", "hash", "line", decode(line, begin, end));
+                return;
+            }
+            db.restoreHashField(decodeTrimmed(line, begin + 1, space), decode(line, space + 1, fieldEnd),
+                                decodeTrimmed(line, fieldEnd + 1, end));
+        } else {
+            Main.log.warn("load.invalid_line", "type", "unknown", "line", decode(line, begin, end));
+        }
+    }
+
+    private static int indexOf(byte[] bytes, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String decode(byte[] bytes, int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String decodeTrimmed(byte[] bytes, int from, int to) {
+        while (from < to && (bytes[from] & 0xff) <= ' ') {
+            from++;
+        }
+        while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+            to--;
+        }
+        return decode(bytes, from, to);
+    }
+
+    private void printProgress(Path file, long size, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = bytesRead.get();
+        Main.log.info("load.progress", "file", file,
+                      "percent", String.format("%.0f", size == 0 ? 100.0 : bytes * 100.0 / size),
+                      "mb", String.format("%.1f/%.1f", bytes / 1e6, size / 1e6),
+                      "mb_per_sec", String.format("%.1f", bytes / 1e6 / seconds),
+                      "lines_per_sec", String.format("%.0f", linesRead.get() / seconds));
+    }
+}
@@ -0,0 +1,906 @@
+package it.unimib.sd2025;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Classe che fa il parsing dei comandi del protocollo testuale e li esegue sul database.
+ * È indipendente dal modo in cui vengono gestite le connessioni, quindi viene usata
+ * sia da SocketHandler sia dal server NIO.
+ *
+ * Ogni riga viene trasformata da TextProtocol in un array con il nome e gli argomenti, lo stesso
+ * che arriva già diviso dal protocollo binario, quindi l'esecuzione è comune ai due protocolli.
+ */
+public class CommandProcessor {
+    /**
+     * Comandi che possono essere accodati in una transazione.
+     */
+    private static final Set<String> TRANSACTION_COMMANDS = Set.of(
+        "set", "get", "clear", "setl", "getl", "clearl", "addl", "removel", "mget", "mset", "mgetl",
+        "getrangel", "lenl", "containsl", "seth", "geth", "getallh", "removeh", "clearh", "mgetallh",
+        "incrby", "decrby", "incrbyfloat", "decrbyfloatif", "incrbyh", "incrbyfloath", "decrbyfloatifh",
+        "version", "cas", "cash", "expire", "pexpireat", "setex", "ttl"
+    );
+
+    /**
+     * Comandi condizionali: se uno di questi fallisce in una transazione, i comandi
+     * successivi non vengono eseguiti.
+     */
+    private static final Set<String> CONDITIONAL_COMMANDS = Set.of("decrbyfloatif", "decrbyfloatifh", "cas", "cash");
+
+    /**
+     * Comandi che possono aumentare la memoria occupata: se la memoria è oltre il limite
+     * e non si riesce a liberarne vengono rifiutati (vedi Database.makeRoom()).
+     */
+    private static final Set<String> GROWING_COMMANDS = Set.of(
+        "set", "setl", "addl", "seth", "mset", "incrby", "decrby", "incrbyfloat", "decrbyfloatif",
+        "incrbyh", "incrbyfloath", "decrbyfloatifh", "cas", "cash", "setex"
+    );
+
+    private static final String OUT_OF_MEMORY = "Command not allowed when used memory is over the limit";
+
+    /**
+     * Comandi che possono attendere a lungo in ogni caso: EXEC e MSET prendono i lock di più chiavi,
+     * CLEARPREFIX quelli di tutte le chiavi con il prefisso, SAVE scrive lo snapshot su disco.
+     */
+    private static final Set<String> BLOCKING_COMMANDS = Set.of("exec", "mset", "clearprefix", "save");
+
+    /**
+     * Comandi che modificano il database: una replica li accetta solo dal primario.
+     */
+    private static final Set<String> WRITE_COMMANDS = Set.of(
+        "set", "clear", "setl", "clearl", "addl", "removel", "mset", "seth", "removeh", "clearh",
+        "incrby", "decrby", "incrbyfloat", "decrbyfloatif", "incrbyh", "incrbyfloath", "decrbyfloatifh",
+        "cas", "cash", "expire", "pexpireat", "setex", "clearprefix"
+    );
+
+    private static final String READ_ONLY = "Write commands are not allowed on a replica";
+
+    /**
+     * Comandi ammessi su una connessione iscritta con SUBSCRIBE (oltre a QUIT, gestito dai server).
+     */
+    private static final Set<String> SUBSCRIBER_COMMANDS = Set.of("subscribe", "unsubscribe", "ping");
+
+    /**
+     * Tutti i comandi eseguiti da CommandProcessor, di cui INFO riporta le statistiche.
+     */
+    public static final Set<String> COMMANDS = Set.of(
+        "set", "get", "clear", "setl", "getl", "clearl", "addl", "removel", "mget", "mset", "mgetl",
+        "getrangel", "lenl", "containsl", "seth", "geth", "getallh", "removeh", "clearh", "mgetallh",
+        "incrby", "decrby", "incrbyfloat", "decrbyfloatif", "incrbyh", "incrbyfloath", "decrbyfloatifh",
+        "version", "cas", "cash", "expire", "pexpireat", "setex", "ttl", "scan", "keys", "clearprefix",
+        "multi", "exec", "discard", "watch", "unwatch", "save", "bgsave", "memory", "info", "slowlog", "role",
+        "replicaof", "promote", "protocol", "ping", "subscribe", "unsubscribe"
+    );
+
+    private Database db = Database.getInstance();
+    private final boolean verbose;
+    private final boolean fromClients;
+
+    public CommandProcessor() {
+        this(true, true);
+    }
+
+    /**
+     * @param verbose     Se false i comandi ricevuti non vengono scritti nel log.
+     * @param fromClients Se false i comandi sono scritture già applicate altrove (il log rieseguito
+     *                    all'avvio o le scritture ricevute dal primario): non vengono rifiutate
+     *                    perché il database è una replica o perché la memoria è oltre il limite,
+     *                    e non vengono contati nelle statistiche di INFO.
+     */
+    public CommandProcessor(boolean verbose, boolean fromClients) {
+        this.verbose = verbose;
+        this.fromClients = fromClients;
+    }
+
+    /**
+     * Indica se un comando può tenere occupato a lungo il thread che lo esegue, attendendo lock,
+     * disco o cancellazioni: NioServer non lo esegue sull'event loop, che servirebbe in ritardo
+     * tutte le sue connessioni. Oltre ai BLOCKING_COMMANDS sono le scritture quando il log su disco
+     * attende la fsync prima di rispondere (`db.aof.fsync=always`) e i comandi che possono occupare
+     * memoria quando il limite di memoria cancella chiavi (vedi Database.makeRoom()).
+     * In una transazione i comandi vengono solo accodati, tranne EXEC.
+     *
+     * @param command Il nome del comando in minuscolo.
+     */
+    public static boolean mayBlock(Session session, String command) {
+        if (session.inTransaction()) {
+            return command.equals("exec");
+        }
+        if (BLOCKING_COMMANDS.contains(command)) {
+            return true;
+        }
+        if (WRITE_COMMANDS.contains(command) && Main.AOF_ENABLED && Main.AOF_FSYNC.equalsIgnoreCase("always")) {
+            return true;
+        }
+        return GROWING_COMMANDS.contains(command) && Database.getInstance().isEvicting();
+    }
+
+    /**
+     * Esegue il parsing di un singolo comando del protocollo testuale e lo manda al DB.
+     * La riga viene letta direttamente dai byte ricevuti (vedi TextProtocol).
+     *
+     * @param session La sessione della connessione da cui arriva il comando.
+     * @param line    L'array che contiene la riga ricevuta.
+     * @param start   La posizione del primo byte della riga.
+     * @param end     La posizione dopo l'ultimo byte della riga, escluso il terminatore.
+     * @return La risposta da inviare al client.
+     */
+    public Reply process(Session session, byte[] line, int start, int end) {
+        long parseStart = System.nanoTime();
+        String[] args;
+        try {
+            args = TextProtocol.parse(line, start, end);
+        } catch (IllegalArgumentException e) {
+            logCommand(session, line, start, end);
+            // Un comando non valido annulla la transazione, come un errore di sintassi.
+            if (session.inTransaction()) {
+                session.failTransaction();
+            }
+            if (fromClients) {
+                Main.commandStats.record(TextProtocol.commandName(line, start, end),
+                                         System.nanoTime() - parseStart, true);
+            }
+            return Reply.error(e.getMessage());
+        }
+        // Controlla che la riga contenga solo caratteri ASCII
+        if (args == null) {
+            return Reply.error("Invalid characters in input");
+        }
+        logCommand(session, line, start, end);
+        return execute(session, args);
+    }
+
+    /**
+     * Scrive il comando nel log, se non si è già superato il numero di comandi al secondo
+     * (la riga viene creata solo in quel caso).
+     */
+    private void logCommand(Session session, byte[] line, int start, int end) {
+        if (verbose && Main.log.sampleCommand()) {
+            Main.log.info("command", "client", session.getAddress(),
+                          "args", new String(line, start, end - start, StandardCharsets.ISO_8859_1).trim());
+        }
+    }
+
+    /**
+     * Esegue un comando già diviso negli argomenti, come arriva dal protocollo binario.
+     *
+     * @param session La sessione della connessione da cui arriva il comando.
+     * @param args    Il nome del comando seguito dagli argomenti.
+     * @return La risposta da inviare al client.
+     */
+    public Reply process(Session session, String[] args) {
+        if (verbose && Main.log.sampleCommand()) {
+            Main.log.info("command", "client", session.getAddress(), "args", String.join(" ", args));
+        }
+        return execute(session, args);
+    }
+
+    /**
+     * Esegue un comando e, se arriva da un client, ne registra durata ed esito per INFO
+     * e, se è lento, lo aggiunge allo SLOWLOG. I comandi accodati in una transazione
+     * non vengono registrati: la loro esecuzione fa parte della durata di EXEC.
+     */
+    private Reply execute(Session session, String[] args) {
+        String command = args[0].toLowerCase();
+        if (!fromClients || (session.inTransaction() && TRANSACTION_COMMANDS.contains(command))) {
+            return execute(session, command, args);
+        }
+        long start = System.nanoTime();
+        Reply reply = execute(session, command, args);
+        long nanos = System.nanoTime() - start;
+        Main.commandStats.record(command, nanos, reply.isError());
+        Main.slowLog.record(session.getAddress(), args, nanos);
+        return reply;
+    }
+
+    /**
+     * Esegue un comando gestendo anche quelli delle transazioni (MULTI, EXEC, DISCARD)
+     * e gli altri che dipendono dallo stato della connessione.
+     */
+    private Reply execute(Session session, String command, String[] args) {
+        if (session.getSubscriber() != null && !SUBSCRIBER_COMMANDS.contains(command)) {
+            return Reply.error("Only SUBSCRIBE, UNSUBSCRIBE, PING and QUIT are allowed while subscribed");
+        }
+
+        if (session.inTransaction()) {
+            switch (command) {
+                case "exec":
+                    return exec(session);
+                case "discard":
+                    session.endTransaction();
+                    session.unwatch();
+                    return Reply.ok();
+                case "multi":
+                    return Reply.error("MULTI calls can not be nested");
+                case "watch":
+                    return Reply.error("WATCH inside MULTI is not allowed");
+                default:
+                    // I comandi sconosciuti annullano la transazione, come un errore di sintassi.
+                    if (!TRANSACTION_COMMANDS.contains(command)) {
+                        session.failTransaction();
+                        return Reply.error("Unknown command: " + String.join(" ", args));
+                    }
+                    session.queue(args);
+                    return Reply.status("QUEUED");
+            }
+        }
+
+        switch (command) {
+            case "multi":
+                session.beginTransaction();
+                return Reply.ok();
+            case "exec":
+                return Reply.error("EXEC without MULTI");
+            case "discard":
+                return Reply.error("DISCARD without MULTI");
+            case "save":
+                // Non sono ammessi in una transazione: la copia del database
+                // richiede tutti i lock, mentre EXEC ne tiene già alcuni.
+                return args.length != 1 ? Reply.error("Invalid SAVE command format") : Main.snapshotFile.save();
+            case "bgsave":
+                return args.length != 1 ? Reply.error("Invalid BGSAVE command format")
+                                        : Main.snapshotFile.saveInBackground();
+            case "memory":
+                return args.length != 1 ? Reply.error("Invalid MEMORY command format") : db.memory();
+            case "info":
+                return args.length != 1 ? Reply.error("Invalid INFO command format") : info();
+            case "slowlog":
+                return slowLog(args);
+            case "role":
+                return args.length != 1 ? Reply.error("Invalid ROLE command format") : Main.replication.role();
+            case "replicaof":
+                return replicaOf(args);
+            case "promote":
+                if (args.length != 1) {
+                    return Reply.error("Invalid PROMOTE command format");
+                }
+                return Main.replication.promote() ? Reply.ok() : Reply.error("Not a replica");
+            case "protocol":
+                return protocol(session, args);
+            case "ping":
+                return args.length != 1 ? Reply.error("Invalid PING command format") : Reply.status("PONG");
+            case "subscribe":
+                return subscribe(session, args);
+            case "unsubscribe":
+                return unsubscribe(session, args);
+            case "watch":
+                if (args.length < 2) {
+                    return Reply.error("Invalid WATCH command format");
+                }
+                for (int i = 1; i < args.length; i++) {
+                    session.watch(args[i], db.version(args[i]));
+                }
+                return Reply.ok();
+            case "unwatch":
+                session.unwatch();
+                return Reply.ok();
+            default:
+                if (fromClients && WRITE_COMMANDS.contains(command) && Main.replication.isReplica()) {
+                    return Reply.error(READ_ONLY);
+                }
+                if (fromClients && GROWING_COMMANDS.contains(command) && !db.makeRoom()) {
+                    return Reply.error(OUT_OF_MEMORY);
+                }
+                return execute(args);
+        }
+    }
+
+    /**
+     * Comando INFO: nomi e valori alternati con tempo dall'avvio, numero di chiavi in ogni archivio,
+     * connessioni, ruolo e, per ogni comando ricevuto dai client, chiamate, errori e durate
+     * (vedi CommandStats).
+     */
+    private Reply info() {
+        List<String> values = new ArrayList<>();
+        values.add("uptime_sec");
+        values.add(String.valueOf((System.currentTimeMillis() - Main.startTime) / 1000));
+        values.addAll(db.keyspace());
+        values.add("clients");
+        values.add(String.valueOf(Main.connectionLimiter.getActive()));
+        values.add("clients_queued");
+        values.add(String.valueOf(Main.connectionLimiter.getQueued()));
+        values.add("connections_accepted");
+        values.add(String.valueOf(Main.connectionLimiter.getAccepted()));
+        values.add("subscribers");
+        values.add(String.valueOf(Main.pubSub.subscriberCount()));
+        values.add("role");
+        values.add(Main.replication.isReplica() ? "replica" : "primary");
+        values.add("log_dropped");
+        values.add(String.valueOf(Main.log.getDropped()));
+        values.add("log_sampled_out");
+        values.add(String.valueOf(Main.log.getSampledOut()));
+        values.addAll(Main.commandStats.toValues());
+        return Reply.values(values);
+    }
+
+    /**
+     * Comando SLOWLOG GET [count] | LEN | RESET: restituisce gli ultimi comandi lenti
+     * (al massimo count, default 10), quanti ce ne sono, oppure svuota il registro (vedi SlowLog).
+     */
+    private static Reply slowLog(String[] args) {
+        String subcommand = args.length > 1 ? args[1].toLowerCase() : "";
+        switch (subcommand) {
+            case "get": {
+                int count = args.length == 2 ? 10 : args.length == 3 ? parseCount(args[2]) : -1;
+                return count < 0 ? Reply.error("Invalid SLOWLOG command format") : Main.slowLog.get(count);
+            }
+            case "len":
+                return args.length != 2 ? Reply.error("Invalid SLOWLOG command format")
+                                        : Reply.value(String.valueOf(Main.slowLog.length()));
+            case "reset":
+                if (args.length != 2) {
+                    return Reply.error("Invalid SLOWLOG command format");
+                }
+                Main.slowLog.reset();
+                return Reply.ok();
+            default:
+                return Reply.error("Invalid SLOWLOG command format");
+        }
+    }
+
+    /**
+     * Comando REPLICAOF host port: il database diventa una replica del primario indicato,
+     * che deve accettare le repliche sulla porta indicata (vedi ReplicationSource).
+     * REPLICAOF NO ONE equivale a PROMOTE.
+     */
+    private static Reply replicaOf(String[] args) {
+        if (args.length != 3) {
+            return Reply.error("Invalid REPLICAOF command format");
+        }
+        if (args[1].equalsIgnoreCase("no") && args[2].equalsIgnoreCase("one")) {
+            Main.replication.promote();
+            return Reply.ok();
+        }
+        int port = parseCount(args[2]);
+        if (port <= 0 || port > 65535) {
+            return Reply.error("Invalid port");
+        }
+        Main.replication.replicaOf(args[1], port);
+        return Reply.ok();
+    }
+
+    /**
+     * Comando SUBSCRIBE pattern [pattern ...]: la connessione inizia a ricevere gli eventi
+     * delle chiavi che corrispondono ai pattern (vedi PubSub).
+     * La risposta è il numero di pattern a cui la connessione è iscritta.
+     */
+    private static Reply subscribe(Session session, String[] args) {
+        if (args.length < 2) {
+            return Reply.error("Invalid SUBSCRIBE command format");
+        }
+        if (session.getSubscriber() == null) {
+            session.setSubscriber(Main.pubSub.subscriber());
+        }
+        int count = session.getSubscriber().subscribe(Arrays.asList(args).subList(1, args.length));
+        return Reply.value(String.valueOf(count));
+    }
+
+    /**
+     * Comando UNSUBSCRIBE [pattern ...]: toglie i pattern indicati, tutti se non ne viene indicato nessuno.
+     * Quando non resta nessun pattern la connessione torna ad accettare tutti i comandi.
+     */
+    private static Reply unsubscribe(Session session, String[] args) {
+        PubSub.Subscriber subscriber = session.getSubscriber();
+        if (subscriber == null) {
+            return Reply.value("0");
+        }
+        int count = subscriber.unsubscribe(Arrays.asList(args).subList(1, args.length));
+        if (count == 0) {
+            subscriber.close();
+            session.setSubscriber(null);
+        }
+        return Reply.value(String.valueOf(count));
+    }
+
+    /**
+     * Comando PROTOCOL BINARY|TEXT: sceglie il protocollo dei comandi successivi.
+     * La risposta è inviata ancora con il protocollo del comando.
+     */
+    private static Reply protocol(Session session, String[] args) {
+        if (args.length != 2) {
+            return Reply.error("Invalid PROTOCOL command format");
+        }
+        switch (args[1].toLowerCase()) {
+            case "binary":
+                session.setBinary(true);
+                return Reply.ok();
+            case "text":
+                session.setBinary(false);
+                return Reply.ok();
+            default:
+                return Reply.error("Unknown protocol: " + args[1]);
+        }
+    }
+
+    /**
+     * Esegue i comandi accodati nella transazione tenendo i lock di tutte
+     * le chiavi coinvolte, quindi nessun'altra scrittura può inserirsi tra
+     * un comando e l'altro e le letture nella transazione vedono uno stato consistente.
+     * La risposta contiene la risposta di ogni comando.
+     * Se un comando condizionale fallisce, quelli successivi non vengono eseguiti:
+     * mettendo le condizioni all'inizio la transazione viene applicata tutta o per niente.
+     * Se una chiave osservata con WATCH è cambiata, nessun comando viene eseguito.
+     */
+    private Reply exec(Session session) {
+        boolean failed = session.isTransactionFailed();
+        List<String[]> commands = session.endTransaction();
+        Map<String, Long> watched = new HashMap<>(session.getWatched());
+        session.unwatch();
+        if (failed) {
+            return Reply.error("Transaction discarded because of previous errors");
+        }
+
+        List<String> keys = new ArrayList<>(watched.keySet());
+        boolean writing = false;
+        boolean growing = false;
+        for (String[] command : commands) {
+            keys.addAll(keysOf(command));
+            writing |= WRITE_COMMANDS.contains(command[0].toLowerCase());
+            growing |= GROWING_COMMANDS.contains(command[0].toLowerCase());
+        }
+        if (fromClients && writing && Main.replication.isReplica()) {
+            return Reply.error(READ_ONLY);
+        }
+        // La memoria va liberata prima di prendere i lock delle chiavi della transazione.
+        if (fromClients && growing && !db.makeRoom()) {
+            return Reply.error(OUT_OF_MEMORY);
+        }
+
+        List<Reply> replies = db.atomically(keys, () -> {
+            // I lock delle chiavi osservate sono già presi, quindi non possono
+            // cambiare tra il controllo e l'esecuzione dei comandi.
+            for (Map.Entry<String, Long> entry : watched.entrySet()) {
+                if (db.version(entry.getKey()) != entry.getValue()) {
+                    return null;
+                }
+            }
+            List<Reply> results = new ArrayList<>(commands.size());
+            boolean conditionFailed = false;
+            for (String[] command : commands) {
+                if (conditionFailed) {
+                    results.add(Reply.error("Not executed because a condition failed"));
+                    continue;
+                }
+                Reply result = execute(command);
+                conditionFailed = result.isError() && CONDITIONAL_COMMANDS.contains(command[0].toLowerCase());
+                results.add(result);
+            }
+            return results;
+        });
+        if (replies == null) {
+            return Reply.error("Transaction aborted because a watched key changed");
+        }
+        return Reply.replies(replies);
+    }
+
+    /**
+     * Restituisce le chiavi usate da un comando.
+     */
+    private static List<String> keysOf(String[] args) {
+        String command = args[0].toLowerCase();
+        List<String> keys = new ArrayList<>();
+        if (command.equals("mget") || command.equals("mgetl") || command.equals("mgetallh")
+                || command.equals("version")) {
+            keys.addAll(Arrays.asList(args).subList(1, args.length));
+        } else if (command.equals("mset")) {
+            for (int i = 1; i < args.length; i += 2) {
+                keys.add(args[i]);
+            }
+        } else if (args.length > 1) {
+            keys.add(args[1]);
+        }
+        return keys;
+    }
+
+    /**
+     * @return Il numero, oppure -1 se non è un intero valido.
+     */
+    private static int parseCount(String value) {
+        return isInteger(value) ? Integer.parseInt(value) : -1;
+    }
+
+    /**
+     * @return Il numero, oppure null se non è un intero valido.
+     */
+    private static Long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Il numero, oppure null se non è un numero decimale valido.
+     */
+    private static BigDecimal parseDecimal(String value) {
+        try {
+            return new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isInteger(String value) {
+        try {
+            Integer.parseInt(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Esegue un singolo comando sul database.
+     */
+    private Reply execute(String[] args) {
+        String command = args[0].toLowerCase();
+        switch (command) {
+            case "set":
+                /*
+                 * Comando SET key value
+                 */
+                if (args.length != 3) {
+                    return Reply.error("Invalid SET command format");
+                }
+                return db.set(args[1], args[2]);
+
+            case "get":
+                /*
+                 * Comando GET key
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid GET command format");
+                }
+                return db.get(args[1]);
+
+            case "clear":
+                /*
+                 * Comando CLEAR key
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid CLEAR command format");
+                }
+                return db.clear(args[1]);
+
+            /*
+             * Comandi per le liste
+             */
+            case "setl":
+                /*
+                 * Comando SETL key value1 value2
+                 */
+                if (args.length < 3) {
+                    return Reply.error("Invalid SETL command format");
+                }
+                return db.setl(args[1], Arrays.asList(args).subList(2, args.length));
+
+            case "getl":
+                /*
+                 * Comandi GETL key, GETL key index
+                 */
+                if (args.length == 2) {
+                    return db.getl(args[1]);
+                }
+                if (args.length != 3 || !isInteger(args[2])) {
+                    return Reply.error("Invalid GETL command format");
+                }
+                return db.getl(args[1], Integer.parseInt(args[2]));
+
+            case "getrangel":
+                /*
+                 * Comando GETRANGEL key start stop
+                 */
+                if (args.length != 4 || !isInteger(args[2]) || !isInteger(args[3])) {
+                    return Reply.error("Invalid GETRANGEL command format");
+                }
+                return db.getrangel(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+
+            case "lenl":
+                /*
+                 * Comando LENL key
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid LENL command format");
+                }
+                return db.lenl(args[1]);
+
+            case "containsl":
+                /*
+                 * Comando CONTAINSL key value
+                 */
+                if (args.length != 3) {
+                    return Reply.error("Invalid CONTAINSL command format");
+                }
+                return db.containsl(args[1], args[2]);
+
+            case "clearl":
+                /*
+                 * Comando CLEARL key
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid CLEARL command format");
+                }
+                return db.clearl(args[1]);
+
+            case "addl":
+                /*
+                 * Comando ADDL key value3
+                 */
+                if (args.length != 3) {
+                    return Reply.error("Invalid ADDL command format");
+                }
+                return db.addl(args[1], args[2]);
+
+            case "removel":
+                /*
+                 * Comando REMOVEL key value2
+                 */
+                if (args.length != 3) {
+                    return Reply.error("Invalid REMOVEL command format");
+                }
+                return db.removel(args[1], args[2]);
+
+            /*
+             * Comandi per gli hash
+             */
+            case "seth": {
+                /*
+                 * Comando SETH key field1 value1 field2 value2
+                 */
+                if (args.length < 4 || args.length % 2 != 0) {
+                    return Reply.error("Invalid SETH command format");
+                }
+                LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+                for (int i = 2; i < args.length; i += 2) {
+                    fields.put(args[i], args[i + 1]);
+                }
+                return db.seth(args[1], fields);
+            }
+
+            case "geth":
+                /*
+                 * Comando GETH key field
+                 */
+                if (args.length != 3) {
+                    return Reply.error("Invalid GETH command format");
+                }
+                return db.geth(args[1], args[2]);
+
+            case "getallh":
+                /*
+                 * Comando GETALLH key
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid GETALLH command format");
+                }
+                return db.getallh(args[1]);
+
+            case "removeh":
+                /*
+                 * Comando REMOVEH key field1 field2
+                 */
+                if (args.length < 3) {
+                    return Reply.error("Invalid REMOVEH command format");
+                }
+                return db.removeh(args[1], Arrays.asList(args).subList(2, args.length));
+
+            case "clearh":
+                /*
+                 * Comando CLEARH key
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid CLEARH command format");
+                }
+                return db.clearh(args[1]);
+
+            /*
+             * Comandi numerici
+             */
+            case "incrby":
+            case "decrby": {
+                /*
+                 * Comandi INCRBY key amount, DECRBY key amount
+                 */
+                Long amount = args.length == 3 ? parseLong(args[2]) : null;
+                if (amount == null || (command.equals("decrby") && amount == Long.MIN_VALUE)) {
+                    return Reply.error("Invalid " + command.toUpperCase() + " command format");
+                }
+                return db.incrby(args[1], command.equals("decrby") ? -amount : amount);
+            }
+
+            case "incrbyfloat":
+            case "decrbyfloatif": {
+                /*
+                 * Comandi INCRBYFLOAT key amount, DECRBYFLOATIF key amount
+                 */
+                BigDecimal amount = args.length == 3 ? parseDecimal(args[2]) : null;
+                if (amount == null) {
+                    return Reply.error("Invalid " + command.toUpperCase() + " command format");
+                }
+                return command.equals("incrbyfloat") ? db.incrbyfloat(args[1], amount)
+                                                     : db.decrbyfloatif(args[1], amount);
+            }
+
+            case "incrbyh": {
+                /*
+                 * Comando INCRBYH key field amount
+                 */
+                Long amount = args.length == 4 ? parseLong(args[3]) : null;
+                if (amount == null) {
+                    return Reply.error("Invalid INCRBYH command format");
+                }
+                return db.incrbyh(args[1], args[2], amount);
+            }
+
+            case "incrbyfloath":
+            case "decrbyfloatifh": {
+                /*
+                 * Comandi INCRBYFLOATH key field amount, DECRBYFLOATIFH key field amount
+                 */
+                BigDecimal amount = args.length == 4 ? parseDecimal(args[3]) : null;
+                if (amount == null) {
+                    return Reply.error("Invalid " + command.toUpperCase() + " command format");
+                }
+                return command.equals("incrbyfloath") ? db.incrbyfloath(args[1], args[2], amount)
+                                                      : db.decrbyfloatifh(args[1], args[2], amount);
+            }
+
+            /*
+             * Comandi sulle scadenze delle chiavi
+             */
+            case "expire":
+            case "pexpireat": {
+                /*
+                 * Comandi EXPIRE key seconds, PEXPIREAT key milliseconds
+                 */
+                Long time = args.length == 3 ? parseLong(args[2]) : null;
+                if (time == null) {
+                    return Reply.error("Invalid " + command.toUpperCase() + " command format");
+                }
+                return command.equals("expire") ? db.expire(args[1], time) : db.pexpireat(args[1], time);
+            }
+
+            case "setex": {
+                /*
+                 * Comando SETEX key seconds value
+                 */
+                Long seconds = args.length == 4 ? parseLong(args[2]) : null;
+                if (seconds == null) {
+                    return Reply.error("Invalid SETEX command format");
+                }
+                return db.setex(args[1], seconds, args[3]);
+            }
+
+            case "ttl":
+                /*
+                 * Comando TTL key
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid TTL command format");
+                }
+                return db.ttl(args[1]);
+
+            /*
+             * Comandi sulle versioni delle chiavi
+             */
+            case "version":
+                /*
+                 * Comando VERSION key1 key2 key3
+                 */
+                if (args.length < 2) {
+                    return Reply.error("Invalid VERSION command format");
+                }
+                return db.versions(Arrays.asList(args).subList(1, args.length));
+
+            case "cas": {
+                /*
+                 * Comando CAS key version value
+                 */
+                Long version = args.length == 4 ? parseLong(args[2]) : null;
+                if (version == null) {
+                    return Reply.error("Invalid CAS command format");
+                }
+                return db.cas(args[1], version, args[3]);
+            }
+
+            case "cash": {
+                /*
+                 * Comando CASH key version field1 value1 field2 value2
+                 */
+                Long version = args.length >= 5 && args.length % 2 == 1 ? parseLong(args[2]) : null;
+                if (version == null) {
+                    return Reply.error("Invalid CASH command format");
+                }
+                LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+                for (int i = 3; i < args.length; i += 2) {
+                    fields.put(args[i], args[i + 1]);
+                }
+                return db.cash(args[1], version, fields);
+            }
+
+            /*
+             * Comandi su più chiavi
+             */
+            case "mget":
+                /*
+                 * Comando MGET key1 key2 key3
+                 */
+                if (args.length < 2) {
+                    return Reply.error("Invalid MGET command format");
+                }
+                return db.mget(Arrays.asList(args).subList(1, args.length));
+
+            case "mset": {
+                /*
+                 * Comando MSET key1 value1 key2 value2
+                 */
+                if (args.length < 3 || args.length % 2 == 0) {
+                    return Reply.error("Invalid MSET command format");
+                }
+                LinkedHashMap<String, String> values = new LinkedHashMap<>();
+                for (int i = 1; i < args.length; i += 2) {
+                    values.put(args[i], args[i + 1]);
+                }
+                return db.mset(values);
+            }
+
+            case "mgetl":
+                /*
+                 * Comando MGETL key1 key2 key3
+                 */
+                if (args.length < 2) {
+                    return Reply.error("Invalid MGETL command format");
+                }
+                return db.mgetl(Arrays.asList(args).subList(1, args.length));
+
+            case "mgetallh":
+                /*
+                 * Comando MGETALLH key1 key2 key3
+                 */
+                if (args.length < 2) {
+                    return Reply.error("Invalid MGETALLH command format");
+                }
+                return db.mgetallh(Arrays.asList(args).subList(1, args.length));
+
+            /*
+             * Comandi sui prefissi delle chiavi
+             */
+            case "scan":
+            case "keys": {
+                /*
+                 * Comandi SCAN prefix count [cursor], KEYS prefix count [cursor]
+                 */
+                int count = args.length == 3 || args.length == 4 ? parseCount(args[2]) : -1;
+                if (count <= 0) {
+                    return Reply.error("Invalid " + command.toUpperCase() + " command format");
+                }
+                String cursor = args.length == 4 ? args[3] : null;
+                return command.equals("scan") ? db.scan(args[1], count, cursor) : db.keys(args[1], count, cursor);
+            }
+
+            case "clearprefix":
+                /*
+                 * Comando CLEARPREFIX prefix
+                 */
+                if (args.length != 2) {
+                    return Reply.error("Invalid CLEARPREFIX command format");
+                }
+                return db.clearPrefix(args[1]);
+
+            default:
+                /*
+                 * Comando sconosciuto
+                 */
+                return Reply.error("Unknown command: " + String.join(" ", args));
+        }
+    }
+}
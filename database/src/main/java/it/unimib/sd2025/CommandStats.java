@@ -0,0 +1,103 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistiche dei comandi ricevuti dai client dall'avvio, restituite dal comando INFO:
+ * per ogni comando il numero di chiamate, di errori e l'istogramma delle durate.
+ *
+ * I comandi sono fissati alla creazione, così la mappa non cambia mai e si legge senza
+ * sincronizzazione; i nomi sconosciuti finiscono tutti sotto `unknown`, così un client
+ * che invia comandi a caso non fa crescere la memoria. Gli istogrammi vengono creati
+ * alla prima chiamata del comando, quindi i comandi mai usati non occupano memoria.
+ */
+public class CommandStats {
+    private static final String UNKNOWN = "unknown";
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * Contatori di un comando.
+     */
+    private static class Entry {
+        final LongAdder errors = new LongAdder();
+        volatile LatencyHistogram histogram;
+
+        LatencyHistogram histogram() {
+            LatencyHistogram current = histogram;
+            if (current == null) {
+                synchronized (this) {
+                    current = histogram;
+                    if (current == null) {
+                        current = new LatencyHistogram();
+                        histogram = current;
+                    }
+                }
+            }
+            return current;
+        }
+    }
+
+    /**
+     * @param commands I nomi in minuscolo dei comandi da distinguere.
+     */
+    public CommandStats(Collection<String> commands) {
+        for (String command : commands) {
+            entries.put(command, new Entry());
+        }
+        entries.put(UNKNOWN, new Entry());
+    }
+
+    /**
+     * Registra un comando eseguito.
+     *
+     * @param command Il nome del comando in minuscolo.
+     * @param nanos   La durata dell'esecuzione in nanosecondi.
+     * @param error   true se la risposta è un errore.
+     */
+    public void record(String command, long nanos, boolean error) {
+        Entry entry = entries.get(command);
+        if (entry == null) {
+            entry = entries.get(UNKNOWN);
+        }
+        entry.histogram().record(nanos);
+        if (error) {
+            entry.errors.increment();
+        }
+    }
+
+    /**
+     * Restituisce nomi e valori alternati, con un elemento `cmd.<comando>` per ogni comando
+     * chiamato almeno una volta, in ordine alfabetico. Il valore è
+     * `calls=..,errors=..,usec_per_call=..,p50=..,p99=..,p999=..`, con le durate in microsecondi.
+     */
+    public List<String> toValues() {
+        Map<String, String> sorted = new TreeMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            LatencyHistogram histogram = entry.getValue().histogram;
+            if (histogram == null) {
+                continue;
+            }
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            sorted.put("cmd." + entry.getKey(), String.format(Locale.ROOT,
+                "calls=%d,errors=%d,usec_per_call=%.3f,p50=%.3f,p99=%.3f,p999=%.3f",
+                snapshot.count(), entry.getValue().errors.sum(), snapshot.mean() / 1000,
+                snapshot.percentile(50) / 1000.0, snapshot.percentile(99) / 1000.0,
+                snapshot.percentile(99.9) / 1000.0));
+        }
+
+        List<String> values = new ArrayList<>(sorted.size() * 2);
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            values.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        return values;
+    }
+}
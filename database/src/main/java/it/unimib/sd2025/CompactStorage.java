@@ -0,0 +1,163 @@
+package it.unimib.sd2025;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rappresentazione in memoria dei valori delle stringhe e degli hash del database.
+ *
+ * Con la proprietà di sistema `db.storage=heap` (default) i valori restano String e String[].
+ * Con `db.storage=compact` una stringa diventa un byte[] e un hash un unico byte[] con
+ * campi e valori alternati, ognuno preceduto dalla sua lunghezza come varint (vedi BinaryProtocol).
+ * Ogni carattere dei valori rappresenta un byte (ISO-8859-1), quindi la conversione è esatta.
+ * Per valori brevi come `false`, `10.0` o una data, una String costa un oggetto in più
+ * (24 byte) oltre al suo array, e un hash di n campi costa 2n + 1 oggetti invece di uno:
+ * in cambio ogni lettura deve ricreare le String, e ogni scrittura di un hash ricodificarlo.
+ *
+ * I metodi accettano entrambe le rappresentazioni, quindi la scelta riguarda solo le nuove scritture.
+ */
+public final class CompactStorage {
+    /**
+     * true se i valori vengono salvati come byte[].
+     */
+    public static final boolean ENABLED = "compact".equalsIgnoreCase(System.getProperty("db.storage", "heap"));
+
+    private CompactStorage() {
+    }
+
+    /**
+     * @return Il valore da salvare nella mappa delle stringhe.
+     */
+    public static Object fromString(String value) {
+        return ENABLED ? value.getBytes(StandardCharsets.ISO_8859_1) : value;
+    }
+
+    /**
+     * @return La stringa salvata, oppure null se non c'è.
+     */
+    public static String toString(Object stored) {
+        if (stored == null || stored instanceof String) {
+            return (String) stored;
+        }
+        return new String((byte[]) stored, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param fieldsAndValues Campi e valori alternati, che non vengono più modificati.
+     * @return Il valore da salvare nella mappa degli hash.
+     */
+    public static Object fromHash(String[] fieldsAndValues) {
+        if (!ENABLED) {
+            return fieldsAndValues;
+        }
+        int size = 0;
+        for (String value : fieldsAndValues) {
+            size += BinaryProtocol.varintSize(value.length()) + value.length();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (String value : fieldsAndValues) {
+            BinaryProtocol.putVarint(buffer, value.length());
+            buffer.put(value.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return Campi e valori alternati dell'hash salvato, oppure null se non c'è.
+     *         L'array non va modificato.
+     */
+    public static String[] toHash(Object stored) {
+        if (stored == null || stored instanceof String[]) {
+            return (String[]) stored;
+        }
+        byte[] bytes = (byte[]) stored;
+        int count = 0;
+        for (int position = 0; position < bytes.length; count++) {
+            int[] length = readVarint(bytes, position);
+            position = length[1] + length[0];
+        }
+        String[] fieldsAndValues = new String[count];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int[] length = readVarint(bytes, position);
+            fieldsAndValues[i] = new String(bytes, length[1], length[0], StandardCharsets.ISO_8859_1);
+            position = length[1] + length[0];
+        }
+        return fieldsAndValues;
+    }
+
+    /**
+     * Cerca un campo nell'hash salvato senza ricreare le altre stringhe.
+     *
+     * @return Il valore del campo, oppure null se non c'è.
+     */
+    public static String hashGet(Object stored, String field) {
+        if (!(stored instanceof byte[] bytes)) {
+            String[] hash = (String[]) stored;
+            for (int i = 0; i + 1 < hash.length; i += 2) {
+                if (hash[i].equals(field)) {
+                    return hash[i + 1];
+                }
+            }
+            return null;
+        }
+        int position = 0;
+        while (position < bytes.length) {
+            int[] fieldLength = readVarint(bytes, position);
+            int[] valueLength = readVarint(bytes, fieldLength[1] + fieldLength[0]);
+            if (equals(bytes, fieldLength[1], fieldLength[0], field)) {
+                return new String(bytes, valueLength[1], valueLength[0], StandardCharsets.ISO_8859_1);
+            }
+            position = valueLength[1] + valueLength[0];
+        }
+        return null;
+    }
+
+    /**
+     * Stima la memoria occupata da un valore salvato, in byte: intestazioni
+     * degli oggetti e degli array più un byte per carattere.
+     */
+    public static long sizeOf(Object stored) {
+        if (stored instanceof byte[] bytes) {
+            return 16 + bytes.length;
+        }
+        if (stored instanceof String value) {
+            return 40 + value.length();
+        }
+        String[] hash = (String[]) stored;
+        long size = 16 + 4L * hash.length;
+        for (String value : hash) {
+            size += 40 + value.length();
+        }
+        return size;
+    }
+
+    private static boolean equals(byte[] bytes, int offset, int length, String value) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ((bytes[offset + i] & 0xFF) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Legge un varint dall'array.
+     *
+     * @return Il valore e la posizione del primo byte dopo il varint.
+     */
+    private static int[] readVarint(byte[] bytes, int position) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = bytes[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return new int[] { value, position };
+    }
+}
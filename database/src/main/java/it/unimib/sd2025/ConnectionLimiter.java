@@ -0,0 +1,145 @@
+package it.unimib.sd2025;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe che limita il numero di connessioni servite contemporaneamente.
+ * Una connessione accettata resta in coda finché non si libera uno dei
+ * `maxConnections` posti disponibili. Quando anche la coda è piena il thread
+ * che accetta le connessioni si ferma, quindi i nuovi client restano nel
+ * backlog del sistema operativo (backpressure) invece di occupare memoria.
+ */
+public class ConnectionLimiter {
+    private final Semaphore slots;
+    private final Semaphore queue;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    /**
+     * @param maxConnections Numero massimo di connessioni servite insieme.
+     * @param maxQueued      Numero massimo di connessioni accettate in attesa di un posto.
+     */
+    public ConnectionLimiter(int maxConnections, int maxQueued) {
+        this.slots = new Semaphore(maxConnections);
+        this.queue = new Semaphore(maxQueued);
+    }
+
+    /**
+     * Da chiamare prima di ogni accept(): blocca finché c'è posto nella coda.
+     */
+    public void awaitQueueSlot() throws InterruptedException {
+        if (!queue.tryAcquire()) {
+            throttled.increment();
+            queue.acquire();
+        }
+    }
+
+    /**
+     * Registra una connessione appena accettata, che entra in coda.
+     */
+    public void accepted() {
+        accepted.increment();
+        queued.incrementAndGet();
+    }
+
+    /**
+     * Attende un posto libero e poi esegue la gestione della connessione.
+     * Va chiamato dal thread che serve la connessione.
+     */
+    public void serve(Runnable handler) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            queued.decrementAndGet();
+            queue.release();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        queued.decrementAndGet();
+        queue.release();
+
+        active.incrementAndGet();
+        try {
+            handler.run();
+        } finally {
+            active.decrementAndGet();
+            slots.release();
+        }
+    }
+
+    /**
+     * Server NIO, che non ha un thread per connessione da far attendere in coda:
+     * da chiamare prima di ogni accept(), blocca finché non c'è un posto libero.
+     * Il posto va restituito con closed(), oppure con releaseSlot() se la connessione
+     * non arriva a essere aperta con opened().
+     */
+    public void awaitSlot() throws InterruptedException {
+        if (!slots.tryAcquire()) {
+            throttled.increment();
+            slots.acquire();
+        }
+    }
+
+    /**
+     * Restituisce un posto preso con awaitSlot() senza che la connessione sia stata aperta.
+     */
+    public void releaseSlot() {
+        slots.release();
+    }
+
+    /**
+     * Registra una connessione servita senza passare dalla coda (server NIO),
+     * con il posto preso da awaitSlot().
+     */
+    public void opened() {
+        accepted.increment();
+        active.incrementAndGet();
+    }
+
+    /**
+     * Registra la chiusura di una connessione aperta con opened() e ne libera il posto.
+     */
+    public void closed() {
+        active.decrementAndGet();
+        slots.release();
+    }
+
+    /**
+     * @return Numero di connessioni servite in questo momento.
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return Numero di connessioni accettate in attesa di un posto libero.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return Numero totale di connessioni accettate.
+     */
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    /**
+     * @return Numero di volte in cui l'accept è stato sospeso per coda piena.
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d queued=%d accepted=%d throttled=%d",
+                             getActive(), getQueued(), getAccepted(), getThrottled());
+    }
+}
@@ -1,7 +1,14 @@
 package it.unimib.sd2025;
 
+import java.math.BigDecimal;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * Classe principale del database.
@@ -10,17 +17,134 @@ import java.util.concurrent.*;
  * chiave-valore.
  * La classe è progettata per poter gestire la concorrenza delle richieste del
  * client.
- * Utilizza ConcurrentHashMap per gestire la concorrenza.
+ * Utilizza ConcurrentHashMap per gestire la concorrenza: le letture non usano
+ * lock, mentre le scritture acquisiscono solo il lock della striscia della chiave
+ * (vedi StripedLocks), quindi scritture su chiavi diverse procedono in parallelo.
+ * Le scritture sulla stessa chiave sono serializzate e ogni lettura vede l'ultima
+ * scrittura completata, quindi le operazioni sono linearizzabili per chiave.
  * Le operazioni possibili sono descritte nel file TCP.md
  * È un singleton, quindi non è necessario creare più istanze.
  */
 public class Database {
+    /**
+     * Numero di lock per le scritture (proprietà di sistema `db.lockStripes`).
+     */
+    private static final int LOCK_STRIPES = Integer.getInteger("db.lockStripes", 1024);
+    /**
+     * Precisione in millisecondi della cancellazione in background delle chiavi
+     * scadute (proprietà di sistema `db.expire.tickMs`).
+     */
+    private static final int EXPIRE_TICK_MS = Integer.getInteger("db.expire.tickMs", 100);
+    // Numero massimo di chiavi scadute cancellate prima di far avanzare di nuovo la timer wheel.
+    private static final int EXPIRE_BATCH = 1000;
+    /**
+     * Memoria massima in byte, stimata, occupata dai dati (proprietà di sistema `db.maxmemory`, 0 = nessun limite).
+     */
+    private static final long MAX_MEMORY = Long.getLong("db.maxmemory", 0);
+    /**
+     * Politica usata quando la memoria supera il limite (proprietà di sistema `db.maxmemory.policy`).
+     */
+    private static final EvictionPolicy EVICTION_POLICY =
+        EvictionPolicy.fromName(System.getProperty("db.maxmemory.policy", "noeviction"));
+    /**
+     * Numero di chiavi esaminate per sceglierne una da cancellare (proprietà di sistema `db.maxmemory.samples`).
+     */
+    private static final int EVICTION_SAMPLES = Integer.getInteger("db.maxmemory.samples", 5);
+    /**
+     * Minuti senza usare una chiave dopo cui il suo contatore LFU cala di uno
+     * (proprietà di sistema `db.maxmemory.lfuDecayMin`).
+     */
+    private static final int LFU_DECAY_MINUTES = Integer.getInteger("db.maxmemory.lfuDecayMin", 1);
+    // Valore iniziale del contatore LFU, così una chiave appena scritta non è subito la prima da cancellare.
+    private static final int LFU_INITIAL = 5;
+    // Più è alto, più usi servono per far crescere il contatore LFU.
+    private static final int LFU_LOG_FACTOR = 10;
+    // Memoria stimata di ogni chiave oltre ai suoi valori: la stringa della chiave
+    // e le sue voci negli archivi, nell'indice e nelle versioni.
+    private static final long KEY_OVERHEAD = 160;
+
     private static Database instance;
-    private ConcurrentHashMap<String, String> archivio;
+    // I valori di stringhe e hash sono salvati come indicato da CompactStorage:
+    // vanno letti e scritti solo con i metodi di CompactStorage.
+    private ConcurrentHashMap<String, Object> archivio;
+
+    // Crea anche l'archivio per le liste, utilizzando IndexedList perché mantiene
+    // l'ordine e permette di cercare o rimuovere un valore senza scorrere la lista.
+    private ConcurrentHashMap<String, IndexedList> archivioListe;
+
+    // Archivio per gli hash (record con più campi, es. un utente). Ogni hash è un array
+    // con campi e valori alternati che non viene mai modificato: ogni scrittura lo
+    // sostituisce con una copia, quindi si legge senza lock e si vedono sempre tutti
+    // i campi di una stessa scrittura. Gli hash sono pensati per pochi campi, che
+    // vengono cercati scorrendo l'array.
+    private ConcurrentHashMap<String, Object> archivioHash;
+
+    // Indice ordinato di tutte le chiavi, per cercarle per prefisso (SCAN, KEYS, CLEARPREFIX).
+    // Il valore indica in quali archivi c'è la chiave (STRING, LIST, HASH). Viene aggiornato
+    // solo quando una chiave viene creata o cancellata, tenendo il lock della chiave.
+    private final ConcurrentSkipListMap<String, Byte> indice = new ConcurrentSkipListMap<>();
+    private static final byte STRING = 1;
+    private static final byte LIST = 2;
+    private static final byte HASH = 4;
 
-    // Crea anche l'archivio per le liste, utilizzando Vector perché è
-    // sincronizzato.
-    private ConcurrentHashMap<String, Vector<String>> archivioListe;
+    // Versione di ogni chiave scritta dall'avvio, cambiata a ogni scrittura (vedi version()).
+    // Le chiavi caricate all'avvio e mai scritte hanno la versione iniziale, che dipende
+    // dall'ora di avvio: così dopo un riavvio una chiave non torna a una versione già vista.
+    // Una chiave cancellata non ha versione.
+    private final ConcurrentHashMap<String, Long> versioni = new ConcurrentHashMap<>();
+    private final long versioneIniziale = System.currentTimeMillis() << 20;
+    private final AtomicLong ultimaVersione = new AtomicLong(versioneIniziale);
+
+    // Scadenza (millisecondi dal 1970) delle chiavi con un TTL, di qualsiasi tipo.
+    // Una chiave scaduta viene cancellata appena viene letta o scritta e, in background,
+    // quando la timer wheel la restituisce. Le scadenze vengono applicate solo dopo
+    // startExpiring(), così durante il caricamento e la rilettura del log non si cancella nulla,
+    // e non vengono applicate su una replica, che riceve dal primario le cancellazioni.
+    // La timer wheel contiene le scadenze solo mentre vengono applicate.
+    private final ConcurrentHashMap<String, Long> scadenze = new ConcurrentHashMap<>();
+    private final TimerWheel timerWheel = new TimerWheel(EXPIRE_TICK_MS, System.currentTimeMillis());
+    private volatile boolean scadenzeAttive = false;
+    private ScheduledExecutorService reaper;
+
+    // Memoria stimata occupata dalle chiavi (vedi memoryOf()), aggiornata a ogni scrittura
+    // tenendo il lock della chiave. Il limite viene applicato solo dopo startMemoryLimit().
+    private final AtomicLong memoriaUsata = new AtomicLong();
+    private volatile boolean limiteAttivo = false;
+    private final LongAdder chiaviEliminate = new LongAdder();
+    private final LongAdder scrittureRifiutate = new LongAdder();
+
+    // Ultimo uso e frequenza d'uso di ogni chiave, usati per scegliere quali cancellare:
+    // millisecondi dall'avvio nei bit alti e contatore LFU negli 8 bit bassi (vedi touched()).
+    // Viene aggiornato solo se c'è un limite di memoria con una politica che cancella chiavi.
+    private final boolean tracciaAccessi = MAX_MEMORY > 0 && EVICTION_POLICY != EvictionPolicy.NOEVICTION;
+    private final ConcurrentHashMap<String, Long> accessi = new ConcurrentHashMap<>();
+    private final long avvio = System.currentTimeMillis();
+    // Le chiavi da cancellare vengono cercate continuando a scorrere le candidate da dove
+    // ci si era fermati, quindi in un giro vengono esaminate tutte. Usato con evictionLock.
+    private final Object evictionLock = new Object();
+    private Iterator<String> cursoreEviction = Collections.emptyIterator();
+
+    // Numero massimo di cifre intere e di cifre decimali dei numeri di INCRBYFLOAT e simili.
+    private static final int MAX_DECIMAL_DIGITS = 64;
+
+    private final StripedLocks locks = new StripedLocks(LOCK_STRIPES);
+
+    // Componenti che ricevono le scritture applicate (es. il log su disco).
+    private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<>();
+
+    // Scritture di una transazione in corso nel thread corrente, notificate
+    // tutte insieme alla fine della transazione. È null fuori dalle transazioni.
+    private final ThreadLocal<List<String[]>> transactionWrites = new ThreadLocal<>();
+
+    // Numero di lock delle chiavi (o di evictionLock) tenuti dal thread corrente. Una scrittura
+    // può avvenire dentro un'altra operazione che tiene già dei lock (es. la cancellazione di una
+    // chiave scaduta dentro una SET): afterWrite() viene eseguito solo quando il thread li ha
+    // rilasciati tutti, così l'attesa del disco non blocca le altre scritture sulle stesse chiavi.
+    private final ThreadLocal<int[]> heldLocks = ThreadLocal.withInitial(() -> new int[1]);
+
+    // Copie del database in corso (vedi snapshot()), a cui va passata ogni chiave prima di modificarla.
+    // Cambia solo tenendo i lock di tutte le chiavi, quindi chi tiene il lock di una chiave la vede stabile.
+    private volatile SnapshotCopy[] copieInCorso = new SnapshotCopy[0];
 
     /**
      * Restituisce l'istanza del database.
@@ -36,12 +160,343 @@ public class Database {
 
     // Altre funzionalità del database possono essere aggiunte qui.
 
+    /**
+     * Esegue un'operazione di scrittura tenendo il lock della chiave.
+     * Le operazioni composte (es. crea la lista se non esiste e aggiungi
+     * un elemento) risultano così atomiche rispetto alle altre scritture.
+     */
+    private Reply write(String key, Supplier<Reply> operation) {
+        ReentrantLock lock = locks.get(key);
+        int[] held = heldLocks.get();
+        lock.lock();
+        held[0]++;
+        try {
+            beforeChange(key);
+            expireIfNeeded(key);
+            long memory = memoryOf(key);
+            Reply reply = operation.get();
+            if (!reply.isError()) {
+                updateVersion(key);
+                updateMemory(key, memory);
+            }
+            return reply;
+        } finally {
+            lock.unlock();
+            held[0]--;
+            afterWrite();
+        }
+    }
+
+    /**
+     * Aggiunge un componente che riceve tutte le scritture applicate.
+     */
+    public void addWriteListener(WriteListener listener) {
+        writeListeners.add(listener);
+    }
+
+    /**
+     * Rimuove un componente aggiunto con addWriteListener().
+     */
+    public void removeWriteListener(WriteListener listener) {
+        writeListeners.remove(listener);
+    }
+
+    /**
+     * @return true se c'è almeno un componente interessato alle scritture,
+     *         quindi vale la pena costruire il comando da notificare.
+     */
+    private boolean hasWriteListeners() {
+        return !writeListeners.isEmpty();
+    }
+
+    /**
+     * Notifica una scrittura applicata, come comando con i suoi argomenti.
+     * Va chiamato tenendo il lock della chiave.
+     * Dentro una transazione la scrittura viene notificata alla fine, insieme alle altre.
+     */
+    private void notifyWrite(String... command) {
+        List<String[]> transaction = transactionWrites.get();
+        if (transaction != null) {
+            transaction.add(command);
+            return;
+        }
+        List<String[]> commands = List.<String[]>of(command);
+        for (WriteListener listener : writeListeners) {
+            listener.onWrite(commands);
+        }
+    }
+
+    /**
+     * Da chiamare dopo aver rilasciato i lock di una scrittura. Se il thread tiene ancora
+     * altri lock non fa nulla: lo farà la chiamata dell'operazione più esterna.
+     */
+    private void afterWrite() {
+        if (heldLocks.get()[0] > 0) {
+            return;
+        }
+        for (WriteListener listener : writeListeners) {
+            listener.afterWrite();
+        }
+    }
+
     private Database() {
         // Inizializzazione del database.
         // Inizializza l'hashmap
         // L'inizializzazione è lazy. Avviene alla prima getInstance().
         this.archivio = new ConcurrentHashMap<>();
         this.archivioListe = new ConcurrentHashMap<>();
+        this.archivioHash = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Esegue un'operazione tenendo i lock di tutte le chiavi indicate.
+     * Serve per le transazioni: nessun'altra scrittura su quelle chiavi può
+     * avvenire finché l'operazione non è terminata.
+     *
+     * Può essere chiamato anche dentro un'altra operazione atomica: in quel caso
+     * le scritture vengono notificate alla fine di quella esterna.
+     *
+     * @param keys      Chiavi usate dall'operazione.
+     * @param operation Operazione da eseguire.
+     * @return Il risultato dell'operazione.
+     */
+    public <T> T atomically(Collection<String> keys, Supplier<T> operation) {
+        int[] stripes = locks.lockAll(keys);
+        int[] held = heldLocks.get();
+        held[0]++;
+        if (transactionWrites.get() != null) {
+            try {
+                return operation.get();
+            } finally {
+                locks.unlockAll(stripes);
+                held[0]--;
+            }
+        }
+        List<String[]> writes = new ArrayList<>();
+        transactionWrites.set(writes);
+        try {
+            return operation.get();
+        } finally {
+            transactionWrites.remove();
+            // Le scritture della transazione vengono notificate come un'unica operazione.
+            if (!writes.isEmpty()) {
+                for (WriteListener listener : writeListeners) {
+                    listener.onWrite(writes);
+                }
+            }
+            locks.unlockAll(stripes);
+            held[0]--;
+            afterWrite();
+        }
+    }
+
+    /**
+     * Copia consistente del contenuto del database.
+     * Le liste sono copiate, quindi la copia non cambia con le scritture successive.
+     * Gli hash sono array con campi e valori alternati, le scadenze in millisecondi dal 1970.
+     */
+    public record Snapshot(Map<String, String> strings, Map<String, String[]> lists, Map<String, String[]> hashes,
+                           Map<String, Long> expires) {
+        public long size() {
+            return (long) strings.size() + lists.size() + hashes.size();
+        }
+    }
+
+    /**
+     * Copia del database in corso. Contiene il contenuto di ogni chiave nell'istante in cui
+     * la copia è iniziata: ogni chiave viene copiata una volta sola, dal thread che crea la copia
+     * oppure, prima di modificarla, dalla prima scrittura arrivata dopo quell'istante.
+     */
+    private class SnapshotCopy {
+        private final Set<String> copied = ConcurrentHashMap.newKeySet(indice.size());
+        private final Map<String, Object> strings = new ConcurrentHashMap<>(archivio.size());
+        private final Map<String, String[]> lists = new ConcurrentHashMap<>(archivioListe.size());
+        private final Map<String, Object> hashes = new ConcurrentHashMap<>(archivioHash.size());
+        private final Map<String, Long> expires = new ConcurrentHashMap<>(scadenze.size());
+
+        /**
+         * Copia il contenuto attuale della chiave, se non è già stata copiata.
+         * Una chiave che non esiste viene solo segnata come copiata.
+         * Va chiamato tenendo il lock della chiave.
+         */
+        void copy(String key) {
+            if (!copied.add(key)) {
+                return;
+            }
+            Object string = archivio.get(key);
+            if (string != null) {
+                strings.put(key, string);
+            }
+            IndexedList list = archivioListe.get(key);
+            if (list != null) {
+                lists.put(key, list.toArray());
+            }
+            // I valori degli hash non vengono modificati, basta copiare il riferimento.
+            Object hash = archivioHash.get(key);
+            if (hash != null) {
+                hashes.put(key, hash);
+            }
+            Long deadline = scadenze.get(key);
+            if (deadline != null) {
+                expires.put(key, deadline);
+            }
+        }
+    }
+
+    /**
+     * Passa la chiave alle copie in corso prima che venga modificata.
+     * Va chiamato tenendo il lock della chiave; senza copie in corso costa una lettura.
+     */
+    private void beforeChange(String key) {
+        for (SnapshotCopy copy : copieInCorso) {
+            copy.copy(key);
+        }
+    }
+
+    /**
+     * Crea una copia consistente del database, con il contenuto che aveva in un unico istante.
+     * Le scritture vengono bloccate solo in quell'istante, per il tempo di prendere i lock di
+     * tutte le chiavi (non di copiarle): poi le chiavi vengono copiate una alla volta, ognuna
+     * tenendo solo il suo lock, e le scritture arrivate nel frattempo copiano la chiave che
+     * modificano prima di modificarla (copy-on-write).
+     *
+     * @param whileLocked Operazione eseguita nell'istante della copia, mentre le scritture sono bloccate,
+     *                    ad esempio per iniziare a registrare le scritture successive.
+     * @return La copia del database.
+     */
+    public Snapshot snapshot(Runnable whileLocked) {
+        SnapshotCopy copy = new SnapshotCopy();
+        int[] stripes = locks.lockEverything();
+        try {
+            setCopieInCorso(copy, true);
+            whileLocked.run();
+        } finally {
+            locks.unlockAll(stripes);
+        }
+
+        try {
+            // Le chiavi create dopo l'inizio della copia sono già segnate come copiate.
+            for (String key : indice.keySet()) {
+                ReentrantLock lock = locks.get(key);
+                lock.lock();
+                try {
+                    copy.copy(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            // Prendendo di nuovo tutti i lock nessuna scrittura sta ancora copiando una chiave.
+            stripes = locks.lockEverything();
+            try {
+                setCopieInCorso(copy, false);
+            } finally {
+                locks.unlockAll(stripes);
+            }
+        }
+
+        // I valori vengono convertiti dopo aver sbloccato le scritture.
+        Map<String, String> strings = new HashMap<>(copy.strings.size() * 2);
+        copy.strings.forEach((key, value) -> strings.put(key, CompactStorage.toString(value)));
+        Map<String, String[]> hashes = new HashMap<>(copy.hashes.size() * 2);
+        copy.hashes.forEach((key, hash) -> hashes.put(key, CompactStorage.toHash(hash)));
+        return new Snapshot(strings, new HashMap<>(copy.lists), hashes, new HashMap<>(copy.expires));
+    }
+
+    /**
+     * Aggiunge o toglie una copia da quelle in corso. Va chiamato tenendo i lock di tutte le chiavi.
+     */
+    private void setCopieInCorso(SnapshotCopy copy, boolean inCorso) {
+        List<SnapshotCopy> copie = new ArrayList<>(Arrays.asList(copieInCorso));
+        if (inCorso) {
+            copie.add(copy);
+        } else {
+            copie.remove(copy);
+        }
+        copieInCorso = copie.toArray(new SnapshotCopy[0]);
+    }
+
+    /**
+     * Cancella tutte le chiavi, notificando le cancellazioni come CLEAR, CLEARL e CLEARH.
+     * Usato da una replica prima di ricevere di nuovo tutto il database dal primario,
+     * quando non ci sono altre scritture.
+     */
+    public void clearAll() {
+        int[] held = heldLocks.get();
+        for (String key : indice.keySet()) {
+            ReentrantLock lock = locks.get(key);
+            lock.lock();
+            held[0]++;
+            try {
+                Byte types = indice.get(key);
+                if (types != null) {
+                    delete(key, types);
+                }
+            } finally {
+                lock.unlock();
+                held[0]--;
+                afterWrite();
+            }
+        }
+    }
+
+    /**
+     * Inserisce una stringa direttamente nella mappa, senza lock e senza notificare
+     * le scritture. Usato solo per caricare i dati all'avvio, prima di accettare connessioni;
+     * può essere chiamato da più thread insieme su chiavi diverse.
+     */
+    void restore(String key, String value) {
+        archivio.put(key, CompactStorage.fromString(value));
+        indexAdd(key, STRING);
+    }
+
+    /**
+     * Inserisce una lista direttamente nella mappa, come restore().
+     */
+    void restoreList(String key, String[] values) {
+        archivioListe.put(key, new IndexedList(Arrays.asList(values)));
+        indexAdd(key, LIST);
+    }
+
+    /**
+     * Inserisce un hash direttamente nella mappa, come restore().
+     *
+     * @param fieldsAndValues Campi e valori alternati.
+     */
+    void restoreHash(String key, String[] fieldsAndValues) {
+        archivioHash.put(key, CompactStorage.fromHash(fieldsAndValues));
+        indexAdd(key, HASH);
+    }
+
+    /**
+     * Aggiunge un campo a un hash direttamente nella mappa, come restore().
+     * Più thread possono aggiungere campi allo stesso hash.
+     */
+    void restoreHashField(String key, String field, String value) {
+        archivioHash.compute(key,
+                (k, hash) -> CompactStorage.fromHash(hashPut(CompactStorage.toHash(hash), Map.of(field, value))));
+        indexAdd(key, HASH);
+    }
+
+    /**
+     * Imposta la scadenza di una chiave direttamente, come restore().
+     */
+    void restoreExpire(String key, long deadline) {
+        scadenze.put(key, deadline);
+    }
+
+    /**
+     * Segna nell'indice che la chiave è presente nell'archivio indicato.
+     */
+    private void indexAdd(String key, byte type) {
+        indice.merge(key, type, (types, added) -> (byte) (types | added));
+    }
+
+    /**
+     * Segna nell'indice che la chiave non è più presente nell'archivio indicato.
+     */
+    private void indexRemove(String key, byte type) {
+        indice.computeIfPresent(key, (k, types) -> (types & ~type) == 0 ? null : (byte) (types & ~type));
     }
 
     /**
@@ -51,24 +506,33 @@ public class Database {
      * @param value Valore.
      * @return Il risultato dell'operazione.
      */
-    public synchronized String set(String key, String value) {
+    public Reply set(String key, String value) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
             // Controlla se il valore è valido.
             if (value == null) {
-                return "ERR Invalid value";
+                return Reply.error("Invalid value");
             }
 
             // Aggiunge o aggiorna la chiave con il valore specificato.
-            archivio.put(key, value);
-            return "OK";
+            return write(key, () -> {
+                if (archivio.put(key, CompactStorage.fromString(value)) == null) {
+                    indexAdd(key, STRING);
+                }
+                // Come in Redis, SET sostituisce anche la scadenza.
+                scadenze.remove(key);
+                if (hasWriteListeners()) {
+                    notifyWrite("SET", key, value);
+                }
+                return Reply.ok();
+            });
 
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
@@ -78,24 +542,25 @@ public class Database {
      * @param key Chiave da cercare.
      * @return Il valore associato alla chiave.
      */
-    public synchronized String get(String key) {
+    public Reply get(String key) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
             // Recupera il valore associato alla chiave.
-            String value = archivio.get(key);
+            access(key);
+            String value = CompactStorage.toString(archivio.get(key));
             if (value == null) {
-                // return "ERR Key not found";
-                return "OK ";
+                // return Reply.error("Key not found");
+                return Reply.value(null);
                 // TODO: Decidere se restituire un errore o un valore vuoto.
             }
-            return "OK " + value;
+            return Reply.value(value);
 
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
@@ -105,18 +570,25 @@ public class Database {
      * @param key Chiave da cancellare.
      * @return Il risultato dell'operazione.
      */
-    public synchronized String clear(String key) {
+    public Reply clear(String key) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
-            archivio.remove(key);
-            return "OK";
+            return write(key, () -> {
+                if (archivio.remove(key) != null) {
+                    indexRemove(key, STRING);
+                }
+                if (hasWriteListeners()) {
+                    notifyWrite("CLEAR", key);
+                }
+                return Reply.ok();
+            });
 
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
@@ -130,24 +602,43 @@ public class Database {
      * @param value Valore da associare alla chiave nella lista.
      * @return Il risultato dell'operazione.
      */
-    public synchronized String setl(String key, Vector<String> value) {
+    public Reply setl(String key, List<String> value) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
             // Controlla se il valore è valido.
             if (value == null) {
-                return "ERR Invalid value";
+                return Reply.error("Invalid value");
             }
 
             // Aggiunge o aggiorna la chiave con il valore specificato nella lista.
-            archivioListe.put(key, value);
-            return "OK";
+            IndexedList list = new IndexedList(value);
+            return write(key, () -> {
+                if (archivioListe.put(key, list) == null) {
+                    indexAdd(key, LIST);
+                }
+                if (hasWriteListeners()) {
+                    // Una lista vuota si legge come una lista non presente.
+                    if (value.isEmpty()) {
+                        notifyWrite("CLEARL", key);
+                    } else {
+                        String[] command = new String[value.size() + 2];
+                        command[0] = "SETL";
+                        command[1] = key;
+                        for (int i = 0; i < value.size(); i++) {
+                            command[i + 2] = value.get(i);
+                        }
+                        notifyWrite(command);
+                    }
+                }
+                return Reply.ok();
+            });
 
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
@@ -157,23 +648,123 @@ public class Database {
      * @param key Chiave della lista da cercare.
      * @return Il valore associato alla chiave nella lista.
      */
-    public synchronized String getl(String key) {
+    public Reply getl(String key) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
             // Recupera il valore associato alla chiave nella lista.
-            Vector<String> value = archivioListe.get(key);
+            access(key);
+            IndexedList value = archivioListe.get(key);
             if (value == null) {
-                // return "ERR Key not found";
-                return "OK ";
+                // return Reply.error("Key not found");
+                return Reply.values(List.of());
             } else {
-                return "OK " + String.join(" ", value);
+                // toArray() restituisce una copia consistente della lista.
+                return Reply.values(Arrays.asList(value.toArray()));
+            }
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una GETL con indice sul database.
+     *
+     * @param key   Chiave della lista.
+     * @param index Indice dell'elemento, da 0; se negativo conta dalla fine (-1 è l'ultimo).
+     * @return L'elemento, vuoto se la lista non esiste o l'indice è fuori dalla lista.
+     */
+    public Reply getl(String key, int index) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            access(key);
+            IndexedList list = archivioListe.get(key);
+            return Reply.value(list == null ? null : list.get(index));
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una GETRANGEL sul database.
+     *
+     * @param key   Chiave della lista.
+     * @param start Indice del primo elemento.
+     * @param stop  Indice dell'ultimo elemento, compreso.
+     *              Gli indici negativi contano dalla fine della lista.
+     * @return Gli elementi nell'intervallo.
+     */
+    public Reply getrangel(String key, int start, int stop) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            access(key);
+            IndexedList list = archivioListe.get(key);
+            return Reply.values(list == null ? List.of() : Arrays.asList(list.range(start, stop)));
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una LENL sul database.
+     *
+     * @param key Chiave della lista.
+     * @return Il numero di elementi della lista, 0 se non esiste.
+     */
+    public Reply lenl(String key) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            access(key);
+            IndexedList list = archivioListe.get(key);
+            return Reply.value(String.valueOf(list == null ? 0 : list.size()));
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una CONTAINSL sul database.
+     *
+     * @param key   Chiave della lista.
+     * @param value Valore da cercare.
+     * @return "true" se la lista contiene il valore, altrimenti "false".
+     */
+    public Reply containsl(String key, String value) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            // Controlla se il valore è valido.
+            if (value == null) {
+                return Reply.error("Invalid value");
             }
+
+            access(key);
+            IndexedList list = archivioListe.get(key);
+            return Reply.value(String.valueOf(list != null && list.contains(value)));
+
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
@@ -183,18 +774,25 @@ public class Database {
      * @param key Chiave della lista da cancellare.
      * @return Il risultato dell'operazione.
      */
-    public synchronized String clearl(String key) {
+    public Reply clearl(String key) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
-            archivioListe.remove(key);
-            return "OK";
+            return write(key, () -> {
+                if (archivioListe.remove(key) != null) {
+                    indexRemove(key, LIST);
+                }
+                if (hasWriteListeners()) {
+                    notifyWrite("CLEARL", key);
+                }
+                return Reply.ok();
+            });
 
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
@@ -205,26 +803,33 @@ public class Database {
      * @param value Valore da aggiungere alla lista.
      * @return Il risultato dell'operazione.
      */
-    public synchronized String addl(String key, String value) {
+    public Reply addl(String key, String value) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
             // Controlla se il valore è valido.
             if (value == null) {
-                return "ERR Invalid value";
+                return Reply.error("Invalid value");
             }
 
-            // Aggiunge il valore alla lista associata alla chiave.
-            Vector<String> list = archivioListe.getOrDefault(key, new Vector<>());
-            list.add(value);
-            archivioListe.put(key, list);
-            return "OK";
+            // Aggiunge il valore alla lista associata alla chiave,
+            // creandola se non esiste.
+            return write(key, () -> {
+                archivioListe.computeIfAbsent(key, k -> {
+                    indexAdd(key, LIST);
+                    return new IndexedList();
+                }).add(value);
+                if (hasWriteListeners()) {
+                    notifyWrite("ADDL", key, value);
+                }
+                return Reply.ok();
+            });
 
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
@@ -235,29 +840,1248 @@ public class Database {
      * @param value Valore da rimuovere dalla lista.
      * @return Il risultato dell'operazione.
      */
-    public synchronized String removel(String key, String value) {
+    public Reply removel(String key, String value) {
         try {
             // Controlla se la chiave è valida.
             if (key == null || key.isEmpty()) {
-                return "ERR Invalid key";
+                return Reply.error("Invalid key");
             }
 
             // Controlla se il valore è valido.
             if (value == null) {
-                return "ERR Invalid value";
+                return Reply.error("Invalid value");
             }
 
             // Rimuove il valore dalla lista associata alla chiave.
-            Vector<String> list = archivioListe.get(key);
-            if (list != null && list.remove(value)) {
-                return "OK";
-            } else {
-                return "ERR Value not found in list";
+            return write(key, () -> {
+                IndexedList list = archivioListe.get(key);
+                if (list != null && list.remove(value)) {
+                    if (hasWriteListeners()) {
+                        notifyWrite("REMOVEL", key, value);
+                    }
+                    return Reply.ok();
+                } else {
+                    return Reply.error("Value not found in list");
+                }
+            });
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /*
+     * Funzioni per gli hash
+     */
+
+    /**
+     * Esegue una SETH sul database: imposta i campi indicati dell'hash,
+     * creandolo se non esiste. Gli altri campi restano invariati.
+     *
+     * @param key    Chiave dell'hash.
+     * @param fields Campi e valori da impostare, nell'ordine di inserimento.
+     * @return Il risultato dell'operazione.
+     */
+    public Reply seth(String key, LinkedHashMap<String, String> fields) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            // Controlla se i campi sono validi.
+            if (fields == null || fields.isEmpty()) {
+                return Reply.error("Invalid value");
+            }
+            for (Map.Entry<String, String> entry : fields.entrySet()) {
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    return Reply.error("Invalid value");
+                }
+            }
+
+            return write(key, () -> {
+                String[] hash = CompactStorage.toHash(archivioHash.get(key));
+                if (hash == null) {
+                    indexAdd(key, HASH);
+                }
+                archivioHash.put(key, CompactStorage.fromHash(hashPut(hash, fields)));
+                if (hasWriteListeners()) {
+                    String[] command = new String[fields.size() * 2 + 2];
+                    command[0] = "SETH";
+                    command[1] = key;
+                    int i = 2;
+                    for (Map.Entry<String, String> entry : fields.entrySet()) {
+                        command[i++] = entry.getKey();
+                        command[i++] = entry.getValue();
+                    }
+                    notifyWrite(command);
+                }
+                return Reply.ok();
+            });
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una GETH sul database.
+     *
+     * @param key   Chiave dell'hash.
+     * @param field Campo da cercare.
+     * @return Il valore del campo, vuoto se l'hash o il campo non esistono.
+     */
+    public Reply geth(String key, String field) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            access(key);
+            Object hash = archivioHash.get(key);
+            return Reply.value(hash == null ? null : CompactStorage.hashGet(hash, field));
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una GETALLH sul database.
+     *
+     * @param key Chiave dell'hash.
+     * @return Campi e valori alternati, vuoto se l'hash non esiste.
+     */
+    public Reply getallh(String key) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            access(key);
+            String[] hash = CompactStorage.toHash(archivioHash.get(key));
+            // L'array non viene mai modificato, quindi si può restituire direttamente.
+            return Reply.values(hash == null ? List.of() : Arrays.asList(hash));
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una REMOVEH sul database: rimuove i campi indicati dell'hash.
+     * Un hash senza campi viene cancellato.
+     *
+     * @param key    Chiave dell'hash.
+     * @param fields Campi da rimuovere.
+     * @return Il risultato dell'operazione.
+     */
+    public Reply removeh(String key, List<String> fields) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
             }
 
+            // Controlla se i campi sono validi.
+            if (fields == null || fields.isEmpty()) {
+                return Reply.error("Invalid value");
+            }
+
+            return write(key, () -> {
+                String[] hash = CompactStorage.toHash(archivioHash.get(key));
+                if (hash == null) {
+                    return Reply.ok();
+                }
+                String[] updated = hashRemove(hash, fields);
+                if (updated.length == hash.length) {
+                    return Reply.ok();
+                }
+                if (updated.length == 0) {
+                    archivioHash.remove(key);
+                    indexRemove(key, HASH);
+                } else {
+                    archivioHash.put(key, CompactStorage.fromHash(updated));
+                }
+                if (hasWriteListeners()) {
+                    String[] command = new String[fields.size() + 2];
+                    command[0] = "REMOVEH";
+                    command[1] = key;
+                    for (int i = 0; i < fields.size(); i++) {
+                        command[i + 2] = fields.get(i);
+                    }
+                    notifyWrite(command);
+                }
+                return Reply.ok();
+            });
+
         } catch (Exception e) {
-            return "ERR " + e.getMessage();
+            return Reply.error(e.getMessage());
         }
     }
 
+    /**
+     * Esegue una CLEARH sul database.
+     *
+     * @param key Chiave dell'hash da cancellare.
+     * @return Il risultato dell'operazione.
+     */
+    public Reply clearh(String key) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            return write(key, () -> {
+                if (archivioHash.remove(key) != null) {
+                    indexRemove(key, HASH);
+                }
+                if (hasWriteListeners()) {
+                    notifyWrite("CLEARH", key);
+                }
+                return Reply.ok();
+            });
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Restituisce una copia dell'hash con i campi impostati.
+     *
+     * @param hash L'hash da aggiornare, oppure null se non esiste.
+     */
+    private static String[] hashPut(String[] hash, Map<String, String> fields) {
+        if (hash == null) {
+            hash = new String[0];
+        }
+        String[] updated = Arrays.copyOf(hash, hash.length + fields.size() * 2);
+        int length = hash.length;
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            int i = 0;
+            while (i < length && !updated[i].equals(entry.getKey())) {
+                i += 2;
+            }
+            if (i == length) {
+                updated[length] = entry.getKey();
+                length += 2;
+            }
+            updated[i + 1] = entry.getValue();
+        }
+        return length == updated.length ? updated : Arrays.copyOf(updated, length);
+    }
+
+    /**
+     * Restituisce una copia dell'hash senza i campi indicati.
+     */
+    private static String[] hashRemove(String[] hash, Collection<String> fields) {
+        String[] updated = new String[hash.length];
+        int length = 0;
+        for (int i = 0; i < hash.length; i += 2) {
+            if (!fields.contains(hash[i])) {
+                updated[length++] = hash[i];
+                updated[length++] = hash[i + 1];
+            }
+        }
+        return length == hash.length ? hash : Arrays.copyOf(updated, length);
+    }
+
+    /*
+     * Funzioni numeriche
+     */
+
+    /**
+     * Esegue una INCRBY (o DECRBY, con amount negativo) sul database.
+     * Una chiave non presente vale 0.
+     *
+     * @param key    Chiave della stringa con un intero.
+     * @param amount Valore da sommare.
+     * @return Il nuovo valore.
+     */
+    public Reply incrby(String key, long amount) {
+        return updateNumber(key, null, addInteger(amount));
+    }
+
+    /**
+     * Esegue una INCRBYFLOAT sul database. I valori sono numeri decimali esatti
+     * (BigDecimal), quindi ad esempio 0.1 + 0.2 vale 0.3.
+     *
+     * @param key    Chiave della stringa con un numero.
+     * @param amount Valore da sommare.
+     * @return Il nuovo valore.
+     */
+    public Reply incrbyfloat(String key, BigDecimal amount) {
+        return updateNumber(key, null, addDecimal(amount, false));
+    }
+
+    /**
+     * Esegue una DECRBYFLOATIF sul database: sottrae il valore solo se il risultato
+     * non è negativo, altrimenti restituisce un errore e non modifica la chiave.
+     *
+     * @param key    Chiave della stringa con un numero.
+     * @param amount Valore da sottrarre.
+     * @return Il nuovo valore.
+     */
+    public Reply decrbyfloatif(String key, BigDecimal amount) {
+        return updateNumber(key, null, addDecimal(amount.negate(), true));
+    }
+
+    /**
+     * Come incrby(), ma sul campo di un hash.
+     */
+    public Reply incrbyh(String key, String field, long amount) {
+        return updateNumber(key, field, addInteger(amount));
+    }
+
+    /**
+     * Come incrbyfloat(), ma sul campo di un hash.
+     */
+    public Reply incrbyfloath(String key, String field, BigDecimal amount) {
+        return updateNumber(key, field, addDecimal(amount, false));
+    }
+
+    /**
+     * Come decrbyfloatif(), ma sul campo di un hash (es. il saldo di un utente).
+     */
+    public Reply decrbyfloatifh(String key, String field, BigDecimal amount) {
+        return updateNumber(key, field, addDecimal(amount.negate(), true));
+    }
+
+    /**
+     * Aggiorna il valore di una stringa o del campo di un hash tenendo il lock della chiave,
+     * quindi la lettura e la scrittura del nuovo valore sono atomiche.
+     * Nel log la scrittura viene salvata come SET o SETH del nuovo valore.
+     *
+     * @param field     Campo dell'hash, oppure null per una stringa.
+     * @param operation Calcola il nuovo valore da quello attuale (null se non presente);
+     *                  lancia IllegalArgumentException con il messaggio di errore
+     *                  se l'operazione non è possibile.
+     * @return Il nuovo valore.
+     */
+    private Reply updateNumber(String key, String field, UnaryOperator<String> operation) {
+        try {
+            // Controlla se la chiave è valida.
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            return write(key, () -> {
+                String[] hash = field == null ? null : CompactStorage.toHash(archivioHash.get(key));
+                String current = field == null ? CompactStorage.toString(archivio.get(key))
+                        : hash == null ? null : CompactStorage.hashGet(hash, field);
+                String updated;
+                try {
+                    updated = operation.apply(current);
+                } catch (NumberFormatException e) {
+                    return Reply.error("Value is not a number");
+                } catch (IllegalArgumentException e) {
+                    return Reply.error(e.getMessage());
+                }
+
+                if (field == null) {
+                    if (archivio.put(key, CompactStorage.fromString(updated)) == null) {
+                        indexAdd(key, STRING);
+                    }
+                    if (hasWriteListeners()) {
+                        notifyWrite("SET", key, updated);
+                    }
+                } else {
+                    if (hash == null) {
+                        indexAdd(key, HASH);
+                    }
+                    archivioHash.put(key, CompactStorage.fromHash(hashPut(hash, Map.of(field, updated))));
+                    if (hasWriteListeners()) {
+                        notifyWrite("SETH", key, field, updated);
+                    }
+                }
+                return Reply.value(updated);
+            });
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    private static UnaryOperator<String> addInteger(long amount) {
+        return current -> {
+            long value = current == null ? 0 : Long.parseLong(current);
+            try {
+                return String.valueOf(Math.addExact(value, amount));
+            } catch (ArithmeticException e) {
+                throw new IllegalArgumentException("Increment would overflow");
+            }
+        };
+    }
+
+    /**
+     * @param notNegative Se true l'operazione fallisce quando il risultato è negativo.
+     */
+    private static UnaryOperator<String> addDecimal(BigDecimal amount, boolean notNegative) {
+        return current -> {
+            BigDecimal value = current == null ? BigDecimal.ZERO : new BigDecimal(current);
+            checkDigits(value);
+            checkDigits(amount);
+            BigDecimal result = value.add(amount);
+            if (notNegative && result.signum() < 0) {
+                throw new IllegalArgumentException("Insufficient value: " + value.toPlainString());
+            }
+            return result.stripTrailingZeros().toPlainString();
+        };
+    }
+
+    /**
+     * Limita le cifre dei numeri decimali: un esponente come 1e999999999 richiederebbe
+     * un miliardo di cifre per la somma e per il valore salvato.
+     */
+    private static void checkDigits(BigDecimal value) {
+        if (value.scale() > MAX_DECIMAL_DIGITS || value.precision() - value.scale() > MAX_DECIMAL_DIGITS) {
+            throw new IllegalArgumentException("Value out of range");
+        }
+    }
+
+    /*
+     * Scadenze delle chiavi
+     */
+
+    /**
+     * Inizia ad applicare le scadenze: da questo momento le chiavi scadute vengono
+     * cancellate quando vengono usate e da un thread in background.
+     * Va chiamato dopo aver caricato i dati e quando una replica diventa primario.
+     */
+    public synchronized void startExpiring() {
+        if (scadenzeAttive) {
+            return;
+        }
+        // Le scadenze vanno aggiunte dopo aver attivato il flag, altrimenti quelle impostate
+        // nel frattempo non finirebbero nella wheel; una chiave aggiunta due volte non è un problema.
+        scadenzeAttive = true;
+        scadenze.forEach(timerWheel::add);
+        if (reaper != null) {
+            return;
+        }
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expire-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(() -> {
+            try {
+                List<String> keys;
+                while (!(keys = timerWheel.advance(System.currentTimeMillis(), EXPIRE_BATCH)).isEmpty()) {
+                    for (String key : keys) {
+                        expireIfNeeded(key);
+                    }
+                }
+            } catch (Exception e) {
+                Main.log.error("expire.error", "error", e.getMessage());
+            }
+        }, EXPIRE_TICK_MS, EXPIRE_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Smette di applicare le scadenze, quando il database diventa una replica.
+     * Le scadenze restano salvate e le chiavi scadute vengono cancellate dal primario.
+     * Le posizioni rimaste nella wheel vengono svuotate dal thread in background
+     * senza cancellare nulla.
+     */
+    public synchronized void stopExpiring() {
+        scadenzeAttive = false;
+    }
+
+    /**
+     * @return true se la chiave ha una scadenza già passata (e non è ancora stata cancellata).
+     */
+    private boolean isExpired(String key) {
+        if (!scadenzeAttive) {
+            return false;
+        }
+        Long deadline = scadenze.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    /**
+     * Cancella la chiave, di qualsiasi tipo, se è scaduta. Le cancellazioni vengono
+     * notificate come CLEAR, CLEARL e CLEARH, quindi il log non dipende dall'ora in cui
+     * viene riletto. Senza scadenza costa una sola lettura della mappa.
+     */
+    private void expireIfNeeded(String key) {
+        if (!isExpired(key)) {
+            return;
+        }
+        ReentrantLock lock = locks.get(key);
+        int[] held = heldLocks.get();
+        lock.lock();
+        held[0]++;
+        try {
+            // Ricontrolla tenendo il lock: la scadenza può essere stata cambiata.
+            if (!isExpired(key)) {
+                return;
+            }
+            beforeChange(key);
+            scadenze.remove(key);
+            Byte types = indice.get(key);
+            if (types != null) {
+                delete(key, types);
+            }
+        } finally {
+            lock.unlock();
+            held[0]--;
+            afterWrite();
+        }
+    }
+
+    /**
+     * Cancella la chiave da tutti gli archivi indicati. Va chiamato tenendo il lock della chiave.
+     */
+    private void delete(String key, byte types) {
+        if ((types & STRING) != 0) {
+            clear(key);
+        }
+        if ((types & LIST) != 0) {
+            clearl(key);
+        }
+        if ((types & HASH) != 0) {
+            clearh(key);
+        }
+    }
+
+    /**
+     * Esegue una EXPIRE sul database.
+     *
+     * @param seconds Secondi da adesso alla scadenza; se non sono positivi la chiave viene cancellata.
+     * @return 1 se la scadenza è stata impostata, 0 se la chiave non esiste.
+     */
+    public Reply expire(String key, long seconds) {
+        long deadline;
+        try {
+            deadline = Math.addExact(System.currentTimeMillis(), Math.multiplyExact(seconds, 1000L));
+        } catch (ArithmeticException e) {
+            return Reply.error("Invalid expire time");
+        }
+        return pexpireat(key, deadline);
+    }
+
+    /**
+     * Esegue una PEXPIREAT sul database: imposta la scadenza a un istante preciso.
+     * È il comando con cui le scadenze vengono salvate nel log.
+     *
+     * @param deadline Istante della scadenza in millisecondi dal 1970.
+     * @return 1 se la scadenza è stata impostata, 0 se la chiave non esiste.
+     */
+    public Reply pexpireat(String key, long deadline) {
+        try {
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            return write(key, () -> {
+                if (!indice.containsKey(key)) {
+                    return Reply.value("0");
+                }
+                scadenze.put(key, deadline);
+                if (scadenzeAttive) {
+                    timerWheel.add(key, deadline);
+                }
+                if (hasWriteListeners()) {
+                    notifyWrite("PEXPIREAT", key, String.valueOf(deadline));
+                }
+                // Una scadenza già passata cancella subito la chiave.
+                expireIfNeeded(key);
+                return Reply.value("1");
+            });
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una SETEX sul database: SET e EXPIRE in un'unica operazione atomica.
+     */
+    public Reply setex(String key, long seconds, String value) {
+        if (seconds <= 0) {
+            return Reply.error("Invalid expire time");
+        }
+        try {
+            return atomically(List.of(key), () -> {
+                Reply result = set(key, value);
+                if (result.isError()) {
+                    return result;
+                }
+                result = expire(key, seconds);
+                return result.isError() ? result : Reply.ok();
+            });
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una TTL sul database.
+     *
+     * @return I secondi che mancano alla scadenza (arrotondati per eccesso),
+     *         -1 se la chiave non ha una scadenza, -2 se non esiste.
+     */
+    public Reply ttl(String key) {
+        try {
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            expireIfNeeded(key);
+            if (!indice.containsKey(key)) {
+                return Reply.value("-2");
+            }
+            Long deadline = scadenze.get(key);
+            if (deadline == null) {
+                return Reply.value("-1");
+            }
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            return Reply.value(String.valueOf(Math.ceilDiv(remaining, 1000L)));
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /*
+     * Limite di memoria
+     */
+
+    /**
+     * Stima la memoria occupata da una chiave con tutti i suoi valori, in byte.
+     * Va chiamato tenendo il lock della chiave.
+     */
+    private long memoryOf(String key) {
+        Byte types = indice.get(key);
+        if (types == null) {
+            return 0;
+        }
+        long size = KEY_OVERHEAD + key.length();
+        if ((types & STRING) != 0) {
+            size += CompactStorage.sizeOf(archivio.get(key));
+        }
+        if ((types & LIST) != 0) {
+            size += archivioListe.get(key).memory();
+        }
+        if ((types & HASH) != 0) {
+            size += CompactStorage.sizeOf(archivioHash.get(key));
+        }
+        return size;
+    }
+
+    /**
+     * Aggiorna la memoria usata e l'ultimo uso dopo una scrittura sulla chiave.
+     * Va chiamato tenendo il lock della chiave.
+     *
+     * @param before Memoria occupata dalla chiave prima della scrittura.
+     */
+    private void updateMemory(String key, long before) {
+        memoriaUsata.addAndGet(memoryOf(key) - before);
+        if (tracciaAccessi) {
+            if (indice.containsKey(key)) {
+                accessi.compute(key, (k, access) -> touched(access));
+            } else {
+                accessi.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Segna la lettura di una chiave: la cancella se è scaduta e ne aggiorna l'ultimo uso.
+     */
+    private void access(String key) {
+        expireIfNeeded(key);
+        if (tracciaAccessi) {
+            accessi.computeIfPresent(key, (k, access) -> touched(access));
+        }
+    }
+
+    /**
+     * Calcola il nuovo ultimo uso di una chiave appena usata. Il contatore LFU cresce
+     * in modo logaritmico come in Redis: più è alto, meno è probabile che aumenti,
+     * quindi 8 bit bastano a distinguere chiavi usate poche volte da chiavi usate milioni di volte.
+     *
+     * @param access Ultimo uso precedente, oppure null se la chiave è nuova.
+     */
+    private long touched(Long access) {
+        long now = System.currentTimeMillis() - avvio;
+        int counter = access == null ? LFU_INITIAL : decayedCounter(access, now);
+        if (counter < 255) {
+            double probability = 1.0 / (Math.max(0, counter - LFU_INITIAL) * LFU_LOG_FACTOR + 1);
+            if (ThreadLocalRandom.current().nextDouble() < probability) {
+                counter++;
+            }
+        }
+        return now << 8 | counter;
+    }
+
+    /**
+     * @return Il contatore LFU diminuito di uno ogni LFU_DECAY_MINUTES minuti passati dall'ultimo uso.
+     */
+    private static int decayedCounter(long access, long now) {
+        long minutes = (now - (access >>> 8)) / 60_000;
+        return (int) Math.max(0, (access & 0xFF) - minutes / LFU_DECAY_MINUTES);
+    }
+
+    /**
+     * Inizia ad applicare il limite di memoria, calcolando la memoria occupata dai dati caricati.
+     * Va chiamato dopo aver caricato i dati e quando una replica diventa primario,
+     * quando non ci sono altre scritture.
+     */
+    public void startMemoryLimit() {
+        long total = 0;
+        for (String key : indice.keySet()) {
+            total += memoryOf(key);
+            if (tracciaAccessi) {
+                accessi.putIfAbsent(key, touched(null));
+            }
+        }
+        memoriaUsata.set(total);
+        limiteAttivo = MAX_MEMORY > 0;
+    }
+
+    /**
+     * Smette di applicare il limite di memoria, quando il database diventa una replica:
+     * le chiavi vengono cancellate dal primario. La memoria usata continua a essere stimata.
+     */
+    public void stopMemoryLimit() {
+        limiteAttivo = false;
+    }
+
+    /**
+     * @return true se il limite di memoria è applicato con una politica che cancella chiavi,
+     *         quindi makeRoom() può dover cancellare chiavi prima di una scrittura.
+     */
+    public boolean isEvicting() {
+        return limiteAttivo && EVICTION_POLICY != EvictionPolicy.NOEVICTION;
+    }
+
+    /**
+     * Controlla che ci sia memoria per una scrittura. Se la memoria usata supera il limite
+     * cancella chiavi secondo la politica finché non torna sotto il limite; le cancellazioni
+     * vengono notificate come CLEAR, CLEARL e CLEARH, come quelle delle chiavi scadute.
+     * Va chiamato prima dei comandi che possono occupare memoria, senza tenere lock.
+     *
+     * @return false se la scrittura va rifiutata perché non si è riusciti a liberare memoria.
+     */
+    public boolean makeRoom() {
+        if (!limiteAttivo || memoriaUsata.get() <= MAX_MEMORY) {
+            return true;
+        }
+        if (EVICTION_POLICY != EvictionPolicy.NOEVICTION) {
+            int[] held = heldLocks.get();
+            held[0]++;
+            try {
+                synchronized (evictionLock) {
+                    int failures = 0;
+                    while (memoriaUsata.get() > MAX_MEMORY && failures < EVICTION_SAMPLES) {
+                        String key = pickEvictionCandidate();
+                        if (key == null) {
+                            break;
+                        }
+                        // La chiave può essere stata cancellata dopo essere stata scelta.
+                        failures = evict(key) ? 0 : failures + 1;
+                    }
+                }
+            } finally {
+                // Le cancellazioni vengono attese una volta sola, fuori da evictionLock.
+                held[0]--;
+                afterWrite();
+            }
+        }
+        if (memoriaUsata.get() <= MAX_MEMORY) {
+            return true;
+        }
+        scrittureRifiutate.increment();
+        return false;
+    }
+
+    /**
+     * Esamina le prossime EVICTION_SAMPLES chiavi candidate e sceglie quella usata meno
+     * di recente (LRU) o meno spesso (LFU, a parità quella usata meno di recente).
+     *
+     * @return La chiave da cancellare, oppure null se non ci sono candidate.
+     */
+    private String pickEvictionCandidate() {
+        Set<String> candidates = EVICTION_POLICY.volatileOnly() ? scadenze.keySet() : accessi.keySet();
+        long now = System.currentTimeMillis() - avvio;
+        String best = null;
+        long bestCounter = 0;
+        long bestTime = 0;
+        boolean restarted = false;
+        for (int i = 0; i < EVICTION_SAMPLES; i++) {
+            if (!cursoreEviction.hasNext()) {
+                if (restarted) {
+                    break; // Meno candidate che campioni: le ha già esaminate tutte.
+                }
+                cursoreEviction = candidates.iterator();
+                restarted = true;
+                if (!cursoreEviction.hasNext()) {
+                    break;
+                }
+            }
+            String key = cursoreEviction.next();
+            Long access = accessi.get(key);
+            long counter = access == null || !EVICTION_POLICY.lfu() ? 0 : decayedCounter(access, now);
+            long time = access == null ? 0 : access >>> 8;
+            if (best == null || counter < bestCounter || (counter == bestCounter && time < bestTime)) {
+                best = key;
+                bestCounter = counter;
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Cancella una chiave per liberare memoria.
+     *
+     * @return false se la chiave non esiste più.
+     */
+    private boolean evict(String key) {
+        ReentrantLock lock = locks.get(key);
+        lock.lock();
+        try {
+            Byte types = indice.get(key);
+            if (types == null) {
+                return false;
+            }
+            delete(key, types);
+            chiaviEliminate.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Esegue una MEMORY sul database.
+     *
+     * @return Nomi e valori alternati delle statistiche sulla memoria: memoria usata stimata
+     *         e limite in byte, politica, chiavi cancellate e scritture rifiutate dall'avvio.
+     */
+    public Reply memory() {
+        return Reply.values(List.of(
+            "used", String.valueOf(memoriaUsata.get()),
+            "max", String.valueOf(MAX_MEMORY),
+            "policy", EVICTION_POLICY.toString(),
+            "evicted", String.valueOf(chiaviEliminate.sum()),
+            "rejected", String.valueOf(scrittureRifiutate.sum())));
+    }
+
+    /**
+     * @return Nomi e valori alternati del numero di chiavi in ogni archivio: stringhe (`strings`),
+     *         liste (`lists`) e hash (`hashes`), e del numero di chiavi con una scadenza (`expires`).
+     *         Una chiave presente in più archivi viene contata in ognuno.
+     */
+    public List<String> keyspace() {
+        return List.of(
+            "strings", String.valueOf(archivio.size()),
+            "lists", String.valueOf(archivioListe.size()),
+            "hashes", String.valueOf(archivioHash.size()),
+            "expires", String.valueOf(scadenze.size()));
+    }
+
+    /*
+     * Versioni delle chiavi
+     */
+
+    /**
+     * Assegna una nuova versione alla chiave appena scritta, o toglie versione
+     * e scadenza se la chiave è stata cancellata. Va chiamato tenendo il lock della chiave.
+     */
+    private void updateVersion(String key) {
+        if (indice.containsKey(key)) {
+            versioni.put(key, ultimaVersione.incrementAndGet());
+        } else {
+            versioni.remove(key);
+            scadenze.remove(key);
+        }
+    }
+
+    /**
+     * Restituisce la versione della chiave, che cambia a ogni scrittura su qualsiasi
+     * tipo di valore della chiave. Una chiave che non esiste ha versione 0.
+     * Va chiamato tenendo il lock della chiave.
+     */
+    private long currentVersion(String key) {
+        Long version = versioni.get(key);
+        if (version != null) {
+            return version;
+        }
+        return indice.containsKey(key) ? versioneIniziale : 0;
+    }
+
+    /**
+     * Restituisce la versione della chiave (vedi currentVersion()).
+     * Tiene il lock della chiave, quindi non vede scritture a metà.
+     */
+    public long version(String key) {
+        ReentrantLock lock = locks.get(key);
+        int[] held = heldLocks.get();
+        lock.lock();
+        held[0]++;
+        try {
+            expireIfNeeded(key);
+            return currentVersion(key);
+        } finally {
+            lock.unlock();
+            held[0]--;
+            afterWrite();
+        }
+    }
+
+    /**
+     * Esegue una VERSION sul database.
+     *
+     * @param keys Chiavi di cui leggere la versione.
+     * @return La versione di ogni chiave, nello stesso ordine.
+     */
+    public Reply versions(List<String> keys) {
+        try {
+            if (keys == null || keys.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            List<String> versions = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                versions.add(String.valueOf(version(key)));
+            }
+            return Reply.values(versions);
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una CAS sul database: salva la stringa solo se la chiave
+     * ha ancora la versione indicata (0 se non deve esistere).
+     *
+     * @return La nuova versione della chiave.
+     */
+    public Reply cas(String key, long version, String value) {
+        return compareAndSet(key, version, () -> set(key, value));
+    }
+
+    /**
+     * Esegue una CASH sul database: come cas(), ma salva dei campi dell'hash.
+     *
+     * @return La nuova versione della chiave.
+     */
+    public Reply cash(String key, long version, LinkedHashMap<String, String> fields) {
+        return compareAndSet(key, version, () -> seth(key, fields));
+    }
+
+    private Reply compareAndSet(String key, long version, Supplier<Reply> operation) {
+        try {
+            if (key == null || key.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            return atomically(List.of(key), () -> {
+                if (currentVersion(key) != version) {
+                    return Reply.error("Version mismatch");
+                }
+                Reply result = operation.get();
+                return result.isError() ? result : Reply.value(String.valueOf(currentVersion(key)));
+            });
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /*
+     * Funzioni su più chiavi
+     */
+
+    /**
+     * Esegue una MGET sul database.
+     * I valori sono nello stesso ordine delle chiavi;
+     * una chiave non presente corrisponde a un valore vuoto.
+     *
+     * @param keys Chiavi da cercare.
+     * @return I valori associati alle chiavi.
+     */
+    public Reply mget(List<String> keys) {
+        try {
+            // Controlla se le chiavi sono valide.
+            if (keys == null || keys.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            List<String> values = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                if (key == null || key.isEmpty()) {
+                    return Reply.error("Invalid key");
+                }
+                access(key);
+                values.add(CompactStorage.toString(archivio.get(key)));
+            }
+            return Reply.values(values);
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una MSET sul database.
+     * Tutte le coppie vengono scritte tenendo i lock di tutte le chiavi,
+     * quindi nessun'altra scrittura può vedere solo una parte dei valori.
+     *
+     * @param values Coppie chiave-valore da salvare, nell'ordine di inserimento.
+     * @return Il risultato dell'operazione.
+     */
+    public Reply mset(LinkedHashMap<String, String> values) {
+        try {
+            // Controlla se le coppie sono valide.
+            if (values == null || values.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getKey() == null || entry.getKey().isEmpty()) {
+                    return Reply.error("Invalid key");
+                }
+                if (entry.getValue() == null) {
+                    return Reply.error("Invalid value");
+                }
+            }
+
+            int[] stripes = locks.lockAll(values.keySet());
+            int[] held = heldLocks.get();
+            held[0]++;
+            try {
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    beforeChange(entry.getKey());
+                    expireIfNeeded(entry.getKey());
+                    long memory = memoryOf(entry.getKey());
+                    if (archivio.put(entry.getKey(), CompactStorage.fromString(entry.getValue())) == null) {
+                        indexAdd(entry.getKey(), STRING);
+                    }
+                    scadenze.remove(entry.getKey());
+                    updateVersion(entry.getKey());
+                    updateMemory(entry.getKey(), memory);
+                }
+                if (hasWriteListeners()) {
+                    String[] command = new String[values.size() * 2 + 1];
+                    command[0] = "MSET";
+                    int i = 1;
+                    for (Map.Entry<String, String> entry : values.entrySet()) {
+                        command[i++] = entry.getKey();
+                        command[i++] = entry.getValue();
+                    }
+                    notifyWrite(command);
+                }
+            } finally {
+                locks.unlockAll(stripes);
+                held[0]--;
+                afterWrite();
+            }
+            return Reply.ok();
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una MGETL sul database.
+     * Restituisce una lista per ogni chiave, nello stesso ordine delle chiavi.
+     * Una lista non presente è vuota.
+     *
+     * @param keys Chiavi delle liste da cercare.
+     * @return Le liste associate alle chiavi.
+     */
+    public Reply mgetl(List<String> keys) {
+        try {
+            // Controlla se le chiavi sono valide.
+            if (keys == null || keys.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            List<List<String>> lists = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                if (key == null || key.isEmpty()) {
+                    return Reply.error("Invalid key");
+                }
+                access(key);
+                IndexedList list = archivioListe.get(key);
+                // toArray() restituisce una copia consistente della lista.
+                lists.add(list == null ? List.of() : Arrays.asList(list.toArray()));
+            }
+            return Reply.lists(lists);
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una MGETALLH sul database.
+     * Restituisce campi e valori di ogni hash, nello stesso ordine delle chiavi.
+     * Un hash non presente è vuoto.
+     *
+     * @param keys Chiavi degli hash da cercare.
+     * @return Gli hash associati alle chiavi.
+     */
+    public Reply mgetallh(List<String> keys) {
+        try {
+            // Controlla se le chiavi sono valide.
+            if (keys == null || keys.isEmpty()) {
+                return Reply.error("Invalid key");
+            }
+
+            List<List<String>> hashes = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                if (key == null || key.isEmpty()) {
+                    return Reply.error("Invalid key");
+                }
+                access(key);
+                String[] hash = CompactStorage.toHash(archivioHash.get(key));
+                hashes.add(hash == null ? List.of() : Arrays.asList(hash));
+            }
+            return Reply.lists(hashes);
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /*
+     * Funzioni sui prefissi delle chiavi
+     */
+
+    /**
+     * Esegue una SCAN sul database: restituisce le stringhe con le chiavi che iniziano
+     * con il prefisso, in ordine di chiave, esaminando al massimo count chiavi.
+     * Non è una copia consistente: le scritture concorrenti possono essere viste o no.
+     *
+     * @param prefix Prefisso delle chiavi.
+     * @param count  Numero massimo di chiavi da esaminare.
+     * @param cursor Cursore restituito dalla SCAN precedente, oppure null per iniziare.
+     * @return Il cursore per continuare (vuoto se la scansione è finita),
+     *         seguito da chiavi e valori alternati.
+     */
+    public Reply scan(String prefix, int count, String cursor) {
+        try {
+            if (prefix == null || count <= 0) {
+                return Reply.error("Invalid SCAN arguments");
+            }
+
+            List<String> result = new ArrayList<>();
+            result.add(null);
+            result.set(0, scanIndex(prefix, count, cursor, (key, types) -> {
+                if ((types & STRING) != 0 && !isExpired(key)) {
+                    String value = CompactStorage.toString(archivio.get(key));
+                    if (value != null) {
+                        result.add(key);
+                        result.add(value);
+                    }
+                }
+            }));
+            return Reply.values(result);
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una KEYS sul database: come SCAN, ma restituisce solo le chiavi,
+     * di qualsiasi tipo (stringhe, liste e hash).
+     *
+     * @return Il cursore per continuare (vuoto se la scansione è finita), seguito dalle chiavi.
+     */
+    public Reply keys(String prefix, int count, String cursor) {
+        try {
+            if (prefix == null || count <= 0) {
+                return Reply.error("Invalid KEYS arguments");
+            }
+
+            List<String> result = new ArrayList<>();
+            result.add(null);
+            result.set(0, scanIndex(prefix, count, cursor, (key, types) -> {
+                if (!isExpired(key)) {
+                    result.add(key);
+                }
+            }));
+            return Reply.values(result);
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Esegue una CLEARPREFIX sul database: cancella tutte le chiavi (di qualsiasi tipo)
+     * che iniziano con il prefisso. Le chiavi vengono cancellate tenendo tutti i loro lock,
+     * quindi la cancellazione è atomica come una transazione.
+     *
+     * @param prefix Prefisso delle chiavi, non vuoto.
+     * @return Il numero di chiavi cancellate.
+     */
+    public Reply clearPrefix(String prefix) {
+        try {
+            if (prefix == null || prefix.isEmpty()) {
+                return Reply.error("Invalid prefix");
+            }
+
+            List<String> keys = new ArrayList<>();
+            scanIndex(prefix, Integer.MAX_VALUE, null, (key, types) -> keys.add(key));
+            if (keys.isEmpty()) {
+                return Reply.value("0");
+            }
+
+            int deleted = atomically(keys, () -> {
+                int count = 0;
+                for (String key : keys) {
+                    // L'indice va riletto: la chiave può essere cambiata prima dei lock.
+                    Byte types = indice.get(key);
+                    if (types == null) {
+                        continue;
+                    }
+                    delete(key, types);
+                    count++;
+                }
+                return count;
+            });
+            return Reply.value(String.valueOf(deleted));
+
+        } catch (Exception e) {
+            return Reply.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Scorre l'indice in ordine a partire dal cursore, passando all'azione
+     * le chiavi che iniziano con il prefisso e i loro tipi.
+     *
+     * @return L'ultima chiave esaminata se ce ne possono essere altre, altrimenti null.
+     */
+    private String scanIndex(String prefix, int count, String cursor, BiConsumer<String, Byte> action) {
+        NavigableMap<String, Byte> tail = cursor == null || cursor.compareTo(prefix) < 0
+                                          ? indice.tailMap(prefix, true)
+                                          : indice.tailMap(cursor, false);
+        int examined = 0;
+        for (Map.Entry<String, Byte> entry : tail.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                return null;
+            }
+            if (examined == count) {
+                return cursor;
+            }
+            action.accept(entry.getKey(), entry.getValue());
+            cursor = entry.getKey();
+            examined++;
+        }
+        return null;
+    }
 }
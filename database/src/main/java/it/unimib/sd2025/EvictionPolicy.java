@@ -0,0 +1,59 @@
+package it.unimib.sd2025;
+
+/**
+ * Politica usata quando la memoria occupata dal database supera il limite
+ * (proprietà di sistema `db.maxmemory.policy`, vedi Database).
+ */
+public enum EvictionPolicy {
+    /** Nessuna chiave viene cancellata: le scritture che possono occupare memoria vengono rifiutate. */
+    NOEVICTION("noeviction", false, false),
+    /** Cancella le chiavi usate meno di recente. */
+    ALLKEYS_LRU("allkeys-lru", false, false),
+    /** Cancella le chiavi usate meno spesso. */
+    ALLKEYS_LFU("allkeys-lfu", false, true),
+    /** Cancella le chiavi usate meno di recente, solo tra quelle con una scadenza. */
+    VOLATILE_LRU("volatile-lru", true, false),
+    /** Cancella le chiavi usate meno spesso, solo tra quelle con una scadenza. */
+    VOLATILE_LFU("volatile-lfu", true, true);
+
+    private final String name;
+    private final boolean volatileOnly;
+    private final boolean lfu;
+
+    EvictionPolicy(String name, boolean volatileOnly, boolean lfu) {
+        this.name = name;
+        this.volatileOnly = volatileOnly;
+        this.lfu = lfu;
+    }
+
+    /**
+     * @return true se si possono cancellare solo le chiavi con una scadenza.
+     */
+    public boolean volatileOnly() {
+        return volatileOnly;
+    }
+
+    /**
+     * @return true se le chiavi vengono scelte in base alla frequenza d'uso invece che all'ultimo uso.
+     */
+    public boolean lfu() {
+        return lfu;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * @throws IllegalArgumentException Se il nome non corrisponde a nessuna politica.
+     */
+    public static EvictionPolicy fromName(String name) {
+        for (EvictionPolicy policy : values()) {
+            if (policy.name.equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown eviction policy: " + name);
+    }
+}
@@ -0,0 +1,251 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Lista di stringhe che mantiene l'ordine di inserimento e permette di controllare
+ * se contiene un valore e di rimuoverlo in tempo costante.
+ *
+ * I valori sono in un array; un valore rimosso lascia un buco (null) finché l'array
+ * non viene compattato, quando i buchi sono più della metà. Una mappa tiene per ogni
+ * valore le posizioni in cui compare, quindi contains() e remove() non scorrono la lista.
+ * Un albero di Fenwick conta i valori presenti, per trovare l'elemento di un indice
+ * in tempo logaritmico anche quando ci sono buchi (costante se non ce ne sono).
+ *
+ * Tutti i metodi sono sincronizzati sulla lista: le letture vedono sempre uno stato
+ * consistente e tengono il lock solo per il tempo dell'operazione.
+ */
+public class IndexedList {
+    private static final int MIN_CAPACITY = 4;
+    // Numero minimo di buchi prima di compattare, per non farlo su liste piccole.
+    private static final int MIN_HOLES_TO_COMPACT = 32;
+
+    private String[] slots;
+    // Albero di Fenwick sulle posizioni (da 1): tree[i] conta i valori presenti
+    // nelle posizioni (i - (i & -i), i].
+    private int[] tree;
+    // Posizioni usate dell'array, compresi i buchi.
+    private int end;
+    // Numero di valori presenti.
+    private int size;
+    // Somma delle lunghezze dei valori presenti, per stimare la memoria occupata.
+    private long characters;
+    // Per ogni valore la posizione (Integer) o le posizioni in ordine (ArrayDeque) in cui compare.
+    private final HashMap<String, Object> positions = new HashMap<>();
+
+    public IndexedList() {
+        this(Arrays.asList());
+    }
+
+    public IndexedList(Collection<String> values) {
+        slots = new String[Math.max(MIN_CAPACITY, values.size())];
+        for (String value : values) {
+            addPosition(value, end);
+            slots[end++] = value;
+            characters += value.length();
+        }
+        size = end;
+        buildTree();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stima la memoria occupata dalla lista, in byte: array, albero e per ogni valore
+     * la stringa e la sua voce nella mappa delle posizioni.
+     */
+    public synchronized long memory() {
+        return 64 + 8L * slots.length + 96L * size + characters;
+    }
+
+    public synchronized boolean contains(String value) {
+        return positions.containsKey(value);
+    }
+
+    /**
+     * Aggiunge un valore in fondo alla lista.
+     */
+    public synchronized void add(String value) {
+        if (end == slots.length) {
+            rebuild(Math.max(MIN_CAPACITY, size * 2));
+        }
+        addPosition(value, end);
+        slots[end] = value;
+        for (int i = end + 1; i < tree.length; i += i & -i) {
+            tree[i]++;
+        }
+        end++;
+        size++;
+        characters += value.length();
+    }
+
+    /**
+     * Rimuove la prima occorrenza del valore.
+     *
+     * @return true se il valore era presente.
+     */
+    public synchronized boolean remove(String value) {
+        Object position = positions.get(value);
+        if (position == null) {
+            return false;
+        }
+
+        int slot;
+        if (position instanceof Integer single) {
+            positions.remove(value);
+            slot = single;
+        } else {
+            @SuppressWarnings("unchecked")
+            ArrayDeque<Integer> all = (ArrayDeque<Integer>) position;
+            slot = all.pollFirst();
+            if (all.size() == 1) {
+                positions.put(value, all.peekFirst());
+            }
+        }
+
+        slots[slot] = null;
+        for (int i = slot + 1; i < tree.length; i += i & -i) {
+            tree[i]--;
+        }
+        size--;
+        characters -= value.length();
+
+        int holes = end - size;
+        if (holes >= MIN_HOLES_TO_COMPACT && holes > end / 2) {
+            rebuild(Math.max(MIN_CAPACITY, size * 2));
+        }
+        return true;
+    }
+
+    /**
+     * Restituisce l'elemento dell'indice indicato. Un indice negativo conta
+     * dalla fine della lista (-1 è l'ultimo elemento).
+     *
+     * @return L'elemento, oppure null se l'indice è fuori dalla lista.
+     */
+    public synchronized String get(int index) {
+        if (index < 0) {
+            index += size;
+        }
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        return slots[slotOf(index)];
+    }
+
+    /**
+     * Restituisce gli elementi da start a stop compresi. Gli indici negativi contano
+     * dalla fine della lista e quelli oltre i limiti vengono ristretti alla lista.
+     */
+    public synchronized String[] range(int start, int stop) {
+        if (start < 0) {
+            start = Math.max(0, start + size);
+        }
+        if (stop < 0) {
+            stop += size;
+        }
+        stop = Math.min(stop, size - 1);
+        if (start > stop) {
+            return new String[0];
+        }
+
+        String[] result = new String[stop - start + 1];
+        int slot = slotOf(start);
+        for (int i = 0; i < result.length; slot++) {
+            if (slots[slot] != null) {
+                result[i++] = slots[slot];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Restituisce una copia degli elementi della lista.
+     */
+    public synchronized String[] toArray() {
+        if (size == end) {
+            return Arrays.copyOf(slots, end);
+        }
+        String[] result = new String[size];
+        int i = 0;
+        for (int slot = 0; slot < end; slot++) {
+            if (slots[slot] != null) {
+                result[i++] = slots[slot];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Trova la posizione nell'array dell'elemento con l'indice indicato.
+     */
+    private int slotOf(int index) {
+        if (size == end) {
+            return index; // Nessun buco
+        }
+        // Cerca la posizione più alta con meno di index + 1 valori prima di sé.
+        int position = 0;
+        int remaining = index + 1;
+        for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            if (position + step < tree.length && tree[position + step] < remaining) {
+                position += step;
+                remaining -= tree[position];
+            }
+        }
+        return position;
+    }
+
+    private void addPosition(String value, int slot) {
+        Object position = positions.putIfAbsent(value, slot);
+        if (position instanceof Integer single) {
+            ArrayDeque<Integer> all = new ArrayDeque<>(2);
+            all.add(single);
+            all.add(slot);
+            positions.put(value, all);
+        } else if (position != null) {
+            @SuppressWarnings("unchecked")
+            ArrayDeque<Integer> all = (ArrayDeque<Integer>) position;
+            all.add(slot);
+        }
+    }
+
+    /**
+     * Compatta i valori in un nuovo array della capacità indicata,
+     * ricostruendo posizioni e albero.
+     */
+    private void rebuild(int capacity) {
+        String[] compacted = new String[capacity];
+        positions.clear();
+        int count = 0;
+        for (int slot = 0; slot < end; slot++) {
+            if (slots[slot] != null) {
+                addPosition(slots[slot], count);
+                compacted[count++] = slots[slot];
+            }
+        }
+        slots = compacted;
+        end = count;
+        buildTree();
+    }
+
+    /**
+     * Costruisce l'albero in tempo lineare.
+     */
+    private void buildTree() {
+        tree = new int[slots.length + 1];
+        for (int i = 1; i < tree.length; i++) {
+            if (i <= end && slots[i - 1] != null) {
+                tree[i]++;
+            }
+            int parent = i + (i & -i);
+            if (parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package it.unimib.sd2025;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Istogramma delle durate dei comandi, in nanosecondi, da cui calcolare i percentili.
+ *
+ * Le durate sono divise in intervalli logaritmici: ogni potenza di due è divisa in SUB_BUCKETS
+ * parti uguali, quindi il valore restituito per un percentile ha un errore relativo di al più
+ * 1/SUB_BUCKETS (6,25%) qualunque sia la durata, con un numero fisso di contatori.
+ * Registrare una durata costa un numero di bit e un incremento di un LongAdder,
+ * che non rallenta anche con molti thread che registrano insieme.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Le durate da 2^MAX_EXPONENT ns (circa 18 minuti) in su finiscono nell'ultimo intervallo.
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registra una durata in nanosecondi.
+     */
+    public void record(long nanos) {
+        counts[bucketOf(Math.max(nanos, 0))].increment();
+        total.add(nanos);
+    }
+
+    /**
+     * Le durate sotto SUB_BUCKETS hanno un intervallo ciascuna; le altre sono divise
+     * in base al bit più alto e ai SUB_BITS bit successivi.
+     */
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return La durata più alta che finisce nell'intervallo.
+     */
+    private static long highestOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Copia dei contatori in un istante, su cui calcolare i percentili.
+     * Le durate registrate durante la copia possono esserci o no.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, total.sum());
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+
+        private Snapshot(long[] counts, long count, long total) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+        }
+
+        /**
+         * @return Il numero di durate registrate.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * @return La media delle durate in nanosecondi, 0 se non ce ne sono.
+         */
+        public double mean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @param percentile Tra 0 e 100, ad esempio 99.9.
+         * @return La durata in nanosecondi sotto cui sta la percentuale indicata delle durate
+         *         (per eccesso, al limite dell'intervallo), 0 se non ce ne sono.
+         */
+        public long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestOf(i);
+                }
+            }
+            return highestOf(counts.length - 1);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package it.unimib.sd2025;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log del database (avvio, connessioni, comandi, persistenza e replica), scritto da un thread separato.
+ *
+ * Chi scrive un messaggio lo mette in un buffer circolare e prosegue senza aspettare: solo il thread
+ * del log formatta i messaggi e li stampa, a gruppi, su System.out (System.err per WARN ed ERROR).
+ * Se il buffer è pieno il messaggio viene scartato e contato, quindi il log non rallenta mai
+ * un comando; il thread del log stampa quanti messaggi sono stati scartati.
+ * I messaggi sono strutturati: un evento seguito da coppie `chiave=valore`, ad esempio
+ *
+ *     2025-06-10 18:02:11.042 INFO  command client=/127.0.0.1:50412 args="SET user Mario Rossi"
+ *
+ * La riga di ogni comando ricevuto è limitata a un numero massimo al secondo (i primi di ogni secondo):
+ * quelle in più vengono solo contate, come quelle scartate, e restituite da INFO.
+ */
+public class Log {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /**
+     * Ogni quanti millisecondi il thread del log controlla se ci sono nuovi messaggi.
+     */
+    private static final long POLL_INTERVAL_MS = 10;
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final Level level;
+    private final int commandsPerSecond;
+
+    // Buffer circolare con più produttori e un solo consumatore. Un produttore prende il numero
+    // progressivo `tail` solo se c'è posto, poi scrive il messaggio nella sua posizione; il consumatore
+    // legge dalla posizione `head` finché trova messaggi, e svuota ogni posizione prima di liberarla.
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    // Secondo corrente (32 bit alti) e righe dei comandi scritte in quel secondo (32 bit bassi).
+    private final AtomicLong commandWindow = new AtomicLong();
+    private long reportedDropped = 0;
+
+    /**
+     * Messaggio in attesa di essere formattato.
+     */
+    private static class Entry {
+        final long timestamp;
+        final Level level;
+        final String event;
+        final Object[] fields;
+
+        Entry(long timestamp, Level level, String event, Object[] fields) {
+            this.timestamp = timestamp;
+            this.level = level;
+            this.event = event;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Crea il log e avvia il thread che lo scrive.
+     *
+     * @param level             Il livello minimo dei messaggi scritti.
+     * @param bufferSize        Numero massimo di messaggi in attesa (arrotondato a una potenza di due).
+     * @param commandsPerSecond Numero massimo di righe dei comandi ricevuti scritte ogni secondo
+     *                          (negativo = nessun limite).
+     */
+    public Log(Level level, int bufferSize, int commandsPerSecond) {
+        this.level = level;
+        this.commandsPerSecond = commandsPerSecond;
+        int capacity = Integer.highestOneBit(Math.max(bufferSize - 1, 1)) << 1;
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+
+        Thread writer = new Thread(this::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // I messaggi ancora nel buffer vengono scritti prima che il processo termini.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-flush"));
+    }
+
+    /**
+     * @return true se i messaggi del livello indicato vengono scritti.
+     */
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0 && level != Level.OFF;
+    }
+
+    /**
+     * Indica se scrivere la riga di un comando ricevuto, da chiamare prima di costruirla:
+     * restituisce true al più `commandsPerSecond` volte ogni secondo. Le righe in più vengono contate.
+     */
+    public boolean sampleCommand() {
+        if (!isEnabled(Level.INFO)) {
+            return false;
+        }
+        if (commandsPerSecond < 0) {
+            return true;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        while (true) {
+            long current = commandWindow.get();
+            long count = (current >>> 32) == second ? current & 0xFFFFFFFFL : 0;
+            if (count >= commandsPerSecond) {
+                sampledOut.increment();
+                return false;
+            }
+            if (commandWindow.compareAndSet(current, second << 32 | (count + 1))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Scrive un messaggio di livello DEBUG.
+     *
+     * @param event  Il nome dell'evento, senza spazi.
+     * @param fields Chiavi e valori alternati. I valori vengono convertiti in stringa dal thread del log,
+     *               quindi non devono cambiare dopo la chiamata.
+     */
+    public void debug(String event, Object... fields) {
+        log(Level.DEBUG, event, fields);
+    }
+
+    /**
+     * Scrive un messaggio di livello INFO (vedi debug()).
+     */
+    public void info(String event, Object... fields) {
+        log(Level.INFO, event, fields);
+    }
+
+    /**
+     * Scrive un messaggio di livello WARN (vedi debug()).
+     */
+    public void warn(String event, Object... fields) {
+        log(Level.WARN, event, fields);
+    }
+
+    /**
+     * Scrive un messaggio di livello ERROR (vedi debug()).
+     */
+    public void error(String event, Object... fields) {
+        log(Level.ERROR, event, fields);
+    }
+
+    private void log(Level level, String event, Object[] fields) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= entries.length()) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        entries.set((int) (sequence & mask), new Entry(System.currentTimeMillis(), level, event, fields));
+    }
+
+    /**
+     * @return Il numero di messaggi scartati perché il buffer era pieno.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Il numero di righe dei comandi non scritte per il limite al secondo.
+     */
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            if (!flush()) {
+                LockSupport.parkNanos(POLL_INTERVAL_MS * 1_000_000);
+            }
+        }
+    }
+
+    /**
+     * Scrive i messaggi nel buffer. È sincronizzato perché può essere chiamato anche
+     * alla chiusura del processo, mentre il consumatore del buffer deve essere uno solo.
+     *
+     * @return true se c'erano messaggi da scrivere.
+     */
+    private synchronized boolean flush() {
+        var out = new StringBuilder();
+        var err = new StringBuilder();
+        long position = head;
+        Entry entry;
+        // Un messaggio con il numero già preso ma non ancora scritto ferma la lettura fino al giro successivo.
+        while ((entry = entries.get((int) (position & mask))) != null) {
+            entries.set((int) (position & mask), null);
+            position++;
+            head = position;
+            format(entry, entry.level.compareTo(Level.WARN) >= 0 ? err : out);
+        }
+
+        long totalDropped = dropped.sum();
+        if (totalDropped != reportedDropped) {
+            format(new Entry(System.currentTimeMillis(), Level.WARN, "log.dropped",
+                             new Object[] { "count", totalDropped - reportedDropped, "total", totalDropped }), err);
+            reportedDropped = totalDropped;
+        }
+
+        write(System.out, out);
+        write(System.err, err);
+        return out.length() > 0 || err.length() > 0;
+    }
+
+    private static void write(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder line) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.timestamp), line);
+        line.append(' ').append(entry.level);
+        for (int i = entry.level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(' ').append(entry.event);
+        for (int i = 0; i + 1 < entry.fields.length; i += 2) {
+            line.append(' ').append(entry.fields[i]).append('=');
+            appendValue(String.valueOf(entry.fields[i + 1]), line);
+        }
+        line.append('\n');
+    }
+
+    /**
+     * Aggiunge un valore, tra virgolette se è vuoto o contiene spazi, caratteri di controllo,
+     * virgolette o `=`, così ogni messaggio resta su una riga e si può dividere di nuovo in chiavi e valori.
+     */
+    private static void appendValue(String value, StringBuilder line) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else {
+                if (c == '"' || c == '\\') {
+                    line.append('\\');
+                }
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+}
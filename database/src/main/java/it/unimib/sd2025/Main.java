@@ -1,8 +1,10 @@
 package it.unimib.sd2025;
 
 import java.net.*;
-import java.util.List;
-import java.util.Vector;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
 import it.unimib.sd2025.Database;
 import it.unimib.sd2025.SocketHandler;
@@ -12,32 +14,229 @@ import it.unimib.sd2025.SocketHandler;
  */
 public class Main {
     /**
-     * Porta di ascolto.
+     * Porta di ascolto (proprietà di sistema `db.port`).
      */
-    public static final int PORT = 3030;
+    public static final int PORT = Integer.getInteger("db.port", 3030);
     /**
      * File per inizializzare il db
      */
     public static final String INITIAL_DATA_FILE = "initialData.txt";
+    /**
+     * Millisecondi di inattività dopo cui una connessione viene chiusa.
+     * Configurabile con la proprietà di sistema `db.idleTimeoutMs` (0 = nessun limite).
+     */
+    public static final int IDLE_TIMEOUT_MS = Integer.getInteger("db.idleTimeoutMs", 300_000);
+    /**
+     * Modello di gestione delle connessioni, scelto con la proprietà di sistema `db.server`:
+     * - `thread`: un thread per ogni connessione (default)
+     * - `nio`: un numero fisso di event loop non bloccanti
+     */
+    public static final String SERVER_MODE = System.getProperty("db.server", "thread");
+    /**
+     * Numero di event loop del server NIO (proprietà di sistema `db.nio.loops`).
+     */
+    public static final int NIO_LOOPS = Integer.getInteger("db.nio.loops",
+                                                           Runtime.getRuntime().availableProcessors());
+    /**
+     * Byte di risposte in attesa di essere inviati oltre i quali il server NIO smette di leggere
+     * ed eseguire i comandi di una connessione, finché il client non le riceve
+     * (proprietà `db.nio.maxOutputBuffer`).
+     */
+    public static final int NIO_MAX_OUTPUT_BUFFER = Integer.getInteger("db.nio.maxOutputBuffer", 4 << 20);
+    /**
+     * Numero massimo di connessioni servite contemporaneamente (proprietà `db.maxConnections`).
+     */
+    public static final int MAX_CONNECTIONS = Integer.getInteger("db.maxConnections", 16_384);
+    /**
+     * Numero massimo di connessioni accettate in attesa di essere servite
+     * (proprietà `db.maxQueuedConnections`). Oltre questo limite si smette di accettare.
+     */
+    public static final int MAX_QUEUED_CONNECTIONS = Integer.getInteger("db.maxQueuedConnections", 1024);
+    /**
+     * Dimensione del backlog del socket di ascolto (proprietà `db.acceptBacklog`).
+     */
+    public static final int ACCEPT_BACKLOG = Integer.getInteger("db.acceptBacklog", 1024);
+    /**
+     * Ogni quanti secondi stampare lo stato delle connessioni (proprietà `db.statsIntervalSec`, 0 = mai).
+     */
+    public static final int STATS_INTERVAL_SEC = Integer.getInteger("db.statsIntervalSec", 60);
+    /**
+     * Abilita il log su disco delle scritture (proprietà `db.aof.enabled`).
+     */
+    public static final boolean AOF_ENABLED = Boolean.getBoolean("db.aof.enabled");
+    /**
+     * Percorso del log delle scritture (proprietà `db.aof.file`).
+     */
+    public static final String AOF_FILE = System.getProperty("db.aof.file", "appendonly.log");
+    /**
+     * Politica di fsync del log: `always`, `everysec` (default) o `no` (proprietà `db.aof.fsync`).
+     */
+    public static final String AOF_FSYNC = System.getProperty("db.aof.fsync", "everysec");
+    /**
+     * Dimensione in byte oltre la quale il log viene riscritto (proprietà `db.aof.rewriteMinSize`).
+     */
+    public static final long AOF_REWRITE_MIN_SIZE = Long.getLong("db.aof.rewriteMinSize", 64L << 20);
+    /**
+     * Numero di thread che caricano i dati iniziali (proprietà `db.load.threads`, default uno per core).
+     */
+    public static final int LOAD_THREADS = Integer.getInteger("db.load.threads",
+                                                             Runtime.getRuntime().availableProcessors());
+    /**
+     * Percorso dello snapshot binario del database (proprietà `db.snapshot.file`).
+     */
+    public static final String SNAPSHOT_FILE = System.getProperty("db.snapshot.file", "dump.sdb");
+    /**
+     * Ogni quanti secondi salvare lo snapshot se ci sono state scritture
+     * (proprietà `db.snapshot.intervalSec`, 0 = solo con SAVE/BGSAVE).
+     */
+    public static final int SNAPSHOT_INTERVAL_SEC = Integer.getInteger("db.snapshot.intervalSec", 0);
+    /**
+     * Porta su cui accettare le repliche (proprietà `db.replication.port`, 0 = nessuna replica).
+     */
+    public static final int REPLICATION_PORT = Integer.getInteger("db.replication.port", 0);
+    /**
+     * Primario da cui replicare all'avvio, come `host:porta` della sua porta di replica
+     * (proprietà `db.replicaof`). Se non è indicato il database parte come primario.
+     */
+    public static final String REPLICA_OF = System.getProperty("db.replicaof");
+    /**
+     * Numero massimo di scritture in coda per una replica prima di scollegarla
+     * (proprietà `db.replication.backlog`).
+     */
+    public static final int REPLICATION_BACKLOG = Integer.getInteger("db.replication.backlog", 1_000_000);
+    /**
+     * Millisecondi senza ricevere nulla dal primario dopo cui una replica considera caduto
+     * il collegamento (proprietà `db.replication.timeoutMs`).
+     */
+    public static final int REPLICATION_TIMEOUT_MS = Integer.getInteger("db.replication.timeoutMs", 5000);
+    /**
+     * Millisecondi senza il primario dopo cui una replica diventa primario da sola
+     * (proprietà `db.replication.failoverMs`, 0 = solo con PROMOTE).
+     */
+    public static final long FAILOVER_MS = Long.getLong("db.replication.failoverMs", 0);
+    /**
+     * Numero massimo di eventi in coda per una connessione iscritta con SUBSCRIBE prima di scollegarla
+     * (proprietà `db.pubsub.maxPending`).
+     */
+    public static final int PUBSUB_MAX_PENDING = Integer.getInteger("db.pubsub.maxPending", 10_000);
+    /**
+     * Durata in microsecondi da cui un comando viene salvato nello SLOWLOG
+     * (proprietà `db.slowlog.thresholdUs`, negativa = nessun comando).
+     */
+    public static final long SLOWLOG_THRESHOLD_US = Long.getLong("db.slowlog.thresholdUs", 10_000);
+    /**
+     * Numero massimo di comandi tenuti nello SLOWLOG (proprietà `db.slowlog.maxLength`).
+     */
+    public static final int SLOWLOG_MAX_LENGTH = Integer.getInteger("db.slowlog.maxLength", 128);
+    /**
+     * Livello minimo dei messaggi del log: `debug`, `info` (default), `warn`, `error` o `off`
+     * (proprietà `db.log.level`).
+     */
+    public static final String LOG_LEVEL = System.getProperty("db.log.level", "info");
+    /**
+     * Numero massimo di messaggi in attesa di essere scritti, oltre il quale vengono scartati
+     * (proprietà `db.log.bufferSize`).
+     */
+    public static final int LOG_BUFFER_SIZE = Integer.getInteger("db.log.bufferSize", 8192);
+    /**
+     * Numero massimo di comandi ricevuti scritti nel log ogni secondo
+     * (proprietà `db.log.commandsPerSec`, negativo = tutti).
+     */
+    public static final int LOG_COMMANDS_PER_SEC = Integer.getInteger("db.log.commandsPerSec", 100);
 
     /**
-     * Avvia il database e l'ascolto di nuove connessioni.
+     * Log del database, scritto da un thread separato (vedi Log). Tutti i messaggi passano da qui.
+     */
+    public static final Log log = new Log(Log.Level.valueOf(LOG_LEVEL.toUpperCase()), LOG_BUFFER_SIZE,
+                                          LOG_COMMANDS_PER_SEC);
+    /**
+     * Momento dell'avvio in millisecondi, per il tempo di attività restituito da INFO.
+     */
+    public static final long startTime = System.currentTimeMillis();
+    /**
+     * Chiamate, errori e durate dei comandi ricevuti dai client, restituiti da INFO.
+     */
+    public static final CommandStats commandStats = new CommandStats(CommandProcessor.COMMANDS);
+    /**
+     * Ultimi comandi lenti ricevuti dai client, restituiti da SLOWLOG.
+     */
+    public static final SlowLog slowLog = new SlowLog(SLOWLOG_THRESHOLD_US, SLOWLOG_MAX_LENGTH);
+    /**
+     * Contatori e limiti delle connessioni, condivisi dai due modelli di server.
+     */
+    public static final ConnectionLimiter connectionLimiter = new ConnectionLimiter(MAX_CONNECTIONS,
+                                                                                  MAX_QUEUED_CONNECTIONS);
+    /**
+     * Snapshot binario del database, usato dai comandi SAVE e BGSAVE.
+     */
+    public static final SnapshotFile snapshotFile = new SnapshotFile(Database.getInstance(), Path.of(SNAPSHOT_FILE));
+    /**
+     * Ruolo del database (primario o replica), usato dai comandi ROLE, REPLICAOF e PROMOTE.
+     */
+    public static final Replication replication = new Replication(Database.getInstance(), REPLICATION_TIMEOUT_MS,
+                                                                  FAILOVER_MS);
+    /**
+     * Eventi delle chiavi modificate, usati dai comandi SUBSCRIBE e UNSUBSCRIBE.
+     */
+    public static final PubSub pubSub = new PubSub(Database.getInstance(), PUBSUB_MAX_PENDING);
+
+    /**
+     * Avvia il database e l'ascolto di nuove connessioni,
+     * con un virtual thread per ogni connessione.
+     * Le connessioni oltre MAX_CONNECTIONS aspettano in coda e, quando anche la coda
+     * è piena, si smette di accettare finché non si libera un posto.
      */
     public static void startServer() throws IOException {
-        var server = new ServerSocket(PORT);
+        var server = new ServerSocket(PORT, ACCEPT_BACKLOG);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
 
-        System.out.println("Database listening at localhost:" + PORT);
+        log.info("server.listening", "port", PORT, "mode", "thread");
 
         try {
-            while (true)
-                new SocketHandler(server.accept()).start();
+            while (true) {
+                connectionLimiter.awaitQueueSlot();
+                Socket socket = server.accept();
+                connectionLimiter.accepted();
+                executor.execute(() -> connectionLimiter.serve(new SocketHandler(socket)));
+            }
         } catch (IOException e) {
-            System.err.println(e);
+            log.error("server.error", "error", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             server.close();
+            executor.shutdown();
         }
     }
 
+    /**
+     * Stampa periodicamente il numero di connessioni attive e in coda,
+     * solo se è cambiato dall'ultima stampa.
+     */
+    private static void startStatsReporter() {
+        if (STATS_INTERVAL_SEC <= 0) {
+            return;
+        }
+        var reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        var last = new String[] { "" };
+        reporter.scheduleAtFixedRate(() -> {
+            int active = connectionLimiter.getActive();
+            int queued = connectionLimiter.getQueued();
+            long accepted = connectionLimiter.getAccepted();
+            long throttled = connectionLimiter.getThrottled();
+            String stats = active + " " + queued + " " + accepted + " " + throttled;
+            if (!stats.equals(last[0])) {
+                log.info("connections", "active", active, "queued", queued, "accepted", accepted,
+                         "throttled", throttled);
+                last[0] = stats;
+            }
+        }, STATS_INTERVAL_SEC, STATS_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
     /**
      * Metodo principale di avvio del database.
      *
@@ -46,62 +245,92 @@ public class Main {
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
-        // Inizializza il database con dati presi da un file.
-        initialize();
+        if (AOF_ENABLED) {
+            startAppendOnlyLog();
+        } else {
+            load();
+        }
+
+        Database.getInstance().addWriteListener(snapshotFile);
+        if (REPLICATION_PORT > 0) {
+            var source = new ReplicationSource(Database.getInstance(), REPLICATION_PORT, REPLICATION_BACKLOG);
+            Database.getInstance().addWriteListener(source);
+            source.start();
+        }
+        if (REPLICA_OF != null) {
+            // Una replica parte con i dati caricati, che restano disponibili in lettura
+            // finché il primario non invia i suoi.
+            int separator = REPLICA_OF.lastIndexOf(':');
+            replication.replicaOf(REPLICA_OF.substring(0, separator),
+                                  Integer.parseInt(REPLICA_OF.substring(separator + 1)));
+        } else {
+            // Le scadenze e il limite di memoria vengono applicati solo ora che i dati sono stati caricati.
+            Database.getInstance().startExpiring();
+            Database.getInstance().startMemoryLimit();
+        }
+        if (SNAPSHOT_INTERVAL_SEC > 0) {
+            snapshotFile.startPeriodic(SNAPSHOT_INTERVAL_SEC);
+        }
+
+        startStatsReporter();
 
         // Inizia l'ascolto delle connessioni.
-        startServer();
+        if (SERVER_MODE.equalsIgnoreCase("nio")) {
+            new NioServer(PORT, NIO_LOOPS).start();
+        } else {
+            startServer();
+        }
+    }
+
+    /**
+     * Ripristina il database dal log delle scritture, se esiste, altrimenti lo
+     * carica dallo snapshot o dai dati iniziali; poi inizia a salvare le nuove scritture.
+     */
+    private static void startAppendOnlyLog() throws IOException {
+        Database db = Database.getInstance();
+        var policy = AppendOnlyLog.FsyncPolicy.valueOf(AOF_FSYNC.toUpperCase());
+        var aof = new AppendOnlyLog(db, Path.of(AOF_FILE), policy, AOF_REWRITE_MIN_SIZE);
+
+        if (aof.exists()) {
+            long start = System.currentTimeMillis();
+            long count = aof.replay();
+            log.info("aof.restored", "file", AOF_FILE, "commands", count, "ms", System.currentTimeMillis() - start);
+        } else {
+            load();
+        }
+
+        aof.start();
+        db.addWriteListener(aof);
+    }
+
+    /**
+     * Carica il database dallo snapshot binario, se esiste, altrimenti dai dati iniziali.
+     */
+    private static void load() throws IOException {
+        if (snapshotFile.exists()) {
+            long start = System.currentTimeMillis();
+            long keys = snapshotFile.load();
+            log.info("snapshot.loaded", "file", SNAPSHOT_FILE, "keys", keys, "ms", System.currentTimeMillis() - start);
+        } else {
+            // Inizializza il database con dati presi da un file.
+            initialize();
+        }
     }
 
     /**
      * Inizializza il database con i dati iniziali.
-     * Legge i dati da `initialData.txt` e li inserisce nel database.
+     * Legge i dati da `initialData.txt` e li inserisce nel database,
+     * dividendo il file tra più thread (vedi BulkLoader).
      */
     public static void initialize() {
         // Inizializza il database.
         Database db = Database.getInstance();
 
-        /*
-         * Legge i dati da `initialData.txt` e li inserisce nel db
-         * Se la riga inizia con `-` vuol dire che il dato è una stringa, nel formato
-         * `-key value`
-         * Se la riga inizia con `+` vuol dire che il dato è una lista, nel formato
-         * `+key value1 value2 ...`
-         */
-        try (BufferedReader reader = new BufferedReader(new FileReader(INITIAL_DATA_FILE))) {
-            System.out.println("Initializing database with data from " + INITIAL_DATA_FILE);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
-                    continue; // Salta le righe vuote
-                }
-                if (line.startsWith("-")) {
-                    // Rimuove il prefisso '-' e divide la riga in chiave e valore (stringa)
-                    String[] parts = line.substring(1).split(" ", 2);
-                    if (parts.length == 2) {
-                        db.set(parts[0].trim(), parts[1].trim());
-                    } else {
-                        System.err.println("Invalid format for string: " + line);
-                    }
-                } else if (line.startsWith("+")) {
-                    // Rimuove il prefisso '+' e divide la riga in chiave e valori (lista)
-                    String[] parts = line.substring(1).split(" ");
-                    if (parts.length > 1) {
-                        String key = parts[0].trim();
-                        String[] values = new String[parts.length - 1];
-                        System.arraycopy(parts, 1, values, 0, parts.length - 1);
-                        db.setl(key, new Vector<>(List.of(values)));
-                    } else {
-                        System.err.println("Invalid format for list: " + line);
-                    }
-                } else {
-                    System.err.println("Unknown format: " + line);
-                }
-            }
+        try {
+            log.info("load.start", "file", INITIAL_DATA_FILE);
+            new BulkLoader(db, LOAD_THREADS).load(Path.of(INITIAL_DATA_FILE));
         } catch (IOException e) {
-            System.err.println("Error reading initial data: " + e.getMessage());
+            log.error("load.error", "file", INITIAL_DATA_FILE, "error", e.getMessage());
         }
-        System.out.println("Database initialized with initial data.");
     }
 }
@@ -0,0 +1,611 @@
+package it.unimib.sd2025;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Server non bloccante basato su java.nio.
+ * Un thread accetta le connessioni e le distribuisce a turno su un numero fisso
+ * di event loop. Ogni event loop gestisce le sue connessioni con un Selector,
+ * quindi il numero di thread non dipende dal numero di client connessi.
+ * I protocolli sono gli stessi di SocketHandler: una riga per comando e una riga per risposta,
+ * oppure dopo PROTOCOL BINARY comandi e risposte del protocollo binario.
+ * Gli eventi delle connessioni iscritte con SUBSCRIBE (vedi PubSub) vengono scritti dall'event loop
+ * della connessione, che viene svegliato quando ne arrivano.
+ * Come nel modello a thread, si servono al massimo Main.MAX_CONNECTIONS connessioni insieme:
+ * oltre quel limite si smette di accettare finché una connessione non viene chiusa.
+ *
+ * I comandi che possono attendere a lungo (vedi CommandProcessor.mayBlock()) non vengono eseguiti
+ * sull'event loop, che altrimenti servirebbe in ritardo tutte le sue connessioni, ma su un virtual
+ * thread: la connessione smette di leggere ed eseguire comandi finché non arriva la risposta,
+ * così le risposte restano nell'ordine dei comandi. Sono EXEC, MSET, CLEARPREFIX, SAVE, i comandi
+ * che possono occupare memoria quando il limite di memoria cancella chiavi e, con `db.aof.fsync=always`,
+ * tutte le scritture. Con `always` quindi ogni connessione attende la fsync di una scrittura prima di
+ * eseguire il comando successivo, come nel modello a thread, ma l'event loop continua a servire
+ * le altre, le cui scritture finiscono nella stessa fsync (group commit).
+ */
+public class NioServer {
+    /**
+     * Lunghezza massima di una riga o di un comando binario in ingresso.
+     */
+    private static final int MAX_LINE_LENGTH = TextProtocol.MAX_LINE_LENGTH;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /**
+     * Ogni quanti millisecondi cercare le connessioni inattive da chiudere.
+     */
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    /**
+     * @param port      Porta di ascolto.
+     * @param loopCount Numero di event loop da avviare.
+     */
+    public NioServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Avvia gli event loop e accetta le connessioni finché il server è attivo.
+     */
+    public void start() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            Main.log.info("server.listening", "port", port, "mode", "nio", "event_loops", loops.length);
+
+            int next = 0;
+            while (true) {
+                Main.connectionLimiter.awaitSlot();
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    Main.connectionLimiter.releaseSlot();
+                    throw e;
+                }
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Thread che gestisce un insieme di connessioni con un Selector.
+     */
+    private static class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Connessioni iscritte che hanno eventi da inviare.
+        private final ConcurrentLinkedQueue<Connection> notified = new ConcurrentLinkedQueue<>();
+        // Connessioni il cui comando eseguito su un virtual thread ha una risposta.
+        private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<>();
+        private final CommandProcessor processor = new CommandProcessor();
+        // Connessioni non iscritte in ordine di ultima attività: la prima è quella inattiva da più tempo,
+        // quindi per trovare quelle da chiudere basta scorrere finché non se ne trova una attiva.
+        private final LinkedHashSet<Connection> byActivity = new LinkedHashSet<>();
+        private long nextIdleCheck = 0;
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Passa una nuova connessione all'event loop.
+         * Può essere chiamato da qualsiasi thread.
+         */
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(1000);
+                    registerPending();
+                    resumeCompleted();
+                    sendEvents();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+
+                    closeIdleConnections();
+                } catch (IOException e) {
+                    Main.log.error("eventloop.error", "error", e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Connection connection = new Connection(channel);
+                    channel.register(selector, SelectionKey.OP_READ, connection);
+                    byActivity.add(connection);
+                    Main.connectionLimiter.opened();
+                    Main.log.info("connection.open", "client", connection.address);
+                } catch (IOException e) {
+                    Main.log.warn("connection.register_error", "error", e.getMessage());
+                    closeQuietly(channel);
+                    Main.connectionLimiter.releaseSlot();
+                }
+            }
+        }
+
+        /**
+         * Invia le risposte dei comandi eseguiti su un virtual thread e riprende l'esecuzione
+         * dei comandi ricevuti nel frattempo.
+         */
+        private void resumeCompleted() {
+            Connection connection;
+            while ((connection = completed.poll()) != null) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key == null || !key.isValid()) {
+                    // Connessione chiusa mentre il comando era in esecuzione.
+                    continue;
+                }
+                try {
+                    connection.resume(key);
+                } catch (IOException e) {
+                    Main.log.warn("connection.error", "client", connection.address, "error", e.getMessage());
+                    close(key);
+                }
+            }
+        }
+
+        /**
+         * Scrive gli eventi arrivati per le connessioni iscritte.
+         */
+        private void sendEvents() {
+            Connection connection;
+            while ((connection = notified.poll()) != null) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key == null || !key.isValid()) {
+                    continue;
+                }
+                try {
+                    connection.sendEvents(key);
+                } catch (IOException e) {
+                    Main.log.warn("connection.error", "client", connection.address, "error", e.getMessage());
+                    close(key);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid()) {
+                    connection.flush(key);
+                }
+                if (key.isValid()) {
+                    connection.sendEvents(key);
+                }
+            } catch (IOException e) {
+                Main.log.warn("connection.error", "client", connection.address, "error", e.getMessage());
+                close(key);
+            }
+        }
+
+        /**
+         * Chiude le connessioni inattive da più di Main.IDLE_TIMEOUT_MS, al più una volta
+         * ogni IDLE_CHECK_INTERVAL_MS: si guardano solo quelle scadute, non tutte.
+         * Le connessioni iscritte non vengono chiuse, perché possono non inviare niente per molto tempo.
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (Main.IDLE_TIMEOUT_MS <= 0 || now < nextIdleCheck) {
+                return;
+            }
+            nextIdleCheck = now + IDLE_CHECK_INTERVAL_MS;
+
+            List<Connection> idle = new ArrayList<>();
+            for (Connection connection : byActivity) {
+                if (now - connection.lastActivity <= Main.IDLE_TIMEOUT_MS) {
+                    break;
+                }
+                if (!connection.waiting) {
+                    idle.add(connection);
+                }
+            }
+            for (Connection connection : idle) {
+                Main.log.info("connection.timeout", "client", connection.address);
+                close(connection.channel.keyFor(selector));
+            }
+        }
+
+        /**
+         * Chiude una connessione registrata sul selector.
+         */
+        private void close(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            byActivity.remove(connection);
+            if (connection != null && connection.subscribed != null) {
+                connection.subscribed.close();
+            }
+            key.cancel();
+            closeQuietly(key.channel());
+            Main.connectionLimiter.closed();
+        }
+
+        private static void closeQuietly(Channel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Main.log.warn("connection.close_error", "error", e.getMessage());
+            }
+        }
+
+        /**
+         * Stato di una connessione: buffer di lettura, buffer di scrittura
+         * e flag di chiusura.
+         * Quando le risposte in attesa superano Main.NIO_MAX_OUTPUT_BUFFER la connessione smette di
+         * leggere ed eseguire comandi, così un client che invia comandi senza leggere le risposte
+         * non fa crescere il buffer di scrittura senza limite: i comandi già ricevuti restano nel
+         * buffer di lettura e vengono eseguiti quando il client ha ricevuto abbastanza risposte.
+         */
+        private class Connection {
+            private final SocketChannel channel;
+            private final String address;
+            private final Session session;
+            private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            private boolean received = false;
+            private boolean closing = false;
+            // Il client ha chiuso il suo lato, ma possono restare comandi da eseguire.
+            private boolean endOfInput = false;
+            // L'esecuzione dei comandi ricevuti è stata sospesa perché il buffer di scrittura è pieno.
+            private boolean inputPaused = false;
+            // Un comando è in esecuzione su un virtual thread: i successivi attendono la sua risposta.
+            private boolean waiting = false;
+            // Risposta del comando eseguito su un virtual thread, passata all'event loop tramite `completed`.
+            private Reply workerReply;
+            private long lastActivity = System.currentTimeMillis();
+            // Iscrizione della sessione di cui l'event loop viene avvisato, null se non è iscritta.
+            private PubSub.Subscriber subscribed;
+
+            Connection(SocketChannel channel) throws IOException {
+                this.channel = channel;
+                this.address = String.valueOf(channel.getRemoteAddress());
+                this.session = new Session(address);
+            }
+
+            /**
+             * Legge i dati disponibili ed esegue tutte le righe complete ricevute.
+             */
+            void read() throws IOException {
+                if (closing || endOfInput) {
+                    return;
+                }
+                int read = channel.read(readBuffer);
+                lastActivity = System.currentTimeMillis();
+                if (subscribed == null) {
+                    // Diventa l'ultima connessione da chiudere per inattività.
+                    byActivity.remove(this);
+                    byActivity.add(this);
+                }
+                endOfInput = read == -1;
+
+                processInput();
+            }
+
+            /**
+             * Esegue i comandi completi ricevuti finché c'è posto nel buffer di scrittura.
+             * Quando il client ha chiuso il suo lato e sono stati eseguiti tutti, si esegue l'eventuale
+             * ultima riga senza terminatore, si risponde e poi si chiude.
+             */
+            private void processInput() {
+                processCommands();
+                if (inputPaused || closing || waiting) {
+                    return;
+                }
+                if (endOfInput) {
+                    // Un comando binario incompleto invece viene scartato.
+                    if (readBuffer.position() > 0 && !session.isBinary()) {
+                        if (!readBuffer.hasRemaining()) {
+                            growReadBuffer();
+                        }
+                        readBuffer.put((byte) '\n');
+                        processCommands();
+                    }
+                    if (!received) {
+                        appendReplyOrResponse(Reply.error("No input received"));
+                    }
+                    closing = true;
+                } else if (!readBuffer.hasRemaining()) {
+                    growReadBuffer();
+                }
+            }
+
+            /**
+             * @return true se le risposte in attesa hanno raggiunto Main.NIO_MAX_OUTPUT_BUFFER.
+             */
+            private boolean outputFull() {
+                return writeBuffer.position() >= Main.NIO_MAX_OUTPUT_BUFFER;
+            }
+
+            /**
+             * Esegue tutti i comandi completi nel buffer di lettura, righe del protocollo
+             * testuale o comandi del protocollo binario a seconda della sessione,
+             * fermandosi se il buffer di scrittura si riempie.
+             */
+            private void processCommands() {
+                inputPaused = false;
+                readBuffer.flip();
+                while (!closing && !waiting && readBuffer.hasRemaining()) {
+                    if (outputFull()) {
+                        inputPaused = true;
+                        break;
+                    }
+                    if (session.isBinary()) {
+                        String[] command;
+                        try {
+                            command = BinaryProtocol.parseCommand(readBuffer);
+                        } catch (BinaryProtocol.ProtocolException e) {
+                            // Dopo un comando non valido non si può ritrovare l'inizio del successivo.
+                            appendReply(Reply.error(e.getMessage()));
+                            closing = true;
+                            break;
+                        }
+                        if (command == null) {
+                            break;
+                        }
+                        received = true;
+
+                        if (command[0].equalsIgnoreCase("quit")) {
+                            appendReply(Reply.ok());
+                            closing = true;
+                        } else if (CommandProcessor.mayBlock(session, command[0].toLowerCase())) {
+                            runOnWorker(() -> processor.process(session, command));
+                        } else {
+                            appendReply(processor.process(session, command));
+                            updateSubscription();
+                        }
+                    } else {
+                        int start = readBuffer.position();
+                        int end = start;
+                        while (end < readBuffer.limit() && readBuffer.get(end) != '\n') {
+                            end++;
+                        }
+                        if (end == readBuffer.limit()) {
+                            break;
+                        }
+                        // La riga viene letta direttamente dal buffer, senza copiarla.
+                        byte[] line = readBuffer.array();
+                        readBuffer.position(end + 1);
+                        received = true;
+
+                        if (TextProtocol.isQuit(line, start, end)) {
+                            appendResponse(Reply.ok());
+                            closing = true;
+                        } else if (CommandProcessor.mayBlock(session, TextProtocol.commandName(line, start, end))) {
+                            // Il buffer di lettura viene riusato mentre il comando è in esecuzione.
+                            byte[] copy = Arrays.copyOfRange(line, start, end);
+                            runOnWorker(() -> processor.process(session, copy, 0, copy.length));
+                        } else {
+                            appendResponse(processor.process(session, line, start, end));
+                            updateSubscription();
+                        }
+                    }
+                }
+                readBuffer.compact();
+            }
+
+            /**
+             * Esegue un comando su un virtual thread; quando c'è la risposta l'event loop
+             * la invia e riprende con i comandi successivi (vedi resume()).
+             */
+            private void runOnWorker(Supplier<Reply> command) {
+                waiting = true;
+                Thread.ofVirtual().name("nio-command-" + address).start(() -> {
+                    try {
+                        workerReply = command.get();
+                    } catch (RuntimeException e) {
+                        Main.log.error("command.error", "client", address, "error", e.getMessage());
+                        workerReply = Reply.error("Internal error");
+                    }
+                    completed.add(this);
+                    selector.wakeup();
+                });
+            }
+
+            /**
+             * Invia la risposta del comando eseguito su un virtual thread ed esegue i comandi
+             * ricevuti nel frattempo.
+             */
+            void resume(SelectionKey key) throws IOException {
+                waiting = false;
+                lastActivity = System.currentTimeMillis();
+                appendReplyOrResponse(workerReply);
+                workerReply = null;
+                processInput();
+                flush(key);
+            }
+
+            /**
+             * Dopo SUBSCRIBE chiede di essere avvisato quando arrivano eventi; dopo UNSUBSCRIBE
+             * smette di inviarli (quelli ancora in coda vengono scartati).
+             */
+            private void updateSubscription() {
+                if (session.getSubscriber() == subscribed) {
+                    return;
+                }
+                subscribed = session.getSubscriber();
+                if (subscribed == null) {
+                    byActivity.add(this);
+                } else {
+                    byActivity.remove(this);
+                    subscribed.onPending(() -> {
+                        notified.add(this);
+                        selector.wakeup();
+                    });
+                    // Eventi arrivati prima di chiedere di essere avvisati.
+                    notified.add(this);
+                }
+            }
+
+            /**
+             * Scrive gli eventi in coda, solo quando le risposte precedenti sono state inviate:
+             * un client che non legge resta con gli eventi nella coda limitata dell'iscrizione,
+             * non nel buffer di scrittura. Se la coda si è riempita la connessione viene chiusa.
+             */
+            void sendEvents(SelectionKey key) throws IOException {
+                if (subscribed == null || closing || waiting) {
+                    return;
+                }
+                if (subscribed.isOverflowed()) {
+                    Main.log.warn("subscriber.overflow", "client", address);
+                    appendReplyOrResponse(Reply.error("Too many pending events"));
+                    writeBuffer.flip();
+                    channel.write(writeBuffer);
+                    close(key);
+                    return;
+                }
+                if (writeBuffer.position() > 0) {
+                    // handle() riprova dopo aver inviato il resto.
+                    return;
+                }
+                List<Reply> events = new ArrayList<>();
+                subscribed.drainTo(events);
+                if (events.isEmpty()) {
+                    return;
+                }
+                for (Reply event : events) {
+                    appendReplyOrResponse(event);
+                }
+                flush(key);
+            }
+
+            private void appendReplyOrResponse(Reply reply) {
+                if (session.isBinary()) {
+                    appendReply(reply);
+                } else {
+                    appendResponse(reply);
+                }
+            }
+
+            private void growReadBuffer() {
+                if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                    appendReplyOrResponse(Reply.error(session.isBinary() ? "Command too long" : "Line too long"));
+                    closing = true;
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_LINE_LENGTH));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+
+            /**
+             * Scrive una risposta del protocollo testuale direttamente nel buffer di scrittura.
+             */
+            private void appendResponse(Reply reply) {
+                ensureWritable(reply.textSize());
+                reply.writeText(writeBuffer);
+            }
+
+            /**
+             * Scrive una risposta del protocollo binario direttamente nel buffer di scrittura.
+             */
+            private void appendReply(Reply reply) {
+                ensureWritable(reply.binarySize());
+                reply.writeBinary(writeBuffer);
+            }
+
+            private void ensureWritable(int size) {
+                if (writeBuffer.remaining() < size) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2,
+                                                                     writeBuffer.position() + size));
+                    writeBuffer.flip();
+                    bigger.put(writeBuffer);
+                    writeBuffer = bigger;
+                }
+            }
+
+            /**
+             * Scrive le risposte in attesa. Se il socket non accetta tutti i dati
+             * si registra per OP_WRITE e riprova quando è scrivibile.
+             * Se si era smesso di eseguire comandi perché il buffer di scrittura era pieno
+             * e ora c'è di nuovo posto, si eseguono quelli già ricevuti; si torna a leggere
+             * dal socket solo quando il buffer non è pieno.
+             */
+            void flush(SelectionKey key) throws IOException {
+                boolean done = write();
+                while (inputPaused && !outputFull() && !closing) {
+                    processInput();
+                    done = write();
+                }
+
+                if (done && closing) {
+                    close(key);
+                } else if (closing) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    int ops = done ? 0 : SelectionKey.OP_WRITE;
+                    if (!inputPaused && !waiting && !outputFull() && !endOfInput) {
+                        ops |= SelectionKey.OP_READ;
+                    }
+                    key.interestOps(ops);
+                }
+            }
+
+            /**
+             * Invia quanto possibile del buffer di scrittura.
+             *
+             * @return true se è stato inviato tutto.
+             */
+            private boolean write() throws IOException {
+                writeBuffer.flip();
+                if (writeBuffer.hasRemaining()) {
+                    channel.write(writeBuffer);
+                }
+                boolean done = !writeBuffer.hasRemaining();
+                writeBuffer.compact();
+
+                if (done && writeBuffer.capacity() > BUFFER_SIZE) {
+                    writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                }
+                return done;
+            }
+        }
+    }
+}
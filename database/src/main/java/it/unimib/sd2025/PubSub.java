@@ -0,0 +1,252 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Notifiche delle chiavi modificate, per i client che tengono una cache dei dati.
+ *
+ * Una connessione che invia SUBSCRIBE con uno o più pattern (`*` vale qualsiasi sequenza di caratteri,
+ * `?` un carattere) riceve un evento per ogni chiave modificata che corrisponde ad almeno un pattern,
+ * con la chiave e la scrittura che l'ha modificata: il nome del comando salvato nel log (`set`, `seth`,
+ * `addl`, `clear`, `pexpireat`...), quindi anche le chiavi scadute o cancellate per il limite di memoria
+ * arrivano come `clear`, `clearl` o `clearh`. Gli eventi vengono generati come le scritture del log
+ * (vedi WriteListener), quindi per la stessa chiave arrivano nell'ordine delle scritture.
+ *
+ * Ogni iscritto ha una coda limitata: gli eventi vengono aggiunti senza mai bloccare chi scrive e,
+ * se la coda è piena, l'iscritto viene scollegato. Per una cache perdere un evento vuol dire tenere
+ * un dato vecchio, quindi è meglio che il client si accorga della disconnessione e svuoti la cache.
+ * Il database riceve le scritture solo mentre c'è almeno un iscritto.
+ */
+public class PubSub implements WriteListener {
+    // Aggiunto alla coda alla chiusura, per svegliare chi aspetta con take().
+    private static final Reply CLOSED = Reply.status("CLOSED");
+
+    private final Database db;
+    private final int maxPending;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param maxPending Numero massimo di eventi in coda per un iscritto prima di scollegarlo.
+     */
+    public PubSub(Database db, int maxPending) {
+        this.db = db;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Iscritto, con i suoi pattern e gli eventi non ancora inviati.
+     * Gli eventi e le risposte ai comandi della connessione passano dalla stessa coda,
+     * così chi la svuota è l'unico a scrivere sul socket.
+     */
+    public class Subscriber {
+        private final Set<String> patterns = ConcurrentHashMap.newKeySet();
+        private final LinkedBlockingQueue<Reply> queue = new LinkedBlockingQueue<>(maxPending);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile Runnable onPending;
+        private volatile boolean overflowed;
+        private volatile boolean closed;
+
+        /**
+         * Indica cosa fare quando arrivano eventi e la coda era vuota, ad esempio svegliare
+         * l'event loop della connessione. Senza, chi svuota la coda deve aspettare con take().
+         * Chi la svuota deve smettere quando l'iscritto è chiuso o è rimasto troppo indietro.
+         */
+        public void onPending(Runnable onPending) {
+            this.onPending = onPending;
+        }
+
+        /**
+         * @return Il numero di pattern dopo l'iscrizione.
+         */
+        public int subscribe(Collection<String> newPatterns) {
+            patterns.addAll(newPatterns);
+            return patterns.size();
+        }
+
+        /**
+         * @param oldPatterns I pattern da rimuovere, tutti se è vuoto.
+         * @return Il numero di pattern rimasti.
+         */
+        public int unsubscribe(Collection<String> oldPatterns) {
+            if (oldPatterns.isEmpty()) {
+                patterns.clear();
+            } else {
+                patterns.removeAll(oldPatterns);
+            }
+            return patterns.size();
+        }
+
+        boolean matches(String key) {
+            for (String pattern : patterns) {
+                if (PubSub.matches(pattern, key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Aggiunge un evento o una risposta alla coda senza bloccare.
+         * Se la coda è piena l'iscritto viene scollegato.
+         */
+        void offer(Reply reply) {
+            if (overflowed) {
+                return;
+            }
+            if (!queue.offer(reply)) {
+                overflowed = true;
+                remove(this);
+            }
+            Runnable callback = onPending;
+            // Se la coda si è appena riempita l'avviso serve anche se c'erano già eventi.
+            if (callback != null && (!scheduled.getAndSet(true) || overflowed)) {
+                callback.run();
+            }
+        }
+
+        /**
+         * Accoda la risposta a un comando della connessione, che viene inviata dopo gli eventi già in coda.
+         */
+        public void reply(Reply reply) {
+            offer(reply);
+        }
+
+        /**
+         * Toglie dalla coda tutto quello che c'è.
+         *
+         * @return true se l'iscritto è stato chiuso e quindi dopo questi non arriverà più niente.
+         */
+        public boolean drainTo(List<Reply> replies) {
+            scheduled.set(false);
+            int start = replies.size();
+            queue.drainTo(replies);
+            boolean end = replies.subList(start, replies.size()).remove(CLOSED);
+            return end || (closed && queue.isEmpty());
+        }
+
+        /**
+         * Aspetta che arrivi qualcosa nella coda, oppure che l'iscritto venga chiuso.
+         *
+         * @return Il primo elemento, oppure null se l'iscritto è stato chiuso.
+         */
+        public Reply take() throws InterruptedException {
+            Reply reply = queue.take();
+            return reply == CLOSED ? null : reply;
+        }
+
+        /**
+         * @return true se l'iscritto è rimasto troppo indietro e va scollegato.
+         */
+        public boolean isOverflowed() {
+            return overflowed;
+        }
+
+        /**
+         * @return true se la connessione ha chiamato close(), quindi non arriveranno altri eventi.
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Smette di ricevere eventi, alla chiusura della connessione o dopo UNSUBSCRIBE.
+         * Quello che è già in coda può ancora essere tolto.
+         */
+        public void close() {
+            closed = true;
+            remove(this);
+            queue.offer(CLOSED);
+        }
+    }
+
+    /**
+     * Crea un nuovo iscritto, che inizia subito a ricevere gli eventi delle chiavi
+     * che corrispondono ai suoi pattern.
+     */
+    public Subscriber subscriber() {
+        Subscriber subscriber = new Subscriber();
+        synchronized (this) {
+            if (subscribers.isEmpty()) {
+                db.addWriteListener(this);
+            }
+            subscribers.add(subscriber);
+        }
+        return subscriber;
+    }
+
+    private synchronized void remove(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        if (subscribers.isEmpty()) {
+            db.removeWriteListener(this);
+        }
+    }
+
+    /**
+     * @return Il numero di connessioni iscritte.
+     */
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void onWrite(List<String[]> commands) {
+        for (Subscriber subscriber : subscribers) {
+            for (String[] command : commands) {
+                String operation = command[0].toLowerCase();
+                if (operation.equals("mset")) {
+                    for (int i = 1; i < command.length; i += 2) {
+                        if (subscriber.matches(command[i])) {
+                            subscriber.offer(event(command[i], "set"));
+                        }
+                    }
+                } else if (subscriber.matches(command[1])) {
+                    subscriber.offer(event(command[1], operation));
+                }
+            }
+        }
+    }
+
+    private static Reply event(String key, String operation) {
+        List<String> values = new ArrayList<>(2);
+        values.add(key);
+        values.add(operation);
+        return Reply.event(values);
+    }
+
+    /**
+     * Confronta una chiave con un pattern in cui `*` vale qualsiasi sequenza di caratteri
+     * e `?` un carattere qualsiasi. Dopo un `*` che non porta a una corrispondenza si riprova
+     * dal carattere successivo, quindi il costo è al più proporzionale al prodotto delle lunghezze.
+     */
+    static boolean matches(String pattern, String key) {
+        int p = 0;
+        int k = 0;
+        int star = -1;
+        int starKey = 0;
+        while (k < key.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == key.charAt(k))) {
+                p++;
+                k++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                starKey = k;
+            } else if (star >= 0) {
+                p = star + 1;
+                k = ++starKey;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
@@ -0,0 +1,221 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Ruolo del database: primario, che accetta le scritture dai client, oppure replica
+ * di un altro database, che accetta solo letture e riceve le scritture dal primario.
+ *
+ * Una replica si collega alla porta di replica del primario (vedi ReplicationSource),
+ * cancella tutte le sue chiavi, riceve tutto il database e poi applica ogni scrittura
+ * del primario nello stesso ordine, come quando viene rieseguito il log su disco.
+ * Su una replica le chiavi non scadono e non vengono cancellate per il limite di memoria:
+ * arrivano dal primario le cancellazioni come CLEAR, CLEARL e CLEARH.
+ * Se il collegamento cade la replica continua a rispondere alle letture con gli ultimi dati
+ * ricevuti e ritenta il collegamento ogni secondo; a ogni nuovo collegamento riceve di nuovo
+ * tutto il database. Con un tempo di failover, se il primario non risponde per quel tempo
+ * la replica diventa primario da sola.
+ */
+public class Replication {
+    private static final int RECONNECT_DELAY_MS = 1000;
+
+    private final Database db;
+    private final int timeoutMs;
+    private final long failoverMs;
+    // Collegamento con il primario, null se il database è primario.
+    private volatile Link link;
+
+    /**
+     * @param timeoutMs  Millisecondi senza ricevere nulla dal primario dopo cui il collegamento
+     *                   viene considerato caduto.
+     * @param failoverMs Millisecondi senza il primario dopo cui la replica diventa primario (0 = mai).
+     */
+    public Replication(Database db, int timeoutMs, long failoverMs) {
+        this.db = db;
+        this.timeoutMs = timeoutMs;
+        this.failoverMs = failoverMs;
+    }
+
+    /**
+     * @return true se il database è una replica, quindi non accetta scritture dai client.
+     */
+    public boolean isReplica() {
+        return link != null;
+    }
+
+    /**
+     * Rende il database una replica del primario indicato, chiudendo l'eventuale
+     * collegamento con un primario precedente.
+     *
+     * @param port Porta su cui il primario accetta le repliche.
+     */
+    public synchronized void replicaOf(String host, int port) {
+        if (link != null) {
+            link.stop();
+        } else {
+            db.stopExpiring();
+            db.stopMemoryLimit();
+        }
+        link = new Link(host, port);
+        Thread thread = new Thread(link, "replication-" + host + ":" + port);
+        thread.setDaemon(true);
+        thread.start();
+        Main.log.info("replication.start", "primary", host + ":" + port);
+    }
+
+    /**
+     * Rende il database primario: smette di ricevere le scritture dal primario
+     * e inizia ad accettarle dai client.
+     *
+     * @return false se il database era già primario.
+     */
+    public synchronized boolean promote() {
+        if (link == null) {
+            return false;
+        }
+        link.stop();
+        link = null;
+        db.startExpiring();
+        db.startMemoryLimit();
+        Main.log.info("replication.promoted");
+        return true;
+    }
+
+    /**
+     * Esegue una ROLE: `primary`, oppure `replica host port` seguito da `up` o `down`
+     * (stato del collegamento) e dal numero di comandi ricevuti dall'ultima sincronizzazione.
+     */
+    public Reply role() {
+        Link current = link;
+        if (current == null) {
+            return Reply.values(List.of("primary"));
+        }
+        return Reply.values(Arrays.asList("replica", current.host, String.valueOf(current.port),
+                                          current.connected ? "up" : "down", String.valueOf(current.applied)));
+    }
+
+    /**
+     * Failover automatico: diventa primario solo se il collegamento è ancora quello attuale.
+     */
+    private synchronized void promoteAfterFailure(Link failed) {
+        if (link == failed) {
+            Main.log.warn("replication.failover", "primary", failed.host + ":" + failed.port, "ms", failoverMs);
+            promote();
+        }
+    }
+
+    /**
+     * Collegamento con un primario, eseguito da un thread dedicato.
+     */
+    private class Link implements Runnable {
+        final String host;
+        final int port;
+        volatile boolean stopped;
+        volatile boolean connected;
+        volatile long applied;
+        // Ultima volta in cui si è ricevuto qualcosa dal primario, 0 se non è mai stato raggiunto.
+        volatile long lastContact;
+        private volatile Socket socket;
+
+        Link(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        void stop() {
+            stopped = true;
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    // Il collegamento viene chiuso comunque.
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    synchronize();
+                } catch (IOException e) {
+                    if (!stopped) {
+                        Main.log.warn("replication.interrupted", "primary", host + ":" + port, "error", e.getMessage());
+                    }
+                } finally {
+                    connected = false;
+                }
+
+                if (!stopped && failoverMs > 0 && lastContact > 0
+                        && System.currentTimeMillis() - lastContact >= failoverMs) {
+                    promoteAfterFailure(this);
+                    return;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Si collega al primario, riceve il database e applica le scritture finché il collegamento non cade.
+         */
+        private void synchronize() throws IOException {
+            try (Socket current = new Socket()) {
+                socket = current;
+                if (stopped) {
+                    return;
+                }
+                current.connect(new InetSocketAddress(host, port), timeoutMs);
+                current.setSoTimeout(timeoutMs);
+                current.setTcpNoDelay(true);
+                OutputStream out = current.getOutputStream();
+                out.write("SYNC\n".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+
+                var in = new DataInputStream(new BufferedInputStream(current.getInputStream(), 1 << 16));
+                byte[] header = new byte[ReplicationSource.HEADER.length];
+                in.readFully(header);
+                if (!Arrays.equals(header, ReplicationSource.HEADER)) {
+                    throw new IOException("Not a replication stream");
+                }
+                lastContact = System.currentTimeMillis();
+                connected = true;
+                applied = 0;
+                db.clearAll();
+                Main.log.info("replication.connected", "primary", host + ":" + port);
+
+                CommandProcessor processor = new CommandProcessor(false, false);
+                Session session = new Session("primary " + host + ":" + port);
+                String[] command;
+                while ((command = BinaryProtocol.readCommand(in)) != null) {
+                    lastContact = System.currentTimeMillis();
+                    if (stopped) {
+                        return;
+                    }
+                    if (command[0].equals("PING")) {
+                        continue;
+                    }
+                    Reply reply = processor.process(session, command);
+                    if (reply.isError()) {
+                        Main.log.warn("replication.apply_error", "command", String.join(" ", command),
+                                     "reply", reply.toText());
+                    }
+                    applied++;
+                }
+                throw new IOException("Connection closed by the primary");
+            }
+        }
+    }
+}
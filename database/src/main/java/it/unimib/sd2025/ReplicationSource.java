@@ -0,0 +1,183 @@
+package it.unimib.sd2025;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invia le scritture del database alle repliche (vedi Replication).
+ *
+ * Le repliche si collegano a una porta dedicata e inviano la riga `SYNC`. Il database viene
+ * copiato in memoria come per uno snapshot e inviato come comandi SET, SETL, SETH e PEXPIREAT
+ * (vedi AppendOnlyLog.writeSnapshot()); poi vengono inviate tutte le scritture successive,
+ * nello stesso formato del log su disco: comandi del protocollo binario, con le scritture
+ * atomiche su più chiavi in un blocco MULTI/EXEC.
+ *
+ * Ogni replica ha una coda e un thread che la svuota sul socket, quindi una replica lenta
+ * non rallenta le scritture; se la sua coda si riempie viene scollegata e, quando si ricollega,
+ * riceve di nuovo tutto il database. Quando non ci sono scritture viene inviato un PING
+ * ogni secondo, così la replica si accorge se il primario non risponde più.
+ *
+ * Anche una replica può accettare altre repliche: riceve le scritture dal primario
+ * come tutte le altre e le inoltra.
+ */
+public class ReplicationSource implements WriteListener {
+    /**
+     * Intestazione inviata alla replica prima dei comandi.
+     */
+    static final byte[] HEADER = "SDBREP1\n".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * Millisecondi senza scritture dopo cui viene inviato un PING.
+     */
+    static final int HEARTBEAT_MS = 1000;
+
+    private final Database db;
+    private final int port;
+    private final int backlog;
+    private final List<Replica> replicas = new CopyOnWriteArrayList<>();
+
+    /**
+     * Replica collegata, con le scritture ancora da inviare.
+     */
+    private static class Replica {
+        final String address;
+        final LinkedBlockingQueue<byte[]> queue;
+        volatile boolean lagging;
+
+        Replica(String address, int backlog) {
+            this.address = address;
+            this.queue = new LinkedBlockingQueue<>(backlog);
+        }
+    }
+
+    /**
+     * @param db      Database di cui inviare le scritture.
+     * @param port    Porta su cui accettare le repliche.
+     * @param backlog Numero massimo di scritture in coda per una replica prima di scollegarla.
+     */
+    public ReplicationSource(Database db, int port, int backlog) {
+        this.db = db;
+        this.port = port;
+        this.backlog = backlog;
+    }
+
+    /**
+     * Inizia ad accettare le repliche in background.
+     */
+    public void start() throws IOException {
+        var server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread sender = new Thread(() -> serve(socket), "replica-" + socket.getRemoteSocketAddress());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    Main.log.warn("replica.accept_error", "error", e.getMessage());
+                }
+            }
+        }, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Main.log.info("replica.listening", "port", port);
+    }
+
+    @Override
+    public void onWrite(List<String[]> commands) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        if (commands.size() > 1) {
+            BinaryProtocol.writeCommand(block, "MULTI");
+        }
+        for (String[] command : commands) {
+            BinaryProtocol.writeCommand(block, command);
+        }
+        if (commands.size() > 1) {
+            BinaryProtocol.writeCommand(block, "EXEC");
+        }
+
+        byte[] bytes = block.toByteArray();
+        for (Replica replica : replicas) {
+            if (!replica.queue.offer(bytes)) {
+                // Il thread della replica se ne accorge al più entro un heartbeat e la scollega.
+                replica.lagging = true;
+                replicas.remove(replica);
+            }
+        }
+    }
+
+    /**
+     * Invia il database e poi le scritture a una replica, finché non si scollega.
+     */
+    private void serve(Socket socket) {
+        Replica replica = new Replica(socket.getRemoteSocketAddress().toString(), backlog);
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            if (!readLine(socket.getInputStream()).equals("SYNC")) {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            // Le scritture successive alla copia finiscono nella coda della replica.
+            Database.Snapshot snapshot = db.snapshot(() -> replicas.add(replica));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            out.write(HEADER);
+            AppendOnlyLog.writeSnapshot(out, snapshot);
+            out.flush();
+            Main.log.info("replica.synchronized", "replica", replica.address, "ms", System.currentTimeMillis() - start);
+
+            ByteArrayOutputStream ping = new ByteArrayOutputStream();
+            BinaryProtocol.writeCommand(ping, "PING");
+            List<byte[]> blocks = new ArrayList<>();
+            while (!replica.lagging) {
+                byte[] block = replica.queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                if (block == null) {
+                    ping.writeTo(out);
+                } else {
+                    out.write(block);
+                    replica.queue.drainTo(blocks);
+                    for (byte[] other : blocks) {
+                        out.write(other);
+                    }
+                    blocks.clear();
+                }
+                out.flush();
+            }
+            Main.log.warn("replica.lagging", "replica", replica.address);
+        } catch (IOException e) {
+            Main.log.warn("replica.disconnected", "replica", replica.address, "error", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.remove(replica);
+        }
+    }
+
+    /**
+     * Legge una riga di testo, senza il carattere di a capo.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1 || line.length() > 64) {
+                return "";
+            }
+            line.append((char) c);
+        }
+        return line.toString().trim();
+    }
+}
@@ -0,0 +1,409 @@
+package it.unimib.sd2025;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Risposta a un comando, indipendente dal protocollo con cui viene inviata.
+ * Con il protocollo testuale diventa una riga (vedi toText() e writeText()), con quello
+ * binario un messaggio con le lunghezze esplicite (vedi writeBinary()).
+ * writeText() e writeBinary() scrivono i byte direttamente nel buffer, senza creare stringhe.
+ *
+ * I valori sono stringhe in cui ogni carattere rappresenta un byte (ISO-8859-1),
+ * quindi possono contenere qualsiasi sequenza di byte.
+ */
+public final class Reply {
+    /**
+     * Tipi di risposta. Nel protocollo binario ogni tipo inizia con il suo byte.
+     */
+    private enum Type {
+        /** Esito senza valore, ad esempio `OK` o `QUEUED`. */
+        STATUS('+'),
+        /** Errore con un messaggio. */
+        ERROR('-'),
+        /** Un valore, eventualmente assente. */
+        VALUE('$'),
+        /** Un valore assente (solo nel protocollo binario). */
+        NULL('_'),
+        /** Un elenco di valori, ad esempio una lista o il risultato di MGET. */
+        VALUES('*'),
+        /** Un elenco di liste, come il risultato di MGETL. */
+        LISTS('*'),
+        /** Le risposte dei comandi di una transazione. */
+        REPLIES('*'),
+        /** Un evento inviato a una connessione iscritta con SUBSCRIBE, senza che l'abbia chiesto. */
+        EVENT('>');
+
+        private final byte prefix;
+
+        Type(char prefix) {
+            this.prefix = (byte) prefix;
+        }
+    }
+
+    private static final Reply OK = new Reply(Type.STATUS, "OK", null);
+
+    // Prefissi del protocollo testuale, già codificati.
+    private static final byte[] OK_PREFIX = { 'O', 'K', ' ' };
+    private static final byte[] ERROR_PREFIX = { 'E', 'R', 'R', ' ' };
+    private static final byte[] EVENT_PREFIX = { 'E', 'V', 'E', 'N', 'T', ' ' };
+
+    private final Type type;
+    private final String text;
+    private final List<?> elements;
+
+    private Reply(Type type, String text, List<?> elements) {
+        this.type = type;
+        this.text = text;
+        this.elements = elements;
+    }
+
+    public static Reply ok() {
+        return OK;
+    }
+
+    public static Reply status(String status) {
+        return new Reply(Type.STATUS, status, null);
+    }
+
+    public static Reply error(String message) {
+        return new Reply(Type.ERROR, message, null);
+    }
+
+    /**
+     * @param value Il valore, oppure null se non è presente.
+     */
+    public static Reply value(String value) {
+        return new Reply(Type.VALUE, value, null);
+    }
+
+    /**
+     * @param values I valori, null per quelli non presenti.
+     */
+    public static Reply values(List<String> values) {
+        return new Reply(Type.VALUES, null, values);
+    }
+
+    public static Reply lists(List<? extends Collection<String>> lists) {
+        return new Reply(Type.LISTS, null, lists);
+    }
+
+    public static Reply replies(List<Reply> replies) {
+        return new Reply(Type.REPLIES, null, replies);
+    }
+
+    /**
+     * @param values I valori dell'evento (vedi PubSub).
+     */
+    public static Reply event(List<String> values) {
+        return new Reply(Type.EVENT, null, values);
+    }
+
+    public boolean isError() {
+        return type == Type.ERROR;
+    }
+
+    /**
+     * Restituisce la risposta nel formato del protocollo testuale (vedi TCP.md).
+     */
+    @SuppressWarnings("unchecked")
+    public String toText() {
+        switch (type) {
+            case STATUS:
+                return text;
+            case ERROR:
+                return "ERR " + text;
+            case VALUE:
+                return text == null ? "OK " : "OK " + text;
+            case VALUES:
+            case EVENT: {
+                // Un evento inizia con `EVENT` invece che con `OK`, così il client lo distingue dalle risposte.
+                StringBuilder result = new StringBuilder(type == Type.EVENT ? "EVENT " : "OK ");
+                boolean first = true;
+                for (String value : (List<String>) elements) {
+                    if (!first) {
+                        result.append(' ');
+                    }
+                    if (value != null) {
+                        result.append(value);
+                    }
+                    first = false;
+                }
+                return result.toString();
+            }
+            case LISTS: {
+                // Ogni lista è preceduta dalla sua lunghezza.
+                StringBuilder result = new StringBuilder("OK");
+                for (Collection<String> list : (List<Collection<String>>) elements) {
+                    result.append(' ').append(list.size());
+                    for (String value : list) {
+                        result.append(' ').append(value);
+                    }
+                }
+                return result.toString();
+            }
+            default: {
+                // `OK n` seguito, sulla stessa riga, dalla lunghezza e dal testo di ogni risposta.
+                StringBuilder result = new StringBuilder("OK ").append(elements.size());
+                for (Reply reply : (List<Reply>) elements) {
+                    String text = reply.toText();
+                    result.append(' ').append(text.length()).append(' ').append(text);
+                }
+                return result.toString();
+            }
+        }
+    }
+
+    /**
+     * Restituisce la dimensione in byte della risposta nel protocollo testuale,
+     * compreso l'a capo finale (vedi writeText()).
+     */
+    @SuppressWarnings("unchecked")
+    public int textSize() {
+        switch (type) {
+            case STATUS:
+                return text.length() + 1;
+            case ERROR:
+                return ERROR_PREFIX.length + text.length() + 1;
+            case VALUE:
+                return OK_PREFIX.length + (text == null ? 0 : text.length()) + 1;
+            case VALUES:
+            case EVENT: {
+                List<String> values = (List<String>) elements;
+                int size = (type == Type.EVENT ? EVENT_PREFIX.length : OK_PREFIX.length) + values.size();
+                for (String value : values) {
+                    size += value == null ? 0 : value.length();
+                }
+                // Un separatore tra ogni coppia di valori più l'a capo.
+                return values.isEmpty() ? size + 1 : size;
+            }
+            case LISTS: {
+                int size = 2;
+                for (Collection<String> list : (List<Collection<String>>) elements) {
+                    size += 1 + decimalSize(list.size());
+                    for (String value : list) {
+                        size += 1 + value.length();
+                    }
+                }
+                return size + 1;
+            }
+            default: {
+                int size = OK_PREFIX.length + decimalSize(elements.size()) + 1;
+                for (Reply reply : (List<Reply>) elements) {
+                    // textSize() comprende l'a capo, che nella risposta della transazione non c'è.
+                    int length = reply.textSize() - 1;
+                    size += 1 + decimalSize(length) + 1 + length;
+                }
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Scrive la risposta nel formato del protocollo testuale, gli stessi byte di toText()
+     * seguiti dall'a capo. Il buffer deve avere almeno textSize() byte liberi.
+     */
+    public void writeText(ByteBuffer buffer) {
+        writeTextLine(buffer);
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Scrive gli stessi byte di toText(), senza l'a capo.
+     */
+    @SuppressWarnings("unchecked")
+    private void writeTextLine(ByteBuffer buffer) {
+        switch (type) {
+            case STATUS:
+                putString(buffer, text);
+                break;
+            case ERROR:
+                buffer.put(ERROR_PREFIX);
+                putString(buffer, text);
+                break;
+            case VALUE:
+                buffer.put(OK_PREFIX);
+                if (text != null) {
+                    putString(buffer, text);
+                }
+                break;
+            case VALUES:
+            case EVENT: {
+                buffer.put(type == Type.EVENT ? EVENT_PREFIX : OK_PREFIX);
+                boolean first = true;
+                for (String value : (List<String>) elements) {
+                    if (!first) {
+                        buffer.put((byte) ' ');
+                    }
+                    if (value != null) {
+                        putString(buffer, value);
+                    }
+                    first = false;
+                }
+                break;
+            }
+            case LISTS:
+                buffer.put((byte) 'O').put((byte) 'K');
+                for (Collection<String> list : (List<Collection<String>>) elements) {
+                    buffer.put((byte) ' ');
+                    putDecimal(buffer, list.size());
+                    for (String value : list) {
+                        buffer.put((byte) ' ');
+                        putString(buffer, value);
+                    }
+                }
+                break;
+            default:
+                buffer.put(OK_PREFIX);
+                putDecimal(buffer, elements.size());
+                for (Reply reply : (List<Reply>) elements) {
+                    buffer.put((byte) ' ');
+                    putDecimal(buffer, reply.textSize() - 1);
+                    buffer.put((byte) ' ');
+                    reply.writeTextLine(buffer);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Restituisce la dimensione in byte della risposta nel protocollo binario.
+     */
+    @SuppressWarnings("unchecked")
+    public int binarySize() {
+        switch (type) {
+            case STATUS:
+            case ERROR:
+            case VALUE:
+                return stringSize(text);
+            case VALUES:
+            case EVENT: {
+                int size = 1 + BinaryProtocol.varintSize(elements.size());
+                for (String value : (List<String>) elements) {
+                    size += stringSize(value);
+                }
+                return size;
+            }
+            case LISTS: {
+                int size = 1 + BinaryProtocol.varintSize(elements.size());
+                for (Collection<String> list : (List<Collection<String>>) elements) {
+                    size += 1 + BinaryProtocol.varintSize(list.size());
+                    for (String value : list) {
+                        size += stringSize(value);
+                    }
+                }
+                return size;
+            }
+            default: {
+                int size = 1 + BinaryProtocol.varintSize(elements.size());
+                for (Reply reply : (List<Reply>) elements) {
+                    size += reply.binarySize();
+                }
+                return size;
+            }
+        }
+    }
+
+    /**
+     * Scrive la risposta nel formato del protocollo binario: il byte del tipo,
+     * poi per i tipi semplici la lunghezza e i byte, per gli elenchi il numero
+     * di elementi seguito dagli elementi. Un valore assente è il solo byte del tipo NULL.
+     * Lunghezze e numeri di elementi sono varint (vedi BinaryProtocol).
+     * Il buffer deve avere almeno binarySize() byte liberi.
+     */
+    @SuppressWarnings("unchecked")
+    public void writeBinary(ByteBuffer buffer) {
+        switch (type) {
+            case STATUS:
+            case ERROR:
+            case VALUE:
+                writeString(buffer, type.prefix, text);
+                break;
+            case VALUES:
+            case EVENT:
+                buffer.put(type.prefix);
+                BinaryProtocol.putVarint(buffer, elements.size());
+                for (String value : (List<String>) elements) {
+                    writeString(buffer, Type.VALUE.prefix, value);
+                }
+                break;
+            case LISTS:
+                buffer.put(type.prefix);
+                BinaryProtocol.putVarint(buffer, elements.size());
+                for (Collection<String> list : (List<Collection<String>>) elements) {
+                    buffer.put(Type.VALUES.prefix);
+                    BinaryProtocol.putVarint(buffer, list.size());
+                    for (String value : list) {
+                        writeString(buffer, Type.VALUE.prefix, value);
+                    }
+                }
+                break;
+            default:
+                buffer.put(type.prefix);
+                BinaryProtocol.putVarint(buffer, elements.size());
+                for (Reply reply : (List<Reply>) elements) {
+                    reply.writeBinary(buffer);
+                }
+                break;
+        }
+    }
+
+    private static int stringSize(String value) {
+        return value == null ? 1 : 1 + BinaryProtocol.varintSize(value.length()) + value.length();
+    }
+
+    private static void writeString(ByteBuffer buffer, byte prefix, String value) {
+        if (value == null) {
+            buffer.put(Type.NULL.prefix);
+        } else {
+            buffer.put(prefix);
+            BinaryProtocol.putVarint(buffer, value.length());
+            putString(buffer, value);
+        }
+    }
+
+    /**
+     * Copia i caratteri della stringa nel buffer, un byte per carattere (ISO-8859-1).
+     */
+    @SuppressWarnings("deprecation")
+    private static void putString(ByteBuffer buffer, String value) {
+        int length = value.length();
+        if (buffer.hasArray()) {
+            // String.getBytes(int, int, byte[], int) copia gli 8 bit bassi di ogni carattere
+            // senza creare un array, cioè esattamente la codifica ISO-8859-1.
+            int position = buffer.position();
+            value.getBytes(0, length, buffer.array(), buffer.arrayOffset() + position);
+            buffer.position(position + length);
+        } else {
+            buffer.put(value.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static int decimalSize(int value) {
+        int size = 1;
+        while (value >= 10) {
+            value /= 10;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Scrive un numero non negativo in cifre decimali, senza creare stringhe.
+     */
+    private static void putDecimal(ByteBuffer buffer, int value) {
+        int end = buffer.position() + decimalSize(value);
+        for (int i = end - 1; i >= buffer.position(); i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(end);
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
@@ -0,0 +1,122 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stato di una connessione con un client.
+ * Contiene le informazioni che devono sopravvivere tra un comando e l'altro,
+ * come i comandi accodati dopo un MULTI.
+ */
+public class Session {
+    private final String address;
+
+    // Comandi accodati dopo MULTI, null se non c'è una transazione aperta.
+    private List<String[]> transaction;
+    private boolean transactionFailed;
+
+    // Chiavi osservate con WATCH e la loro versione in quel momento.
+    private final Map<String, Long> watched = new LinkedHashMap<>();
+
+    // true dopo PROTOCOL BINARY: i comandi successivi usano il protocollo binario.
+    private boolean binary;
+
+    // Iscrizione agli eventi delle chiavi dopo SUBSCRIBE, null se la connessione non è iscritta.
+    private PubSub.Subscriber subscriber;
+
+    /**
+     * @param address Indirizzo del client, usato nei log.
+     */
+    public Session(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return true se la connessione usa il protocollo binario.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * @return L'iscrizione agli eventi delle chiavi, oppure null se la connessione non è iscritta.
+     */
+    public PubSub.Subscriber getSubscriber() {
+        return subscriber;
+    }
+
+    public void setSubscriber(PubSub.Subscriber subscriber) {
+        this.subscriber = subscriber;
+    }
+
+    /**
+     * @return true se è stato inviato MULTI e non ancora EXEC o DISCARD.
+     */
+    public boolean inTransaction() {
+        return transaction != null;
+    }
+
+    /**
+     * Apre una transazione: i comandi successivi vengono accodati.
+     */
+    public void beginTransaction() {
+        transaction = new ArrayList<>();
+        transactionFailed = false;
+    }
+
+    /**
+     * Accoda un comando, con i suoi argomenti, alla transazione aperta.
+     */
+    public void queue(String[] command) {
+        transaction.add(command);
+    }
+
+    /**
+     * Segna la transazione come fallita: EXEC non eseguirà nessun comando.
+     */
+    public void failTransaction() {
+        transactionFailed = true;
+    }
+
+    public boolean isTransactionFailed() {
+        return transactionFailed;
+    }
+
+    /**
+     * Osserva una chiave: se la sua versione cambia prima di EXEC, la transazione
+     * non viene eseguita. Se la chiave è già osservata conta la prima versione.
+     */
+    public void watch(String key, long version) {
+        watched.putIfAbsent(key, version);
+    }
+
+    /**
+     * @return Le chiavi osservate con la versione che avevano con WATCH.
+     */
+    public Map<String, Long> getWatched() {
+        return watched;
+    }
+
+    public void unwatch() {
+        watched.clear();
+    }
+
+    /**
+     * Chiude la transazione e restituisce i comandi accodati.
+     */
+    public List<String[]> endTransaction() {
+        List<String[]> commands = transaction;
+        transaction = null;
+        return commands;
+    }
+}
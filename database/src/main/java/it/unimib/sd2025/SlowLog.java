@@ -0,0 +1,147 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registro dei comandi lenti, restituito dal comando SLOWLOG.
+ *
+ * Ogni comando ricevuto da un client che dura almeno la soglia viene salvato con un numero
+ * progressivo, il momento in cui è finito, la durata, l'indirizzo del client e gli argomenti,
+ * accorciati per non tenere in memoria valori grandi. Il registro è un buffer circolare:
+ * tiene solo gli ultimi `maxLength` comandi e ogni nuovo comando sostituisce il più vecchio,
+ * quindi occupa al massimo una quantità fissa di memoria. I comandi sotto la soglia
+ * costano un solo confronto.
+ */
+public class SlowLog {
+    /**
+     * Numero massimo di argomenti salvati per ogni comando.
+     */
+    private static final int MAX_ARGS = 32;
+    /**
+     * Numero massimo di caratteri salvati per ogni argomento.
+     */
+    private static final int MAX_ARG_LENGTH = 128;
+
+    private final long thresholdNanos;
+    private final AtomicReferenceArray<Entry> entries;
+    // Numero di comandi lenti registrati dall'avvio: è il numero progressivo del prossimo
+    // comando lento e da questo deriva la sua posizione nel buffer.
+    private final AtomicLong count = new AtomicLong();
+    // Numero progressivo del primo comando dopo l'ultimo reset.
+    private volatile long firstId = 0;
+
+    /**
+     * Comando lento, con gli argomenti già accorciati.
+     */
+    private static class Entry {
+        final long id;
+        final long timestamp;
+        final long micros;
+        final String address;
+        final List<String> args;
+
+        Entry(long id, long timestamp, long micros, String address, List<String> args) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.micros = micros;
+            this.address = address;
+            this.args = args;
+        }
+    }
+
+    /**
+     * @param thresholdMicros Durata in microsecondi da cui un comando è lento (negativa = nessun comando).
+     * @param maxLength       Numero massimo di comandi tenuti.
+     */
+    public SlowLog(long thresholdMicros, int maxLength) {
+        this.thresholdNanos = thresholdMicros < 0 ? Long.MAX_VALUE : thresholdMicros * 1000;
+        this.entries = new AtomicReferenceArray<>(Math.max(maxLength, 1));
+    }
+
+    /**
+     * Registra il comando se è durato almeno la soglia.
+     *
+     * @param address L'indirizzo del client.
+     * @param args    Il nome del comando seguito dagli argomenti.
+     * @param nanos   La durata dell'esecuzione in nanosecondi.
+     */
+    public void record(String address, String[] args, long nanos) {
+        if (nanos < thresholdNanos) {
+            return;
+        }
+        long id = count.getAndIncrement();
+        Entry entry = new Entry(id, System.currentTimeMillis(), nanos / 1000, address, truncate(args));
+        entries.set((int) (id % entries.length()), entry);
+    }
+
+    /**
+     * Accorcia gli argomenti: dopo MAX_ARGS - 1 argomenti l'ultimo indica quanti ne mancano,
+     * e un argomento troppo lungo termina con il numero di caratteri tolti (senza spazi,
+     * così nel protocollo testuale resta un solo valore).
+     */
+    private static List<String> truncate(String[] args) {
+        int kept = args.length > MAX_ARGS ? MAX_ARGS - 1 : args.length;
+        List<String> result = new ArrayList<>(kept + 1);
+        for (int i = 0; i < kept; i++) {
+            String arg = args[i];
+            if (arg.length() > MAX_ARG_LENGTH) {
+                arg = arg.substring(0, MAX_ARG_LENGTH) + "...(" + (arg.length() - MAX_ARG_LENGTH) + "-more-chars)";
+            }
+            result.add(arg);
+        }
+        if (kept < args.length) {
+            result.add("...(" + (args.length - kept) + "-more-args)");
+        }
+        return result;
+    }
+
+    /**
+     * Comando SLOWLOG GET [count]: i comandi lenti dal più recente, al massimo count (default 10).
+     * Ogni comando è una lista con numero progressivo, momento in cui è finito (millisecondi dal 1970),
+     * durata in microsecondi, indirizzo del client e argomenti.
+     */
+    public Reply get(int max) {
+        List<List<String>> result = new ArrayList<>();
+        long first = firstId;
+        long last = count.get() - 1;
+        for (long id = last; id >= first && id > last - entries.length() && result.size() < max; id--) {
+            Entry entry = entries.get((int) (id % entries.length()));
+            // Un comando che ha preso il numero ma non è ancora stato scritto, o già sostituito, viene saltato.
+            if (entry == null || entry.id != id) {
+                continue;
+            }
+            List<String> values = new ArrayList<>(entry.args.size() + 4);
+            values.add(String.valueOf(entry.id));
+            values.add(String.valueOf(entry.timestamp));
+            values.add(String.valueOf(entry.micros));
+            values.add(entry.address);
+            values.addAll(entry.args);
+            result.add(values);
+        }
+        return Reply.lists(result);
+    }
+
+    /**
+     * @return Il numero di comandi lenti nel registro.
+     */
+    public long length() {
+        return Math.min(count.get() - firstId, entries.length());
+    }
+
+    /**
+     * Svuota il registro. I numeri progressivi continuano da dove erano arrivati.
+     */
+    public void reset() {
+        long first = count.get();
+        firstId = first;
+        for (int i = 0; i < entries.length(); i++) {
+            Entry entry = entries.get(i);
+            if (entry != null && entry.id < first) {
+                entries.compareAndSet(i, entry, null);
+            }
+        }
+    }
+}
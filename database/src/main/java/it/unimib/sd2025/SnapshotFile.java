@@ -0,0 +1,397 @@
+package it.unimib.sd2025;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Copia binaria del database su disco (snapshot).
+ *
+ * Il file è diviso in blocchi di circa BLOCK_SIZE byte, ognuno con solo stringhe,
+ * solo liste, solo hash o solo scadenze, seguiti da un indice con posizione, lunghezza e checksum di ogni blocco.
+ * In questo modo il caricamento può mappare il file in memoria e leggere i blocchi
+ * in parallelo, inserendo i dati direttamente nelle mappe del database.
+ *
+ * Formato (interi big endian):
+ * - intestazione: "SDBS", versione, numero di blocchi, posizione dell'indice (long), numero di chiavi (long)
+ * - blocco: tipo (0 stringhe, 1 liste, 2 hash, 3 scadenze), numero di elementi, elementi
+ * - stringa: lunghezza e byte della chiave, lunghezza e byte del valore (ISO-8859-1, un byte per carattere)
+ * - lista: chiave, numero di valori, ogni valore come lunghezza e byte
+ * - hash: come una lista, con campi e valori alternati
+ * - scadenza: chiave e istante della scadenza in millisecondi dal 1970 (long)
+ * - indice: per ogni blocco posizione (long), lunghezza e CRC32C
+ */
+public class SnapshotFile implements WriteListener {
+    private static final int MAGIC = 0x53444253; // "SDBS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private static final byte STRINGS_BLOCK = 0;
+    private static final byte LISTS_BLOCK = 1;
+    private static final byte HASHES_BLOCK = 2;
+    private static final byte EXPIRES_BLOCK = 3;
+
+    private final Database db;
+    private final Path path;
+
+    private final AtomicBoolean saving = new AtomicBoolean();
+    // Scritture applicate dall'ultimo salvataggio, per saltare quelli periodici inutili.
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * @param db   Database da salvare o in cui caricare lo snapshot.
+     * @param path Percorso del file.
+     */
+    public SnapshotFile(Database db, Path path) {
+        this.db = db;
+        this.path = path;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return true se esiste uno snapshot da cui caricare il database.
+     */
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    @Override
+    public void onWrite(List<String[]> commands) {
+        changes.addAndGet(commands.size());
+    }
+
+    /**
+     * Salva lo snapshot nel thread corrente.
+     * Le scritture sono bloccate solo nell'istante della copia (vedi Database.snapshot()),
+     * non mentre il database viene copiato in memoria o scritto nel file.
+     *
+     * @return "OK" oppure un errore se un salvataggio è già in corso o non è riuscito.
+     */
+    public Reply save() {
+        if (!saving.compareAndSet(false, true)) {
+            return Reply.error("Snapshot already in progress");
+        }
+        try {
+            write();
+            return Reply.ok();
+        } catch (IOException e) {
+            Main.log.error("snapshot.error", "error", e.getMessage());
+            return Reply.error("Error saving snapshot: " + e.getMessage());
+        } finally {
+            saving.set(false);
+        }
+    }
+
+    /**
+     * Salva lo snapshot in un thread separato.
+     *
+     * @return "OK" se il salvataggio è partito, un errore se ce n'è già uno in corso.
+     */
+    public Reply saveInBackground() {
+        if (!saving.compareAndSet(false, true)) {
+            return Reply.error("Snapshot already in progress");
+        }
+        Thread saver = new Thread(() -> {
+            try {
+                write();
+            } catch (IOException e) {
+                Main.log.error("snapshot.error", "error", e.getMessage());
+            } finally {
+                saving.set(false);
+            }
+        }, "snapshot-save");
+        saver.setDaemon(true);
+        saver.start();
+        return Reply.ok();
+    }
+
+    /**
+     * Salva periodicamente lo snapshot, solo se ci sono state scritture dall'ultimo salvataggio.
+     */
+    public void startPeriodic(int intervalSec) {
+        var scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-periodic");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (changes.get() > 0) {
+                save();
+            }
+        }, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Copia il database e lo scrive in un file temporaneo, che sostituisce
+     * quello precedente solo quando è completo.
+     */
+    private void write() throws IOException {
+        long start = System.currentTimeMillis();
+        long[] changesAtCopy = new long[1];
+        Database.Snapshot snapshot = db.snapshot(() -> changesAtCopy[0] = changes.get());
+        long copied = System.currentTimeMillis();
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlockWriter writer = new BlockWriter(channel);
+            writer.beginBlock(STRINGS_BLOCK);
+            for (Map.Entry<String, String> entry : snapshot.strings().entrySet()) {
+                writer.writeString(entry.getKey());
+                writer.writeString(entry.getValue());
+                writer.endEntry();
+            }
+            writer.beginBlock(LISTS_BLOCK);
+            writer.writeArrays(snapshot.lists());
+            writer.beginBlock(HASHES_BLOCK);
+            writer.writeArrays(snapshot.hashes());
+            writer.beginBlock(EXPIRES_BLOCK);
+            for (Map.Entry<String, Long> entry : snapshot.expires().entrySet()) {
+                writer.writeString(entry.getKey());
+                writer.writeLong(entry.getValue());
+                writer.endEntry();
+            }
+            writer.finish(snapshot.size());
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        changes.addAndGet(-changesAtCopy[0]);
+
+        Main.log.info("snapshot.saved", "file", path, "keys", snapshot.size(), "copy_ms", copied - start,
+                      "ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Carica lo snapshot nel database, leggendo i blocchi in parallelo.
+     * Va chiamato all'avvio, prima di accettare connessioni.
+     *
+     * @return Il numero di chiavi caricate.
+     */
+    public long load() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int blockCount = header.getInt();
+            long indexOffset = header.getLong();
+            long keyCount = header.getLong();
+
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                                           (long) blockCount * INDEX_ENTRY_SIZE);
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            int[] checksums = new int[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                checksums[i] = index.getInt();
+            }
+
+            // I blocchi sono indipendenti: ognuno viene mappato e letto da un thread diverso.
+            long loaded = IntStream.range(0, blockCount).parallel().mapToLong(i -> {
+                try {
+                    MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], lengths[i]);
+                    return readBlock(block, checksums[i]);
+                } catch (IOException e) {
+                    throw new SnapshotException(e);
+                }
+            }).sum();
+
+            if (loaded != keyCount) {
+                throw new IOException("Snapshot contains " + loaded + " keys, expected " + keyCount);
+            }
+            return loaded;
+        } catch (SnapshotException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long readBlock(ByteBuffer block, int checksum) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(block.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupted snapshot block at " + block);
+        }
+
+        byte type = block.get();
+        int count = block.getInt();
+        byte[] scratch = new byte[256];
+        if (type == EXPIRES_BLOCK) {
+            // Le scadenze non sono chiavi: non contano nel totale.
+            for (int i = 0; i < count; i++) {
+                db.restoreExpire(readString(block, scratch), block.getLong());
+            }
+            return 0;
+        }
+        for (int i = 0; i < count; i++) {
+            String key = readString(block, scratch);
+            if (type == STRINGS_BLOCK) {
+                db.restore(key, readString(block, scratch));
+            } else {
+                String[] values = new String[block.getInt()];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = readString(block, scratch);
+                }
+                if (type == LISTS_BLOCK) {
+                    db.restoreList(key, values);
+                } else {
+                    db.restoreHash(key, values);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Scrive i blocchi nel file e ne tiene l'indice.
+     */
+    private static class BlockWriter {
+        private final FileChannel channel;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BLOCK_SIZE + (BLOCK_SIZE >> 2));
+        private final DataOutputStream out = new DataOutputStream(buffer);
+        private final List<long[]> index = new ArrayList<>();
+        private long position = HEADER_SIZE;
+        private byte type;
+        private int count;
+
+        BlockWriter(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+        }
+
+        void beginBlock(byte type) throws IOException {
+            flushBlock();
+            this.type = type;
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeLong(long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        /**
+         * Scrive le chiavi con i loro array di valori (liste o hash).
+         */
+        void writeArrays(Map<String, String[]> arrays) throws IOException {
+            for (Map.Entry<String, String[]> entry : arrays.entrySet()) {
+                writeString(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (String value : entry.getValue()) {
+                    writeString(value);
+                }
+                endEntry();
+            }
+        }
+
+        void endEntry() throws IOException {
+            count++;
+            if (buffer.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        /**
+         * Scrive il blocco corrente, preceduto da tipo e numero di elementi.
+         */
+        private void flushBlock() throws IOException {
+            if (count == 0) {
+                buffer.reset();
+                return;
+            }
+            ByteBuffer blockHeader = ByteBuffer.allocate(5).put(type).putInt(count).flip();
+            ByteBuffer body = ByteBuffer.wrap(buffer.toByteArray());
+            CRC32C crc = new CRC32C();
+            crc.update(blockHeader.duplicate());
+            crc.update(body.duplicate());
+
+            int length = blockHeader.remaining() + body.remaining();
+            writeFully(new ByteBuffer[] { blockHeader, body });
+            index.add(new long[] { position, length, (int) crc.getValue() });
+            position += length;
+            buffer.reset();
+            count = 0;
+        }
+
+        /**
+         * Scrive l'ultimo blocco, l'indice e infine l'intestazione.
+         */
+        void finish(long keyCount) throws IOException {
+            flushBlock();
+            ByteBuffer indexBuffer = ByteBuffer.allocate(index.size() * INDEX_ENTRY_SIZE);
+            for (long[] entry : index) {
+                indexBuffer.putLong(entry[0]).putInt((int) entry[1]).putInt((int) entry[2]);
+            }
+            writeFully(new ByteBuffer[] { indexBuffer.flip() });
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(index.size()).putLong(position).putLong(keyCount).flip();
+            channel.position(0);
+            writeFully(new ByteBuffer[] { header });
+        }
+
+        private void writeFully(ByteBuffer[] buffers) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+
+    /**
+     * Trasporta un IOException fuori dallo stream parallelo del caricamento.
+     */
+    private static class SnapshotException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SnapshotException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
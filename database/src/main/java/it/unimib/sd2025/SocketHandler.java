@@ -1,36 +1,67 @@
 package it.unimib.sd2025;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Vector;
 import java.io.*;
-import it.unimib.sd2025.Database;
 
 /**
- * Classe per gestire le connessioni socket e fare il parsing dei comandi.
+ * Classe per gestire una connessione socket con un thread dedicato.
+ * Viene eseguita su un virtual thread, quindi le letture bloccanti non occupano
+ * un thread del sistema operativo per ogni client connesso.
+ * Il parsing e l'esecuzione dei comandi sono delegati a CommandProcessor.
+ *
+ * Dopo SUBSCRIBE un secondo virtual thread invia gli eventi (vedi PubSub): da quel momento
+ * anche le risposte ai comandi passano dalla coda degli eventi, così sul socket scrive un solo thread.
  */
-public class SocketHandler extends Thread {
-    private Database db = Database.getInstance();
+public class SocketHandler implements Runnable {
+    /**
+     * Dimensione dei buffer di lettura e scrittura. È piccola perché con decine
+     * di migliaia di connessioni aperte i buffer sono la maggior parte della memoria usata.
+     */
+    private static final int BUFFER_SIZE = 2048;
+    /**
+     * Dimensione iniziale dei buffer per una riga e per una risposta, che crescono se serve.
+     * Dopo una riga o una risposta più grande di BUFFER_SIZE tornano a questa dimensione.
+     */
+    private static final int LINE_SIZE = 128;
+
+    private final CommandProcessor processor = new CommandProcessor();
     private Socket socket;
+    private final String address;
+    private Session session;
+    // Thread che invia gli eventi mentre la connessione è iscritta, null altrimenti.
+    private Thread eventWriter;
 
     public SocketHandler(Socket socket) {
         this.socket = socket;
+        this.address = socket.getInetAddress() + ":" + socket.getPort();
     }
 
     /**
-     * Esegue il thread per gestire la connessione socket.
+     * Gestisce la connessione socket.
      * Gestisce gli errori e passa la gesitone della connessione a handleConnection()
      */
     public void run() {
         try {
             handleConnection();
         } catch (IOException e) {
-            System.err.println("Error handling connection: " + e.getMessage());
+            Main.log.warn("connection.error", "client", address, "error", e.getMessage());
         } finally {
             try {
+                if (session != null && session.getSubscriber() != null) {
+                    session.getSubscriber().close();
+                }
                 socket.close();
+                if (eventWriter != null) {
+                    eventWriter.join();
+                }
             } catch (IOException e) {
-                System.err.println("Error closing socket: " + e.getMessage());
+                Main.log.warn("connection.close_error", "client", address, "error", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -39,155 +70,310 @@ public class SocketHandler extends Thread {
     /**
      * Si occupa di leggere i dati in ingresso, fare il parsing,
      * mandare i comandi al DB e ritornare i valori.
-     * Legge solo una riga dall'input e poi ritorna.
+     * La connessione resta aperta finché il client non la chiude o invia QUIT,
+     * quindi si possono inviare più comandi sulla stessa connessione.
+     * I comandi possono essere inviati in pipeline: le risposte vengono scritte
+     * nello stesso ordine e inviate quando non ci sono altri comandi in attesa.
+     * Dopo PROTOCOL BINARY i comandi e le risposte usano il protocollo binario.
      */
     private void handleConnection() throws IOException {
-        System.out.println("Connection established with " + socket.getInetAddress() + ":" + socket.getPort());
-        var out = new PrintWriter(socket.getOutputStream(), true);
-        var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-        String inputLine; // Rappresenta una riga letta.
-        inputLine = in.readLine();
-        if (inputLine == null) {
-            out.println("ERR No input received");
+        Main.log.info("connection.open", "client", address);
+        socket.setSoTimeout(Main.IDLE_TIMEOUT_MS);
+        var out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        var in = new LineInputStream(socket.getInputStream());
+        var dataIn = new DataInputStream(in);
+        var writer = new ReplyWriter();
+        session = new Session(address);
+
+        boolean received = false;
+        try {
+            while (true) {
+                PubSub.Subscriber subscriber = session.getSubscriber();
+                if (session.isBinary()) {
+                    String[] command = BinaryProtocol.readCommand(dataIn);
+                    if (command == null) {
+                        break;
+                    }
+                    received = true;
+
+                    if (command[0].equalsIgnoreCase("quit")) {
+                        endSubscription();
+                        writer.write(out, Reply.ok(), true);
+                        break;
+                    }
+
+                    Reply reply = processor.process(session, command);
+                    if (subscriber != null) {
+                        replySubscribed(out, writer, subscriber, reply);
+                    } else {
+                        writer.write(out, reply, true);
+                    }
+                } else {
+                    if (!in.readLine()) {
+                        break;
+                    }
+                    received = true;
+
+                    if (TextProtocol.isQuit(in.line, 0, in.lineLength)) {
+                        endSubscription();
+                        writer.write(out, Reply.ok(), false);
+                        break;
+                    }
+
+                    // La risposta a PROTOCOL BINARY è ancora testuale.
+                    Reply reply = processor.process(session, in.line, 0, in.lineLength);
+                    if (subscriber != null) {
+                        replySubscribed(out, writer, subscriber, reply);
+                    } else {
+                        writer.write(out, reply, false);
+                    }
+                }
+
+                if (subscriber == null && session.getSubscriber() != null) {
+                    // Risposta a SUBSCRIBE: viene inviata subito, poi gli eventi.
+                    out.flush();
+                    startEventWriter(out);
+                }
+                // Invia le risposte solo quando il client non ha altri comandi in coda,
+                // così una pipeline di N comandi produce una sola scrittura.
+                if (session.getSubscriber() == null && in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            Main.log.info("connection.timeout", "client", address);
+        } catch (BinaryProtocol.ProtocolException e) {
+            // Dopo un comando binario non valido o una riga troppo lunga non si può ritrovare
+            // l'inizio del comando successivo.
+            received = true;
+            endSubscription();
+            writer.write(out, Reply.error(e.getMessage()), session.isBinary());
+        } catch (EOFException e) {
+            Main.log.info("connection.truncated", "client", address);
+        }
+
+        endSubscription();
+        if (!received) {
+            writer.write(out, Reply.error("No input received"), false);
+        }
+        out.flush();
+    }
+
+    /**
+     * Avvia il thread che invia gli eventi e le risposte accodate finché l'iscrizione non viene chiusa.
+     * Se la connessione resta troppo indietro le viene inviato un errore e viene chiusa.
+     */
+    private void startEventWriter(OutputStream out) throws IOException {
+        PubSub.Subscriber subscriber = session.getSubscriber();
+        // Una connessione iscritta può non inviare niente per molto tempo.
+        socket.setSoTimeout(0);
+        eventWriter = Thread.ofVirtual().name("events-" + session.getAddress()).start(() -> {
+            List<Reply> replies = new ArrayList<>();
+            var writer = new ReplyWriter();
+            try {
+                boolean closed = false;
+                while (!closed) {
+                    Reply first = subscriber.take();
+                    if (first == null) {
+                        closed = true;
+                    } else {
+                        replies.add(first);
+                        closed = subscriber.drainTo(replies);
+                    }
+                    if (subscriber.isOverflowed()) {
+                        Main.log.warn("subscriber.overflow", "client", address);
+                        writer.write(out, Reply.error("Too many pending events"), session.isBinary());
+                        out.flush();
+                        socket.close();
+                        return;
+                    }
+                    for (Reply reply : replies) {
+                        writer.write(out, reply, session.isBinary());
+                    }
+                    replies.clear();
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // La connessione è stata chiusa: se ne accorge anche il thread che legge i comandi.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * Invia la risposta a un comando ricevuto mentre la connessione era iscritta: se è ancora iscritta
+     * la risposta passa dalla coda degli eventi, altrimenti (dopo UNSUBSCRIBE) viene scritta
+     * dopo aver fermato il thread degli eventi.
+     */
+    private void replySubscribed(OutputStream out, ReplyWriter writer, PubSub.Subscriber subscriber, Reply reply)
+            throws IOException {
+        if (session.getSubscriber() != null) {
+            subscriber.reply(reply);
             return;
         }
-        inputLine = inputLine.trim();
+        endSubscription();
+        writer.write(out, reply, session.isBinary());
+    }
 
-        // Controlla che la stringa contenga solo caratteri ASCII
-        if (!inputLine.matches("^[\\x20-\\x7E]+$")) {
-            out.println("ERR Invalid characters in input");
+    /**
+     * Chiude l'iscrizione, se c'è, e aspetta che il thread degli eventi si fermi,
+     * così si può tornare a scrivere sul socket da questo thread.
+     */
+    private void endSubscription() throws IOException {
+        if (session.getSubscriber() != null) {
+            session.getSubscriber().close();
+            session.setSubscriber(null);
+        }
+        if (eventWriter == null) {
             return;
         }
+        try {
+            eventWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the subscription");
+        }
+        eventWriter = null;
+        socket.setSoTimeout(Main.IDLE_TIMEOUT_MS);
+    }
 
-        System.out.println("Received command: " + inputLine);
-        
-        if (inputLine.toLowerCase().startsWith("set ")) {
-            /*
-             * Comando SET key value
-             */
-            inputLine = inputLine.substring(4);
-            String[] parts = inputLine.split(" ", 2);
-            if (parts.length < 2) {
-                out.println("ERR Invalid SET command format");
-                return;
-            }
-            String key = parts[0].trim();
-            String value = parts[1].trim();
-            String result = db.set(key, value);
-            out.println(result);
-
-        } else if (inputLine.toLowerCase().startsWith("get ")) {
-            /*
-             * Comando GET key
-             */
-            inputLine = inputLine.substring(4);
-            String key = inputLine.trim();
-            // Controlla che non ci siano spazi all'interno della chiave
-            if (key.contains(" ")) {
-                out.println("ERR Invalid key format");
-                return;
+    /**
+     * Stream di input bufferizzato che legge le righe del protocollo testuale cercando l'a capo
+     * direttamente nel suo buffer, invece di leggere un byte alla volta. La riga letta resta
+     * in `line` fino alla lettura successiva. Lo stesso stream viene usato per il protocollo binario.
+     *
+     * Non estende BufferedInputStream perché le sue sottoclassi leggono dentro un blocco
+     * synchronized, che blocca il thread del sistema operativo sotto il virtual thread
+     * finché il client non invia qualcosa.
+     */
+    private static class LineInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int count;
+        byte[] line = new byte[LINE_SIZE];
+        int lineLength;
+
+        LineInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Legge una riga terminata da `\n` (o dalla fine dello stream), senza terminatore.
+         *
+         * @return false se lo stream è finito prima di una nuova riga.
+         * @throws BinaryProtocol.ProtocolException Se la riga supera TextProtocol.MAX_LINE_LENGTH:
+         *         un client che non invia mai `\n` non può far crescere il buffer senza limite.
+         */
+        boolean readLine() throws IOException {
+            if (line.length > BUFFER_SIZE) {
+                line = new byte[LINE_SIZE];
             }
-            String result = db.get(key);
-            out.println(result);
-
-        } else if (inputLine.toLowerCase().startsWith("clear ")) {
-            /*
-             * Comando CLEAR key
-             */
-            inputLine = inputLine.substring(4);
-            String key = inputLine.trim();
-            // Controlla che non ci siano spazi all'interno della chiave
-            if (key.contains(" ")) {
-                out.println("ERR Invalid key format");
-                return;
+            lineLength = 0;
+            while (true) {
+                if (position >= count && !fill()) {
+                    return lineLength > 0;
+                }
+                int end = position;
+                while (end < count && buffer[end] != '\n') {
+                    end++;
+                }
+                append(position, end);
+                if (end < count) {
+                    position = end + 1;
+                    return true;
+                }
+                position = count;
             }
-            String result = db.clear(key);
-            out.println(result);
+        }
 
+        private void append(int from, int to) throws BinaryProtocol.ProtocolException {
+            int length = to - from;
+            if (lineLength + length > TextProtocol.MAX_LINE_LENGTH) {
+                throw new BinaryProtocol.ProtocolException("Line too long");
+            }
+            if (lineLength + length > line.length) {
+                int size = Math.max(line.length * 2, lineLength + length);
+                line = Arrays.copyOf(line, Math.min(size, TextProtocol.MAX_LINE_LENGTH));
+            }
+            System.arraycopy(buffer, from, line, lineLength, length);
+            lineLength += length;
         }
-        /*
-         * Comandi per le liste
+
+        /**
+         * @return false se lo stream è finito.
          */
-        else if (inputLine.toLowerCase().startsWith("setl ")) {
-            /*
-             * Comando SETL key value1 value2
-             */
-            inputLine = inputLine.substring(5);
-            String[] parts = inputLine.split(" ", 2);
-            if (parts.length < 2) {
-                out.println("ERR Invalid SETL command format");
-                return;
+        private boolean fill() throws IOException {
+            position = 0;
+            count = Math.max(in.read(buffer, 0, buffer.length), 0);
+            return count > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= count && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
             }
-            String key = parts[0].trim();
-            // Crea una lista di valori splittando il messaggio da spazi
-            Vector<String> value = new Vector<>(List.of(parts[1].trim().split(" ")));
-            String result = db.setl(key, value);
-            out.println(result);
-
-        } else if (inputLine.toLowerCase().startsWith("getl ")) {
-            /*
-             * Comando GETL key
-             */
-            inputLine = inputLine.substring(5);
-            String key = inputLine.trim();
-            // Controlla che non ci siano spazi all'interno della chiave
-            if (key.contains(" ")) {
-                out.println("ERR Invalid key format");
-                return;
+            if (position >= count) {
+                // Le letture grandi non passano dal buffer.
+                if (length >= buffer.length) {
+                    return in.read(bytes, offset, length);
+                }
+                if (!fill()) {
+                    return -1;
+                }
             }
-            String result = db.getl(key);
-            out.println(result);
-
-        } else if (inputLine.toLowerCase().startsWith("clearl ")) {
-            /*
-             * Comando CLEARL key
-             */
-            inputLine = inputLine.substring(6);
-            String key = inputLine.trim();
-            // Controlla che non ci siano spazi all'interno della chiave
-            if (key.contains(" ")) {
-                out.println("ERR Invalid key format");
-                return;
+            int read = Math.min(length, count - position);
+            System.arraycopy(buffer, position, bytes, offset, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return count - position + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Codifica le risposte in un buffer riusato per tutta la connessione,
+     * così scrivere una risposta non crea oggetti. Ogni thread che scrive sul socket usa il suo.
+     */
+    private static class ReplyWriter {
+        private ByteBuffer buffer = ByteBuffer.allocate(LINE_SIZE);
+
+        /**
+         * @param binary true per il protocollo binario, false per quello testuale.
+         */
+        void write(OutputStream out, Reply reply, boolean binary) throws IOException {
+            int size = binary ? reply.binarySize() : reply.textSize();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
             }
-            String result = db.clearl(key);
-            out.println(result);
-
-        } else if (inputLine.toLowerCase().startsWith("addl ")) {
-            /*
-             * Comando ADDL key value3
-             */
-            inputLine = inputLine.substring(5);
-            String[] parts = inputLine.split(" ", 2);
-            if (parts.length < 2) {
-                out.println("ERR Invalid ADDL command format");
-                return;
+            buffer.clear();
+            if (binary) {
+                reply.writeBinary(buffer);
+            } else {
+                reply.writeText(buffer);
             }
-            String key = parts[0].trim();
-            String value = parts[1].trim();
-            String result = db.addl(key, value);
-            out.println(result);
-
-        } else if (inputLine.toLowerCase().startsWith("removel ")) {
-            /*
-             * Comando REMOVEL key value2
-             */
-            inputLine = inputLine.substring(8);
-            String[] parts = inputLine.split(" ", 2);
-            if (parts.length < 2) {
-                out.println("ERR Invalid REMOVEL command format");
-                return;
+            out.write(buffer.array(), 0, buffer.position());
+            if (buffer.capacity() > BUFFER_SIZE) {
+                buffer = ByteBuffer.allocate(LINE_SIZE);
             }
-            String key = parts[0].trim();
-            String value = parts[1].trim();
-            String result = db.removel(key, value);
-            out.println(result);
-
-        } else {
-            /*
-             * Comando sconosciuto
-             */
-            out.println("ERR Unknown command: " + inputLine);
         }
     }
 }
@@ -0,0 +1,79 @@
+package it.unimib.sd2025;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Insieme fisso di lock, ognuno dei quali protegge tutte le chiavi il cui hash
+ * cade nella sua "striscia" (lock striping).
+ * Le scritture su chiavi diverse usano quasi sempre lock diversi e quindi
+ * procedono in parallelo, mentre la memoria usata non dipende dal numero di chiavi.
+ */
+public class StripedLocks {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    /**
+     * @param count Numero di lock, arrotondato alla potenza di 2 successiva.
+     */
+    public StripedLocks(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Restituisce l'indice della striscia che protegge la chiave.
+     */
+    public int stripeOf(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Restituisce il lock che protegge la chiave.
+     */
+    public ReentrantLock get(String key) {
+        return stripes[stripeOf(key)];
+    }
+
+    /**
+     * Acquisisce i lock di tutte le chiavi, sempre in ordine crescente di striscia
+     * per evitare deadlock tra thread che bloccano insiemi di chiavi diversi.
+     *
+     * @return Gli indici delle strisce acquisite, da passare a unlockAll().
+     */
+    public int[] lockAll(Collection<String> keys) {
+        int[] indexes = keys.stream().mapToInt(this::stripeOf).distinct().sorted().toArray();
+        for (int index : indexes) {
+            stripes[index].lock();
+        }
+        return indexes;
+    }
+
+    /**
+     * Acquisisce tutti i lock, bloccando ogni scrittura sul database.
+     *
+     * @return Gli indici delle strisce acquisite, da passare a unlockAll().
+     */
+    public int[] lockEverything() {
+        int[] indexes = new int[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            indexes[i] = i;
+            stripes[i].lock();
+        }
+        return indexes;
+    }
+
+    /**
+     * Rilascia i lock acquisiti con lockAll().
+     */
+    public void unlockAll(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            stripes[indexes[i]].unlock();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package it.unimib.sd2025;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Parsing dei comandi del protocollo testuale direttamente dai byte ricevuti.
+ *
+ * Una riga viene controllata in un solo passaggio (solo caratteri ASCII stampabili) mentre si cerca
+ * la fine del nome del comando; il nome viene cercato senza creare stringhe in una tabella dei comandi
+ * noti, che indica come dividere gli argomenti. Vengono create solo le stringhe degli argomenti.
+ * Il nome di un comando noto è restituito come la costante in minuscolo della tabella, quindi
+ * i toLowerCase() e gli switch successivi non creano altre stringhe.
+ * Le risposte sono codificate da Reply.writeText().
+ */
+public final class TextProtocol {
+    /**
+     * Lunghezza massima di una riga in byte, senza l'a capo.
+     */
+    public static final int MAX_LINE_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Come vanno divisi gli argomenti dopo il nome del comando.
+     */
+    private enum Format {
+        /** Argomenti separati da uno o più spazi. */
+        WORDS,
+        /** Una chiave e un valore, che è tutto il resto della riga (SET, ADDL, REMOVEL, CONTAINSL). */
+        KEY_VALUE,
+        /** Una chiave, un numero e un valore che è tutto il resto della riga (CAS, SETEX). */
+        KEY_NUMBER_VALUE,
+        /** Al più una chiave, senza spazi (GET, CLEAR, CLEARL). */
+        KEY,
+        /** Una chiave e i valori di una lista, separati da un solo spazio (SETL). */
+        KEY_VALUES
+    }
+
+    /**
+     * Comando della tabella, con il nome in byte minuscoli per il confronto.
+     */
+    private static final class Entry {
+        final byte[] name;
+        final String command;
+        final Format format;
+
+        Entry(String command, Format format) {
+            this.name = command.getBytes(StandardCharsets.ISO_8859_1);
+            this.command = command;
+            this.format = format;
+        }
+    }
+
+    // Tabella a indirizzamento aperto, con una dimensione potenza di due almeno doppia dei comandi.
+    private static final Entry[] TABLE = buildTable(CommandProcessor.COMMANDS);
+
+    private static final byte SPACE = ' ';
+    private static final byte[] QUIT = { 'q', 'u', 'i', 't' };
+
+    private TextProtocol() {
+    }
+
+    private static Entry[] buildTable(Set<String> commands) {
+        Entry[] table = new Entry[Integer.highestOneBit(commands.size() * 2) << 1];
+        for (String command : commands) {
+            Entry entry = new Entry(command, formatOf(command));
+            int slot = hash(entry.name, 0, entry.name.length) & (table.length - 1);
+            while (table[slot] != null) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = entry;
+        }
+        return table;
+    }
+
+    private static Format formatOf(String command) {
+        switch (command) {
+            case "set":
+            case "addl":
+            case "removel":
+            case "containsl":
+                return Format.KEY_VALUE;
+            case "cas":
+            case "setex":
+                return Format.KEY_NUMBER_VALUE;
+            case "get":
+            case "clear":
+            case "clearl":
+                return Format.KEY;
+            case "setl":
+                return Format.KEY_VALUES;
+            default:
+                return Format.WORDS;
+        }
+    }
+
+    /**
+     * Hash del nome senza distinguere maiuscole e minuscole: il bit 0x20 delle lettere viene ignorato.
+     */
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + (bytes[i] | 0x20);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return Il comando della tabella con il nome indicato, senza distinguere maiuscole e minuscole,
+     *         oppure null se non è un comando noto.
+     */
+    private static Entry lookup(byte[] bytes, int start, int end) {
+        int slot = hash(bytes, start, end) & (TABLE.length - 1);
+        Entry entry;
+        while ((entry = TABLE[slot]) != null) {
+            if (equalsIgnoreCase(entry.name, bytes, start, end)) {
+                return entry;
+            }
+            slot = (slot + 1) & (TABLE.length - 1);
+        }
+        return null;
+    }
+
+    /**
+     * @param lowerCase Il nome in minuscolo.
+     */
+    private static boolean equalsIgnoreCase(byte[] lowerCase, byte[] bytes, int start, int end) {
+        if (end - start != lowerCase.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            byte b = bytes[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Trova l'inizio della riga senza spazi e caratteri di controllo iniziali (come String.trim()).
+     */
+    private static int trimStart(byte[] line, int start, int end) {
+        while (start < end && (line[start] & 0xFF) <= SPACE) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Trova la fine della riga senza spazi e caratteri di controllo finali (come String.trim()).
+     */
+    private static int trimEnd(byte[] line, int start, int end) {
+        while (end > start && (line[end - 1] & 0xFF) <= SPACE) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * @return true se la riga, senza spazi iniziali e finali, è il comando QUIT.
+     */
+    public static boolean isQuit(byte[] line, int start, int end) {
+        start = trimStart(line, start, end);
+        end = trimEnd(line, start, end);
+        return equalsIgnoreCase(QUIT, line, start, end);
+    }
+
+    /**
+     * @return Il nome del comando della riga in minuscolo, anche se non è un comando noto.
+     *         Usato solo per le statistiche dei comandi non validi.
+     */
+    public static String commandName(byte[] line, int start, int end) {
+        start = trimStart(line, start, end);
+        end = trimEnd(line, start, end);
+        int nameEnd = start;
+        while (nameEnd < end && line[nameEnd] != SPACE) {
+            nameEnd++;
+        }
+        Entry entry = lookup(line, start, nameEnd);
+        return entry != null ? entry.command : string(line, start, nameEnd).toLowerCase();
+    }
+
+    /**
+     * Divide una riga del protocollo testuale nel nome del comando e negli argomenti.
+     * Spazi e caratteri di controllo all'inizio e alla fine della riga vengono ignorati.
+     * Nei comandi SET, ADDL, REMOVEL, CONTAINSL, CAS e SETEX il valore è tutto il resto della riga,
+     * quindi può contenere spazi.
+     *
+     * @param line  L'array con la riga, senza il terminatore.
+     * @param start La posizione del primo byte della riga.
+     * @param end   La posizione dopo l'ultimo byte della riga.
+     * @return Il nome del comando (la costante in minuscolo se è un comando noto) seguito dagli
+     *         argomenti, oppure null se la riga è vuota o contiene caratteri non ASCII stampabili.
+     * @throws IllegalArgumentException Se il formato del comando non è valido.
+     */
+    public static String[] parse(byte[] line, int start, int end) {
+        start = trimStart(line, start, end);
+        end = trimEnd(line, start, end);
+        if (start == end) {
+            return null;
+        }
+
+        // Un solo passaggio su tutta la riga: controlla i caratteri e trova la fine del nome.
+        int nameEnd = -1;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b < 0x20 || b > 0x7E) {
+                return null;
+            }
+            if (b == SPACE && nameEnd < 0) {
+                nameEnd = i;
+            }
+        }
+        if (nameEnd < 0) {
+            nameEnd = end;
+        }
+
+        Entry entry = lookup(line, start, nameEnd);
+        String command = entry != null ? entry.command : string(line, start, nameEnd);
+        Format format = entry != null ? entry.format : Format.WORDS;
+        // Il resto della riga dopo il nome, senza spazi iniziali (quelli finali sono già stati tolti).
+        int rest = nameEnd;
+        while (rest < end && line[rest] == SPACE) {
+            rest++;
+        }
+
+        switch (format) {
+            case KEY_VALUE: {
+                /*
+                 * Comandi SET key value, ADDL key value3, REMOVEL key value2, CONTAINSL key value2
+                 */
+                int keyEnd = indexOf(line, rest, end);
+                if (keyEnd == end) {
+                    throw new IllegalArgumentException("Invalid " + command.toUpperCase() + " command format");
+                }
+                int value = skipSpaces(line, keyEnd, end);
+                return new String[] { command, string(line, rest, keyEnd), string(line, value, end) };
+            }
+            case KEY_NUMBER_VALUE: {
+                /*
+                 * Comandi CAS key version value, SETEX key seconds value
+                 */
+                int keyEnd = indexOf(line, rest, end);
+                int number = skipSpaces(line, keyEnd, end);
+                int numberEnd = indexOf(line, number, end);
+                if (numberEnd == end) {
+                    throw new IllegalArgumentException("Invalid " + command.toUpperCase() + " command format");
+                }
+                int value = skipSpaces(line, numberEnd, end);
+                return new String[] { command, string(line, rest, keyEnd), string(line, number, numberEnd),
+                                      string(line, value, end) };
+            }
+            case KEY:
+                /*
+                 * Comandi GET key, CLEAR key, CLEARL key
+                 */
+                // Controlla che non ci siano spazi all'interno della chiave
+                if (indexOf(line, rest, end) != end) {
+                    throw new IllegalArgumentException("Invalid key format");
+                }
+                return rest == end ? new String[] { command } : new String[] { command, string(line, rest, end) };
+            case KEY_VALUES: {
+                /*
+                 * Comando SETL key value1 value2
+                 */
+                int keyEnd = indexOf(line, rest, end);
+                if (keyEnd == end) {
+                    throw new IllegalArgumentException("Invalid SETL command format");
+                }
+                // I valori sono separati da un solo spazio: due spazi di seguito indicano un valore vuoto.
+                int values = skipSpaces(line, keyEnd, end);
+                int count = 1;
+                for (int i = values; i < end; i++) {
+                    if (line[i] == SPACE) {
+                        count++;
+                    }
+                }
+                String[] args = new String[count + 2];
+                args[0] = command;
+                args[1] = string(line, rest, keyEnd);
+                int from = values;
+                for (int i = 2; i < args.length; i++) {
+                    int to = indexOf(line, from, end);
+                    args[i] = string(line, from, to);
+                    from = to + 1;
+                }
+                return args;
+            }
+            default: {
+                /*
+                 * Comandi su più chiavi e comandi senza valori con spazi
+                 */
+                int count = 1;
+                for (int i = rest; i < end; ) {
+                    count++;
+                    i = skipSpaces(line, indexOf(line, i, end), end);
+                }
+                String[] args = new String[count];
+                args[0] = command;
+                int from = rest;
+                for (int i = 1; i < count; i++) {
+                    int to = indexOf(line, from, end);
+                    args[i] = string(line, from, to);
+                    from = skipSpaces(line, to, end);
+                }
+                return args;
+            }
+        }
+    }
+
+    /**
+     * @return La posizione del primo spazio da start, oppure end se non ce ne sono.
+     */
+    private static int indexOf(byte[] line, int start, int end) {
+        while (start < end && line[start] != SPACE) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * @return La posizione del primo carattere diverso da spazio da start, oppure end.
+     */
+    private static int skipSpaces(byte[] line, int start, int end) {
+        while (start < end && line[start] == SPACE) {
+            start++;
+        }
+        return start;
+    }
+
+    private static String string(byte[] line, int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,141 @@
+package it.unimib.sd2025;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timer wheel gerarchica per le scadenze delle chiavi (vedi Database).
+ *
+ * Il tempo è diviso in tick di durata fissa. Ogni livello ha SLOTS posizioni: al livello 0
+ * ogni posizione vale un tick, al livello 1 SLOTS tick, al livello 2 SLOTS * SLOTS tick e così via.
+ * Una scadenza viene messa nel livello più basso che la contiene, quindi aggiungerla costa O(1)
+ * qualunque sia il numero di scadenze. Quando il tempo avanza vengono svuotate le posizioni
+ * del livello 0 e, ogni volta che un livello completa un giro, la posizione corrente del livello
+ * superiore viene ridistribuita in quelli inferiori. Ogni scadenza viene quindi spostata al più
+ * una volta per livello e non serve mai scorrere tutte le chiavi né un timer per chiave.
+ *
+ * Una chiave può comparire più volte, ad esempio se la sua scadenza è stata cambiata:
+ * chi riceve le chiavi scadute deve controllare la scadenza attuale.
+ * I metodi sono sincronizzati e non chiamano codice esterno, quindi si possono
+ * usare tenendo i lock delle chiavi.
+ */
+public class TimerWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private record Timer(String key, long tick) {
+    }
+
+    /**
+     * Scadenze di una posizione. Serve a evitare un array di liste, che Java non permette di
+     * creare con il tipo degli elementi.
+     */
+    private static final class Slot {
+        final List<Timer> timers = new ArrayList<>();
+    }
+
+    private final long tickMillis;
+    // Posizioni di ogni livello, create solo quando servono.
+    private final Slot[][] wheels = new Slot[LEVELS][SLOTS];
+    // Scadenze oltre l'ultimo livello, ridistribuite quando l'ultimo livello completa un giro.
+    private List<Timer> overflow = new ArrayList<>();
+    // Ultimo tick già elaborato.
+    private long currentTick;
+    private long size;
+
+    /**
+     * @param tickMillis Durata di un tick: le chiavi vengono restituite al più due tick dopo la scadenza
+     *                   (uno per l'arrotondamento e uno se la scadenza era già passata quando è stata aggiunta).
+     * @param nowMillis  Ora attuale.
+     */
+    public TimerWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Aggiunge la scadenza di una chiave.
+     *
+     * @param deadlineMillis Istante della scadenza, in millisecondi dal 1970.
+     */
+    public synchronized void add(String key, long deadlineMillis) {
+        // Arrotonda per eccesso: una chiave non viene mai restituita prima della scadenza.
+        long tick = Math.max(Math.ceilDiv(deadlineMillis, tickMillis), currentTick + 1);
+        place(new Timer(key, tick));
+        size++;
+    }
+
+    /**
+     * @return Il numero di scadenze nella wheel, comprese quelle non più valide.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Fa avanzare il tempo fino all'ora indicata e restituisce le chiavi scadute.
+     * Si ferma prima se ha già trovato almeno max chiavi: le altre vengono
+     * restituite dalla chiamata successiva.
+     */
+    public synchronized List<String> advance(long nowMillis, int max) {
+        List<String> expired = new ArrayList<>();
+        long target = nowMillis / tickMillis;
+        while (currentTick < target && expired.size() < max) {
+            currentTick++;
+            cascade();
+            int slot = (int) currentTick & (SLOTS - 1);
+            Slot timers = wheels[0][slot];
+            if (timers != null) {
+                wheels[0][slot] = null;
+                for (Timer timer : timers.timers) {
+                    expired.add(timer.key);
+                }
+                size -= timers.timers.size();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Ridistribuisce le posizioni dei livelli superiori che iniziano al tick corrente.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = SLOT_BITS * level;
+            if ((currentTick & ((1L << shift) - 1)) != 0) {
+                return;
+            }
+            int slot = (int) (currentTick >>> shift) & (SLOTS - 1);
+            Slot timers = wheels[level][slot];
+            if (timers != null) {
+                wheels[level][slot] = null;
+                timers.timers.forEach(this::place);
+            }
+        }
+        if ((currentTick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+            List<Timer> timers = overflow;
+            overflow = new ArrayList<>();
+            timers.forEach(this::place);
+        }
+    }
+
+    /**
+     * Mette la scadenza nel livello più basso il cui giro corrente la contiene:
+     * la sua posizione verrà raggiunta (o ridistribuita) prima della scadenza.
+     */
+    private void place(Timer timer) {
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if ((timer.tick >>> shift) == (currentTick >>> shift)) {
+                int slot = (int) (timer.tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+                if (wheels[level][slot] == null) {
+                    wheels[level][slot] = new Slot();
+                }
+                wheels[level][slot].timers.add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+}
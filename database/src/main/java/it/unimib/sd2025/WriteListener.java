@@ -0,0 +1,29 @@
+package it.unimib.sd2025;
+
+import java.util.List;
+
+/**
+ * Interfaccia per ricevere le scritture applicate al database, sotto forma
+ * di comandi con i loro argomenti (es. `{"SET", key, value}`).
+ * Viene usata per il log delle scritture su disco.
+ */
+public interface WriteListener {
+    /**
+     * Chiamato dopo aver applicato una o più scritture, mentre il database tiene
+     * ancora i lock delle chiavi coinvolte: per la stessa chiave le chiamate
+     * arrivano nello stesso ordine in cui le scritture sono state applicate.
+     * Deve essere veloce perché blocca le altre scritture sulle stesse chiavi.
+     *
+     * @param commands I comandi applicati, ognuno come nome e argomenti. Se sono più di uno fanno parte di
+     *                 un'unica operazione atomica (MSET o transazione).
+     */
+    void onWrite(List<String[]> commands);
+
+    /**
+     * Chiamato dal thread che ha eseguito la scrittura dopo aver rilasciato tutti i lock
+     * delle chiavi, prima di rispondere al client. Può bloccare, ad esempio per attendere
+     * che la scrittura sia stata salvata su disco.
+     */
+    default void afterWrite() {
+    }
+}
@@ -0,0 +1,223 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Rilettura del log delle scritture dopo una scrittura interrotta e dopo una riscrittura in background.
+ * Le scritture usano la politica ALWAYS, quindi quando un comando ha risposto è già nel file.
+ */
+class AppendOnlyLogTest {
+    private static final long REWRITE_MIN_SIZE = 64 << 10;
+
+    private final Database db = Database.getInstance();
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("test");
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+    }
+
+    @Test
+    void replayRestoresEveryTypeOfWrite() throws Exception {
+        Path path = dir.resolve("appendonly.log");
+        long deadline = System.currentTimeMillis() + 3_600_000;
+        record(path, () -> {
+            run("SET", "s", "value with spaces");
+            run("SET", "gone", "x");
+            run("CLEAR", "gone");
+            run("SETL", "l", "a", "b", "c");
+            run("REMOVEL", "l", "b");
+            run("SETH", "h", "name", "Mario", "balance", "10");
+            run("INCRBYFLOATH", "h", "balance", "2.5");
+            run("PEXPIREAT", "s", String.valueOf(deadline));
+        });
+
+        db.clearAll();
+        assertEquals(8, new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay());
+
+        assertEquals("OK value with spaces", run("GET", "s"));
+        assertEquals("OK ", run("GET", "gone"));
+        assertEquals("OK a c", run("GETL", "l"));
+        assertEquals("OK name Mario balance 12.5", run("GETALLH", "h"));
+        long ttl = Long.parseLong(run("TTL", "s").substring(3));
+        assertTrue(ttl > 3500 && ttl <= 3600, "TTL " + ttl);
+    }
+
+    @Test
+    void replayIgnoresTruncatedLastCommand() throws Exception {
+        Path path = dir.resolve("appendonly.log");
+        record(path, () -> {
+            run("SET", "a", "1");
+            run("SET", "b", "2");
+        });
+        truncate(path, 3);
+
+        db.clearAll();
+        assertEquals(1, new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay());
+
+        assertEquals("OK 1", run("GET", "a"));
+        assertEquals("OK ", run("GET", "b"));
+    }
+
+    @Test
+    void replayDiscardsTransactionWithoutExec() throws Exception {
+        Path path = dir.resolve("appendonly.log");
+        record(path, () -> {
+            run("SET", "a", "1");
+            transaction("b", "2", "c", "3");
+        });
+        // Toglie esattamente l'EXEC finale: il blocco MULTI resta senza chiusura.
+        ByteArrayOutputStream exec = new ByteArrayOutputStream();
+        BinaryProtocol.writeCommand(exec, "EXEC");
+        truncate(path, exec.size());
+
+        db.clearAll();
+        new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay();
+
+        assertEquals("OK 1", run("GET", "a"));
+        assertEquals("OK  ", run("MGET", "b", "c"));
+    }
+
+    @Test
+    void writesAfterTruncatedCommandAreReplayed() throws Exception {
+        Path path = dir.resolve("appendonly.log");
+        record(path, () -> {
+            run("SET", "a", "1");
+            run("SET", "b", "2");
+        });
+        truncate(path, 3);
+
+        // Riavvio: rilettura del log e nuove scritture aggiunte allo stesso file.
+        db.clearAll();
+        assertEquals(1, new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay());
+        record(path, () -> {
+            run("SET", "c", "3");
+            run("SETL", "l", "x", "y");
+        });
+
+        db.clearAll();
+        assertEquals(3, new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay());
+        assertEquals("OK 1  3", run("MGET", "a", "b", "c"));
+        assertEquals("OK x y", run("GETL", "l"));
+    }
+
+    @Test
+    void writesAfterTransactionWithoutExecAreReplayed() throws Exception {
+        Path path = dir.resolve("appendonly.log");
+        record(path, () -> {
+            run("SET", "a", "1");
+            transaction("b", "2", "c", "3");
+        });
+        ByteArrayOutputStream exec = new ByteArrayOutputStream();
+        BinaryProtocol.writeCommand(exec, "EXEC");
+        truncate(path, exec.size());
+
+        db.clearAll();
+        assertEquals(4, new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay());
+        record(path, () -> {
+            run("SET", "d", "4");
+            transaction("e", "5", "f", "6");
+        });
+
+        // La transazione interrotta non viene applicata insieme all'EXEC delle scritture successive.
+        db.clearAll();
+        assertEquals(6, new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay());
+        assertEquals("OK 1   4 5 6", run("MGET", "a", "b", "c", "d", "e", "f"));
+    }
+
+    @Test
+    void replayAfterRewriteRestoresLatestState() throws Exception {
+        Path path = dir.resolve("appendonly.log");
+        String padding = "x".repeat(1000);
+        record(path, () -> {
+            run("SETL", "l", "first");
+            // Circa 70 KB di scritture sulla stessa chiave: il file supera la soglia e viene riscritto.
+            for (int i = 0; i < 70; i++) {
+                run("SET", "big", i + padding);
+            }
+            waitForRewrite(path);
+            assertFalse(Files.exists(dir.resolve("appendonly.log.rewrite")));
+
+            // Le scritture dopo la riscrittura vengono aggiunte al nuovo file.
+            run("ADDL", "l", "second");
+            run("SET", "after", "1");
+            run("CLEAR", "big");
+            run("SET", "big", "last");
+        });
+
+        db.clearAll();
+        new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE).replay();
+
+        assertEquals("OK last", run("GET", "big"));
+        assertEquals("OK 1", run("GET", "after"));
+        assertEquals("OK first second", run("GETL", "l"));
+    }
+
+    /**
+     * Avvia il log sul percorso indicato (in append se il file esiste già, come a un riavvio),
+     * esegue le scritture e lo stacca dal database.
+     */
+    private void record(Path path, Writes writes) throws Exception {
+        var aof = new AppendOnlyLog(db, path, AppendOnlyLog.FsyncPolicy.ALWAYS, REWRITE_MIN_SIZE);
+        aof.start();
+        db.addWriteListener(aof);
+        try {
+            writes.run();
+        } finally {
+            db.removeWriteListener(aof);
+        }
+    }
+
+    /**
+     * Esegue una SET per ogni coppia chiave-valore in una transazione, salvata nel log come blocco MULTI/EXEC.
+     */
+    private void transaction(String... pairs) {
+        run("MULTI");
+        for (int i = 0; i < pairs.length; i += 2) {
+            run("SET", pairs[i], pairs[i + 1]);
+        }
+        assertTrue(run("EXEC").startsWith("OK " + pairs.length / 2 + " "));
+    }
+
+    private interface Writes {
+        void run() throws Exception;
+    }
+
+    /**
+     * Attende che il file venga sostituito dalla riscrittura, molto più piccolo delle scritture fatte.
+     */
+    private static void waitForRewrite(Path path) throws IOException, InterruptedException {
+        long timeout = System.currentTimeMillis() + 10_000;
+        while (Files.size(path) > REWRITE_MIN_SIZE / 4) {
+            assertTrue(System.currentTimeMillis() < timeout, "append-only log not rewritten");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void truncate(Path path, int bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    private String run(String... args) {
+        return processor.process(session, args).toText();
+    }
+}
@@ -0,0 +1,336 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Protocollo binario e protocollo testuale sugli stessi comandi, con entrambi i modelli di server:
+ * le risposte binarie, riportate nel formato testuale, devono essere uguali a quelle testuali.
+ */
+class BinaryProtocolTest {
+    private static final int THREAD_PORT = freePort();
+    private static final int NIO_PORT = freePort();
+
+    static {
+        // Va impostata prima che Main legga la porta del server a thread.
+        System.setProperty("db.port", String.valueOf(THREAD_PORT));
+    }
+
+    /**
+     * Comandi eseguiti con i due protocolli. Nel protocollo testuale sono uniti da spazi,
+     * quindi solo l'ultimo argomento di SET può contenere spazi.
+     */
+    private static final String[][] SCRIPT = {
+        { "PING" },
+        { "SET", "s", "hello world" },
+        { "GET", "s" },
+        { "GET", "missing" },
+        { "SETL", "l", "x", "y", "z" },
+        { "GETL", "l" },
+        { "ADDL", "l", "w" },
+        { "REMOVEL", "l", "y" },
+        { "GETL", "l" },
+        { "LENL", "l" },
+        { "CONTAINSL", "l", "x" },
+        { "GETRANGEL", "l", "0", "1" },
+        { "SETH", "h", "name", "Mario", "balance", "10" },
+        { "GETH", "h", "name" },
+        { "GETH", "h", "missing" },
+        { "INCRBYFLOATH", "h", "balance", "2.5" },
+        { "GETALLH", "h" },
+        { "MSET", "m1", "1", "m2", "2" },
+        { "MGET", "m1", "missing", "m2" },
+        { "MGETL", "l", "missing" },
+        { "MGETALLH", "h", "missing" },
+        { "INCRBY", "n", "3" },
+        { "DECRBYFLOATIF", "n", "10" },
+        { "EXPIRE", "s", "100" },
+        { "TTL", "s" },
+        { "MULTI" },
+        { "SET", "t", "1" },
+        { "INCRBY", "t", "2" },
+        { "GET", "t" },
+        { "GET", "missing" },
+        { "EXEC" },
+        { "EXEC" },
+        { "CLEAR", "s" },
+        { "GET", "s" },
+        { "NOSUCHCOMMAND", "x" },
+        { "GETL", "missing" },
+    };
+
+    private final Database db = Database.getInstance();
+
+    @BeforeAll
+    static void startServers() throws IOException {
+        Thread threadServer = new Thread(() -> {
+            try {
+                Main.startServer();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        threadServer.setDaemon(true);
+        threadServer.start();
+
+        NioServer nioServer = new NioServer(NIO_PORT, 1);
+        Thread nioThread = new Thread(() -> {
+            try {
+                nioServer.start();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        nioThread.setDaemon(true);
+        nioThread.start();
+    }
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "thread", "nio" })
+    void binaryRepliesMatchTextReplies(String server) throws IOException {
+        int port = server.equals("thread") ? THREAD_PORT : NIO_PORT;
+
+        List<String> textReplies = new ArrayList<>();
+        try (Connection text = new Connection(port)) {
+            for (String[] command : SCRIPT) {
+                textReplies.add(text.sendText(String.join(" ", command)));
+            }
+        }
+
+        db.clearAll();
+        List<String> binaryReplies = new ArrayList<>();
+        try (Connection binary = new Connection(port)) {
+            assertEquals("OK", binary.sendText("PROTOCOL BINARY"));
+            for (String[] command : SCRIPT) {
+                binaryReplies.add(binary.sendBinary(command));
+            }
+            assertEquals("OK", binary.sendBinary("PROTOCOL", "TEXT"));
+            assertEquals("OK 3", binary.sendText("GET t"));
+        }
+
+        for (int i = 0; i < SCRIPT.length; i++) {
+            assertEquals(textReplies.get(i), binaryReplies.get(i), String.join(" ", SCRIPT[i]));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "thread", "nio" })
+    void binaryValuesKeepEveryByte(String server) throws IOException {
+        int port = server.equals("thread") ? THREAD_PORT : NIO_PORT;
+        StringBuilder bytes = new StringBuilder();
+        for (char c = 0; c < 256; c++) {
+            bytes.append(c);
+        }
+        String key = "key with spaces\nand a newline";
+
+        try (Connection binary = new Connection(port)) {
+            binary.sendText("PROTOCOL BINARY");
+            assertEquals("OK", binary.sendBinary("SET", key, bytes.toString()));
+            assertEquals("OK " + bytes, binary.sendBinary("GET", key));
+            assertEquals("OK", binary.sendBinary("SETL", "list", "", bytes.toString()));
+            assertEquals("OK  " + bytes, binary.sendBinary("GETL", "list"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "thread", "nio" })
+    void invalidBinaryCommandClosesConnection(String server) throws IOException {
+        int port = server.equals("thread") ? THREAD_PORT : NIO_PORT;
+        try (Connection binary = new Connection(port)) {
+            binary.sendText("PROTOCOL BINARY");
+            // Zero argomenti: la connessione non si può più sincronizzare sul comando successivo.
+            binary.out.write(0);
+            binary.out.flush();
+            assertEquals('-', binary.in.read());
+            binary.readReply('-', "");
+            assertThrows(IOException.class, () -> binary.sendBinary("PING"));
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Connessione di prova che invia comandi in uno dei due protocolli e legge le risposte.
+     */
+    private static class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        // Comandi accodati dopo MULTI, per leggere le risposte di EXEC; null fuori dalle transazioni.
+        private List<String> queued;
+
+        Connection(int port) throws IOException {
+            socket = connect(port);
+            in = new DataInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        private static Socket connect(int port) throws IOException {
+            // Il server potrebbe non essere ancora in ascolto.
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return new Socket("localhost", port);
+                } catch (IOException e) {
+                    if (attempt == 50) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        String sendText(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                reply.write(b);
+            }
+            return reply.toString(StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Invia un comando binario e restituisce la risposta nel formato del protocollo testuale.
+         */
+        String sendBinary(String... args) throws IOException {
+            ByteArrayOutputStream command = new ByteArrayOutputStream();
+            BinaryProtocol.writeCommand(command, args);
+            command.writeTo(out);
+            out.flush();
+            int type = in.read();
+            if (type == -1) {
+                throw new EOFException();
+            }
+
+            String name = args[0].toLowerCase();
+            if (name.equals("exec") && queued != null) {
+                List<String> commands = queued;
+                queued = null;
+                if (type == '*') {
+                    return readReplies(commands);
+                }
+            } else if (queued != null) {
+                queued.add(name);
+            } else if (name.equals("multi")) {
+                queued = new ArrayList<>();
+            }
+            return readReply(type, name);
+        }
+
+        /**
+         * Legge una risposta binaria e la riporta nel formato del protocollo testuale (vedi Reply.toText()).
+         * Il formato di un elenco dipende dal comando: MGETL e MGETALLH rispondono con un elenco di elenchi.
+         */
+        String readReply(int type, String command) throws IOException {
+            switch (type) {
+                case '+':
+                    return readString();
+                case '-':
+                    return "ERR " + readString();
+                case '$':
+                    return "OK " + readString();
+                case '_':
+                    return "OK ";
+                case '*': {
+                    int count = readVarint();
+                    StringBuilder reply = new StringBuilder("OK");
+                    if (command.equals("mgetl") || command.equals("mgetallh")) {
+                        // Ogni elenco è preceduto dalla sua lunghezza.
+                        for (int i = 0; i < count; i++) {
+                            in.readUnsignedByte();
+                            int length = readVarint();
+                            reply.append(' ').append(length);
+                            for (int j = 0; j < length; j++) {
+                                reply.append(' ').append(readValue());
+                            }
+                        }
+                        return reply.toString();
+                    }
+                    for (int i = 0; i < count; i++) {
+                        reply.append(' ').append(readValue());
+                    }
+                    return count == 0 ? "OK " : reply.toString();
+                }
+                default:
+                    throw new IOException("Unexpected reply type " + type);
+            }
+        }
+
+        /**
+         * Legge la risposta di EXEC: `OK n` seguito da ogni risposta preceduta dalla sua lunghezza.
+         */
+        private String readReplies(List<String> commands) throws IOException {
+            int count = readVarint();
+            StringBuilder reply = new StringBuilder("OK ").append(count);
+            for (int i = 0; i < count; i++) {
+                String text = readReply(in.read(), commands.get(i));
+                reply.append(' ').append(text.length()).append(' ').append(text);
+            }
+            return reply.toString();
+        }
+
+        private String readValue() throws IOException {
+            int type = in.read();
+            return type == '_' ? "" : readReply(type, "").substring(3);
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[readVarint()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * I test di SnapshotFileTest con i valori in memoria come byte[] (`db.storage=compact`).
+ */
+class CompactSnapshotFileTest extends SnapshotFileTest {
+    static {
+        // Va impostata prima di usare CompactStorage, che la legge una volta sola.
+        System.setProperty("db.storage", "compact");
+    }
+
+    @Test
+    void valuesAreStoredCompact() {
+        assertTrue(CompactStorage.ENABLED);
+    }
+}
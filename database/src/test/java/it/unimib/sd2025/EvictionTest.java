@@ -0,0 +1,116 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Limite di memoria con la politica allkeys-lru: le scritture oltre il limite cancellano
+ * le chiavi usate meno di recente invece di essere rifiutate.
+ * NoEvictionTest controlla le scritture rifiutate con la politica noeviction.
+ */
+class EvictionTest {
+    static final long MAX_MEMORY = 20_000;
+    // Il limite è controllato prima della scrittura: può essere superato al massimo di una chiave.
+    static final long KEY_SIZE = 400;
+    static final String VALUE = "v".repeat(100);
+
+    static {
+        // Vanno impostate prima che Database le legga.
+        System.setProperty("db.maxmemory", String.valueOf(MAX_MEMORY));
+        System.setProperty("db.maxmemory.policy", "allkeys-lru");
+    }
+
+    private final Database db = Database.getInstance();
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("test");
+
+    // Chiavi cancellate, come notificate al log delle scritture.
+    private final Set<String> cleared = ConcurrentHashMap.newKeySet();
+    private final WriteListener listener = commands -> {
+        for (String[] command : commands) {
+            if (command[0].startsWith("CLEAR")) {
+                cleared.add(command[1]);
+            }
+        }
+    };
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+        db.startMemoryLimit();
+        db.addWriteListener(listener);
+    }
+
+    @AfterEach
+    void removeListener() {
+        db.removeWriteListener(listener);
+    }
+
+    @Test
+    void writesOverTheLimitEvictKeys() {
+        long evicted = memory(db).get("evicted");
+        for (int i = 0; i < 500; i++) {
+            assertEquals("OK", run("SET", "k" + i, VALUE));
+            long used = memory(db).get("used");
+            assertTrue(used <= MAX_MEMORY + KEY_SIZE, "used " + used);
+        }
+
+        Map<String, Long> memory = memory(db);
+        assertEquals(0, memory.get("rejected"));
+        assertTrue(memory.get("evicted") - evicted > 400);
+        assertEquals(memory.get("evicted") - evicted, cleared.size());
+        assertEquals("OK " + VALUE, run("GET", "k499"));
+        assertEquals("OK ", run("GET", "k0"));
+    }
+
+    @Test
+    void recentlyReadKeyIsNotEvicted() throws InterruptedException {
+        run("SET", "hot", VALUE);
+        for (int i = 0; i < 60; i++) {
+            run("SET", "cold" + i, VALUE);
+        }
+        assertTrue(cleared.isEmpty(), "the limit was reached too early");
+        Thread.sleep(20);
+
+        for (int i = 0; i < 60; i++) {
+            assertEquals("OK " + VALUE, run("GET", "hot"));
+            assertEquals("OK", run("SET", "new" + i, VALUE));
+            // Dopo la pausa `hot` è l'unica chiave usata più di recente delle altre.
+            Thread.sleep(2);
+        }
+
+        assertTrue(cleared.size() > 20);
+        assertFalse(cleared.contains("hot"));
+        assertTrue(cleared.stream().anyMatch(key -> key.startsWith("cold")));
+        assertEquals("OK " + VALUE, run("GET", "hot"));
+        assertEquals("OK " + VALUE, run("GET", "new59"));
+    }
+
+    /**
+     * Statistiche numeriche di MEMORY.
+     */
+    static Map<String, Long> memory(Database db) {
+        String[] values = db.memory().toText().substring(3).split(" ");
+        Map<String, Long> memory = new HashMap<>();
+        for (int i = 0; i < values.length; i += 2) {
+            if (!values[i].equals("policy")) {
+                memory.put(values[i], Long.parseLong(values[i + 1]));
+            }
+        }
+        return memory;
+    }
+
+    private String run(String... args) {
+        return processor.process(session, args).toText();
+    }
+}
@@ -0,0 +1,119 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Scadenze delle chiavi applicate dal database: cancellazione in background tramite la timer wheel
+ * e cancellazione quando una chiave scaduta viene usata.
+ */
+class ExpireTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private final Database db = Database.getInstance();
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("test");
+
+    // Chiavi cancellate, come notificate al log delle scritture.
+    private final Set<String> cleared = ConcurrentHashMap.newKeySet();
+    private final WriteListener listener = commands -> {
+        for (String[] command : commands) {
+            if (command[0].startsWith("CLEAR")) {
+                cleared.add(command[1]);
+            }
+        }
+    };
+
+    @BeforeAll
+    static void startExpiring() {
+        Database.getInstance().startExpiring();
+    }
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+        db.addWriteListener(listener);
+    }
+
+    @AfterEach
+    void removeListener() {
+        db.removeWriteListener(listener);
+    }
+
+    @Test
+    void expiredKeysAreRemovedWithoutBeingRead() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 200;
+        run("SET", "s", "value");
+        run("SETL", "l", "a", "b");
+        run("SETH", "h", "name", "Mario");
+        run("SET", "kept", "value");
+        for (String key : List.of("s", "l", "h")) {
+            assertEquals("OK 1", run("PEXPIREAT", key, String.valueOf(deadline)));
+        }
+
+        waitUntil(() -> cleared.containsAll(Set.of("s", "l", "h")));
+        assertTrue(System.currentTimeMillis() >= deadline);
+        assertEquals(List.of("strings", "1", "lists", "0", "hashes", "0", "expires", "0"), db.keyspace());
+        assertEquals("OK value", run("GET", "kept"));
+    }
+
+    @Test
+    void expiredKeyIsRemovedWhenRead() throws InterruptedException {
+        run("SET", "s", "value");
+        run("PEXPIREAT", "s", String.valueOf(System.currentTimeMillis() + 50));
+        Thread.sleep(60);
+
+        // Può essere già stata cancellata in background, ma non viene mai restituita.
+        assertEquals("OK ", run("GET", "s"));
+        assertEquals("OK -2", run("TTL", "s"));
+        assertTrue(cleared.contains("s"));
+    }
+
+    @Test
+    void laterDeadlineReplacesEarlierOne() throws InterruptedException {
+        run("SET", "s", "value");
+        run("PEXPIREAT", "s", String.valueOf(System.currentTimeMillis() + 100));
+        assertEquals("OK 1", run("EXPIRE", "s", "60"));
+        Thread.sleep(300);
+
+        assertEquals("OK value", run("GET", "s"));
+        assertEquals("OK 60", run("TTL", "s"));
+        assertTrue(cleared.isEmpty());
+    }
+
+    @Test
+    void setAndClearRemoveTheDeadline() {
+        assertEquals("OK", run("SETEX", "s", "60", "value"));
+        assertEquals("OK 60", run("TTL", "s"));
+        run("SET", "s", "other");
+        assertEquals("OK -1", run("TTL", "s"));
+
+        run("SETEX", "s", "60", "value");
+        run("CLEAR", "s");
+        assertEquals("OK -2", run("TTL", "s"));
+        run("SET", "s", "again");
+        assertEquals("OK -1", run("TTL", "s"));
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < timeout, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private String run(String... args) {
+        return processor.process(session, args).toText();
+    }
+}
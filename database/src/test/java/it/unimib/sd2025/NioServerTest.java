@@ -0,0 +1,161 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Server NIO con un solo event loop: un comando che attende un lock non deve fermare
+ * le altre connessioni dell'event loop, né cambiare l'ordine delle risposte della sua.
+ */
+class NioServerTest {
+    private static final int PORT = freePort();
+
+    private final Database db = Database.getInstance();
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        NioServer server = new NioServer(PORT, 1);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+    }
+
+    @Test
+    void blockedCommandDoesNotStopTheEventLoop() throws Exception {
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // Tiene il lock di `k` finché il test non lo rilascia.
+        Thread holder = new Thread(() -> db.atomically(List.of("k"), () -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+        holder.start();
+        locked.await();
+
+        try (Client blocked = new Client(PORT); Client other = new Client(PORT)) {
+            // Due comandi nello stesso invio: il secondo attende la risposta del primo.
+            blocked.write("MSET k 1 x 2\nGET k\n");
+            assertEquals("PONG", other.send("PING"));
+            assertEquals("OK", other.send("SET y 3"));
+            assertEquals("OK 3", other.send("GET y"));
+            assertFalse(blocked.ready());
+
+            release.countDown();
+            holder.join();
+            assertEquals("OK", blocked.readLine());
+            assertEquals("OK 1", blocked.readLine());
+            assertEquals("OK 2", other.send("GET x"));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void transactionRepliesKeepTheirOrder() throws Exception {
+        try (Client client = new Client(PORT)) {
+            client.write("MULTI\nSET a 1\nINCRBY a 2\nEXEC\nGET a\n");
+            assertEquals("OK", client.readLine());
+            assertEquals("QUEUED", client.readLine());
+            assertEquals("QUEUED", client.readLine());
+            assertEquals("OK 2 2 OK 4 OK 3", client.readLine());
+            assertEquals("OK 3", client.readLine());
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Connessione di prova con il protocollo testuale.
+     */
+    private static class Client implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        Client(int port) throws IOException {
+            socket = connect(port);
+            // Se l'event loop resta bloccato il test fallisce invece di attendere per sempre.
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            out = socket.getOutputStream();
+        }
+
+        private static Socket connect(int port) throws IOException {
+            // Il server potrebbe non essere ancora in ascolto.
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return new Socket("localhost", port);
+                } catch (IOException e) {
+                    if (attempt == 50) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        void write(String lines) throws IOException {
+            out.write(lines.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            return in.readLine();
+        }
+
+        boolean ready() throws IOException {
+            return in.ready();
+        }
+
+        String send(String line) throws IOException {
+            write(line + "\n");
+            return readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
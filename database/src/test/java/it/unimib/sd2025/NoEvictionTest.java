@@ -0,0 +1,84 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Limite di memoria con la politica noeviction: oltre il limite i comandi che possono
+ * occupare memoria vengono rifiutati, gli altri continuano a essere eseguiti.
+ */
+class NoEvictionTest {
+    private static final String OUT_OF_MEMORY = "ERR Command not allowed when used memory is over the limit";
+
+    static {
+        // Vanno impostate prima che Database le legga.
+        System.setProperty("db.maxmemory", String.valueOf(EvictionTest.MAX_MEMORY));
+        System.setProperty("db.maxmemory.policy", "noeviction");
+    }
+
+    private final Database db = Database.getInstance();
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("test");
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+        db.startMemoryLimit();
+    }
+
+    @Test
+    void writesOverTheLimitAreRejected() {
+        int written = fill();
+        long rejected = EvictionTest.memory(db).get("rejected");
+        assertEquals(OUT_OF_MEMORY, run("SET", "other", "x"));
+        assertEquals(OUT_OF_MEMORY, run("SETL", "list", "x"));
+        assertEquals(OUT_OF_MEMORY, run("INCRBY", "k0", "1"));
+        assertEquals(rejected + 3, EvictionTest.memory(db).get("rejected"));
+        assertEquals(0, EvictionTest.memory(db).get("evicted"));
+
+        // Nessuna chiave è stata cancellata, e letture, scadenze e cancellazioni sono permesse.
+        for (int i = 0; i < written; i++) {
+            assertEquals("OK " + EvictionTest.VALUE, run("GET", "k" + i));
+        }
+        assertEquals("OK ", run("GET", "other"));
+        assertEquals("OK 1", run("EXPIRE", "k0", "60"));
+        assertEquals("OK", run("CLEAR", "k0"));
+        assertEquals("OK", run("CLEAR", "k1"));
+        assertEquals("OK", run("SET", "other", "x"));
+    }
+
+    @Test
+    void transactionOverTheLimitIsRejectedAsAWhole() {
+        fill();
+        run("MULTI");
+        run("CLEAR", "k0");
+        run("SET", "other", "x");
+        assertEquals(OUT_OF_MEMORY, run("EXEC"));
+
+        assertEquals("OK " + EvictionTest.VALUE, run("GET", "k0"));
+        assertEquals("OK ", run("GET", "other"));
+    }
+
+    /**
+     * Scrive chiavi finché la memoria usata non supera il limite.
+     *
+     * @return Il numero di chiavi scritte.
+     */
+    private int fill() {
+        int written = 0;
+        while (EvictionTest.memory(db).get("used") <= EvictionTest.MAX_MEMORY) {
+            assertEquals("OK", run("SET", "k" + written, EvictionTest.VALUE));
+            written++;
+        }
+        long used = EvictionTest.memory(db).get("used");
+        assertTrue(used <= EvictionTest.MAX_MEMORY + EvictionTest.KEY_SIZE, "used " + used);
+        return written;
+    }
+
+    private String run(String... args) {
+        return processor.process(session, args).toText();
+    }
+}
@@ -0,0 +1,216 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replica del database di questa JVM collegata a un primario avviato in un altro processo:
+ * riceve prima tutto il database e poi le scritture successive.
+ */
+class ReplicationTest {
+    private static final long TIMEOUT_MS = 10_000;
+    private static final long FAILOVER_MS = 1500;
+
+    static {
+        // Vanno impostate prima che Main crei Main.replication.
+        System.setProperty("db.replication.timeoutMs", "1000");
+        System.setProperty("db.replication.failoverMs", String.valueOf(FAILOVER_MS));
+    }
+
+    private final Database db = Database.getInstance();
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("test");
+
+    @TempDir
+    Path dir;
+    private Process primary;
+    private int replicationPort;
+    private Client client;
+
+    @BeforeEach
+    void startPrimary() throws IOException {
+        db.clearAll();
+        int port = freePort();
+        replicationPort = freePort();
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        primary = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                     "-Ddb.port=" + port, "-Ddb.replication.port=" + replicationPort,
+                                     Main.class.getName())
+            .directory(dir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(dir.resolve("primary.log").toFile())
+            .start();
+        client = new Client(port);
+    }
+
+    @AfterEach
+    void stopPrimary() throws IOException {
+        client.close();
+        primary.destroyForcibly();
+        Main.replication.promote();
+    }
+
+    @Test
+    void replicaReceivesDatabaseAndThenWrites() throws Exception {
+        List<String[]> reads = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            client.send("SET s" + i + " value " + i);
+            client.send("SETL l" + i + " a" + i + " b" + i);
+            client.send("SETH h" + i + " name Mario" + i + " balance " + i);
+            reads.add(new String[] { "GET", "s" + i });
+            reads.add(new String[] { "GETL", "l" + i });
+            reads.add(new String[] { "GETH", "h" + i, "balance" });
+        }
+        // Dati della replica precedenti al collegamento: vengono sostituiti da quelli del primario.
+        run("SET", "s0", "stale");
+        run("SET", "replica-only", "x");
+
+        Main.replication.replicaOf("localhost", replicationPort);
+        waitUntil(() -> run("ROLE").startsWith("OK replica localhost " + replicationPort + " up"));
+        waitUntil(() -> matches(reads));
+        assertEquals("OK ", run("GET", "replica-only"));
+        assertEquals("ERR Write commands are not allowed on a replica", run("SET", "s0", "x"));
+
+        // Scritture successive alla copia, comprese transazioni e cancellazioni.
+        client.send("SET s0 changed");
+        client.send("ADDL l0 c0");
+        client.send("MULTI");
+        client.send("INCRBYFLOATH h0 balance 2.5");
+        client.send("CLEAR s1");
+        client.send("EXEC");
+        client.send("CLEARH h1");
+        client.send("SET s1000 new");
+        reads.add(new String[] { "GET", "s1000" });
+        waitUntil(() -> matches(reads));
+        assertEquals("OK changed", run("GET", "s0"));
+        assertEquals("OK a0 b0 c0", run("GETL", "l0"));
+        assertEquals("OK 2.5", run("GETH", "h0", "balance"));
+        assertEquals("OK ", run("GET", "s1"));
+    }
+
+    @Test
+    void keysExpiredOnThePrimaryAreRemovedFromTheReplica() throws Exception {
+        client.send("SET s value");
+        Main.replication.replicaOf("localhost", replicationPort);
+        waitUntil(() -> run("GET", "s").equals("OK value"));
+
+        client.send("PEXPIREAT s " + (System.currentTimeMillis() + 300));
+        waitUntil(() -> run("TTL", "s").equals("OK 1"));
+        // La replica non fa scadere le chiavi da sola: aspetta la cancellazione dal primario.
+        waitUntil(() -> run("GET", "s").equals("OK "));
+        assertEquals("OK ", client.send("GET s"));
+    }
+
+    @Test
+    void replicaBecomesPrimaryWhenPrimaryFails() throws Exception {
+        client.send("SET s value");
+        Main.replication.replicaOf("localhost", replicationPort);
+        waitUntil(() -> run("GET", "s").equals("OK value"));
+
+        long stopped = System.currentTimeMillis();
+        primary.destroyForcibly().waitFor();
+        waitUntil(() -> run("ROLE").startsWith("OK replica localhost " + replicationPort + " down"));
+        waitUntil(() -> run("ROLE").equals("OK primary"));
+        assertTrue(System.currentTimeMillis() - stopped >= FAILOVER_MS);
+        assertEquals("OK value", run("GET", "s"));
+        assertEquals("OK", run("SET", "s", "written"));
+    }
+
+    /**
+     * @return true se la replica risponde alle letture come il primario.
+     */
+    private boolean matches(List<String[]> reads) {
+        try {
+            for (String[] read : reads) {
+                if (!run(read).equals(client.send(String.join(" ", read)))) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < timeout, "timed out");
+            Thread.sleep(20);
+        }
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String run(String... args) {
+        return processor.process(session, args).toText();
+    }
+
+    /**
+     * Connessione di prova al primario con il protocollo testuale.
+     */
+    private static class Client implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream out;
+
+        Client(int port) throws IOException {
+            socket = connect(port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            out = socket.getOutputStream();
+        }
+
+        private static Socket connect(int port) throws IOException {
+            // Il primario impiega un po' ad avviarsi.
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return new Socket("localhost", port);
+                } catch (IOException e) {
+                    if (attempt == 100) {
+                        throw e;
+                    }
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        String send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
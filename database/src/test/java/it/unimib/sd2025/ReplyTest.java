@@ -0,0 +1,93 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Codifica delle risposte: writeText() deve scrivere gli stessi byte di toText(), e textSize()
+ * e binarySize() le dimensioni esatte di quello che scrivono writeText() e writeBinary().
+ */
+class ReplyTest {
+    @Test
+    void writeTextMatchesToText() {
+        for (Reply reply : replies()) {
+            ByteBuffer buffer = ByteBuffer.allocate(reply.textSize() + 16);
+            reply.writeText(buffer);
+
+            byte[] expected = (reply.toText() + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            assertEquals(reply.textSize(), buffer.position(), reply.toText());
+            assertArrayEquals(expected, Arrays.copyOf(buffer.array(), buffer.position()), reply.toText());
+        }
+    }
+
+    @Test
+    void binarySizeIsExact() {
+        for (Reply reply : replies()) {
+            ByteBuffer buffer = ByteBuffer.allocate(reply.binarySize() + 16);
+            reply.writeBinary(buffer);
+
+            assertEquals(reply.binarySize(), buffer.position(), reply.toText());
+        }
+    }
+
+    @Test
+    void binaryValueIsTypeLengthAndBytes() {
+        String value = "x".repeat(300);
+        ByteBuffer buffer = ByteBuffer.allocate(Reply.value(value).binarySize());
+        Reply.value(value).writeBinary(buffer);
+
+        byte[] bytes = buffer.array();
+        assertEquals('$', bytes[0]);
+        // 300 come varint: 7 bit per byte, i meno significativi per primi.
+        assertEquals((byte) (0x80 | (300 & 0x7F)), bytes[1]);
+        assertEquals(300 >>> 7, bytes[2]);
+        assertEquals(value, new String(bytes, 3, bytes.length - 3, StandardCharsets.ISO_8859_1));
+
+        buffer = ByteBuffer.allocate(Reply.value(null).binarySize());
+        Reply.value(null).writeBinary(buffer);
+        assertArrayEquals(new byte[] { '_' }, buffer.array());
+    }
+
+    /**
+     * Risposte di ogni tipo, con valori vuoti e assenti, byte non ASCII e lunghezze
+     * a cavallo dei limiti dei varint (127, 128, 16383, 16384).
+     */
+    private static List<Reply> replies() {
+        StringBuilder bytes = new StringBuilder();
+        for (char c = 0; c < 256; c++) {
+            bytes.append(c);
+        }
+        List<Reply> simple = List.of(
+            Reply.ok(),
+            Reply.status("QUEUED"),
+            Reply.error("Unknown command"),
+            Reply.value("value"),
+            Reply.value(""),
+            Reply.value(null),
+            Reply.value(bytes.toString()),
+            Reply.value("x".repeat(127)),
+            Reply.value("x".repeat(128)),
+            Reply.value("x".repeat(16383)),
+            Reply.value("x".repeat(16384)),
+            Reply.values(List.of()),
+            Reply.values(List.of("a", "b c")),
+            Reply.values(Arrays.asList("a", null, "", "b")),
+            Reply.values(Arrays.asList((String) null)),
+            Reply.lists(List.of()),
+            Reply.lists(List.of(List.of("a", "b"), List.of(), List.of("", "x".repeat(200)))),
+            Reply.event(List.of("message", "channel", "hello world")));
+        List<Reply> all = new ArrayList<>(simple);
+        all.add(Reply.replies(List.of()));
+        all.add(Reply.replies(simple));
+        all.add(Reply.replies(List.of(Reply.replies(simple), Reply.ok())));
+        return all;
+    }
+}
@@ -0,0 +1,139 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Salvataggio e caricamento dello snapshot binario con i valori in memoria come String
+ * (`db.storage=heap`). CompactSnapshotFileTest esegue gli stessi test con `db.storage=compact`.
+ */
+class SnapshotFileTest {
+    private final Database db = Database.getInstance();
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("test");
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+    }
+
+    @Test
+    void loadRestoresSavedDatabase() throws IOException {
+        // Stringhe sufficienti a riempire più di un blocco, con tutti i byte possibili nei valori.
+        StringBuilder bytes = new StringBuilder();
+        for (char c = 0; c < 256; c++) {
+            bytes.append(c);
+        }
+        long deadline = System.currentTimeMillis() + 3_600_000;
+        for (int i = 0; i < 5000; i++) {
+            run("SET", "s" + i, i + bytes.toString());
+            run("SETL", "l" + i, "a" + i, "", "b " + i);
+            run("SETH", "h" + i, "name", "Mario " + i, "balance", i + ".5", "empty", "");
+            if (i % 10 == 0) {
+                run("PEXPIREAT", "s" + i, String.valueOf(deadline + i));
+            }
+        }
+        Map<String, List<String>> before = contents();
+
+        SnapshotFile snapshotFile = new SnapshotFile(db, dir.resolve("dump.sdb"));
+        assertEquals("OK", snapshotFile.save().toText());
+        db.clearAll();
+        assertTrue(contents().isEmpty());
+
+        assertEquals(15_000, snapshotFile.load());
+        assertEquals(before, contents());
+    }
+
+    @Test
+    void loadRejectsCorruptedBlock() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            run("SET", "s" + i, "value" + i);
+        }
+        Path path = dir.resolve("dump.sdb");
+        assertEquals("OK", new SnapshotFile(db, path).save().toText());
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, 100);
+            b.put(0, (byte) (b.get(0) ^ 1));
+            channel.write(b.rewind(), 100);
+        }
+        db.clearAll();
+
+        IOException e = assertThrows(IOException.class, () -> new SnapshotFile(db, path).load());
+        assertTrue(e.getMessage().startsWith("Corrupted snapshot block"), e.getMessage());
+    }
+
+    @Test
+    void snapshotDuringWritesIsAPointInTime() throws Exception {
+        // Ogni transazione sposta un'unità da `a` a `b`: in qualsiasi istante la somma è 0.
+        run("MSET", "a", "0", "b", "0");
+        for (int i = 0; i < 20_000; i++) {
+            run("SET", "filler" + i, "x");
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            Session writerSession = new Session("writer");
+            while (!done.get()) {
+                processor.process(writerSession, new String[] { "MULTI" });
+                processor.process(writerSession, new String[] { "INCRBY", "a", "-1" });
+                processor.process(writerSession, new String[] { "INCRBY", "b", "1" });
+                processor.process(writerSession, new String[] { "EXEC" });
+            }
+        });
+        writer.start();
+        SnapshotFile snapshotFile = new SnapshotFile(db, dir.resolve("dump.sdb"));
+        try {
+            for (int i = 0; i < 5; i++) {
+                assertEquals("OK", snapshotFile.save().toText());
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+        assertFalse(run("GET", "b").equals("OK 0"), "no writes during the snapshots");
+
+        db.clearAll();
+        snapshotFile.load();
+        long a = Long.parseLong(run("GET", "a").substring(3));
+        long b = Long.parseLong(run("GET", "b").substring(3));
+        assertEquals(0, a + b);
+    }
+
+    /**
+     * Contenuto del database, ordinato: ogni chiave con il suo tipo e i suoi valori.
+     */
+    private Map<String, List<String>> contents() {
+        Database.Snapshot snapshot = db.snapshot(() -> { });
+        Map<String, List<String>> contents = new TreeMap<>();
+        snapshot.strings().forEach((key, value) -> contents.put("string " + key, List.of(value)));
+        snapshot.lists().forEach((key, values) -> contents.put("list " + key, Arrays.asList(values)));
+        snapshot.hashes().forEach((key, values) -> contents.put("hash " + key, Arrays.asList(values)));
+        snapshot.expires().forEach((key, deadline) -> contents.put("expire " + key, List.of(deadline.toString())));
+        return contents;
+    }
+
+    private String run(String... args) {
+        return processor.process(session, args).toText();
+    }
+}
@@ -0,0 +1,96 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Server con un virtual thread per connessione: una riga oltre TextProtocol.MAX_LINE_LENGTH
+ * riceve un errore e chiude la connessione, invece di far crescere il buffer senza limite.
+ */
+class SocketHandlerTest {
+    private static ServerSocket server;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread.ofVirtual().start(new SocketHandler(socket));
+                }
+            } catch (IOException e) {
+                // Server chiuso alla fine dei test.
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void lineAtTheLimitIsAccepted() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            BufferedReader in = reader(socket);
+            OutputStream out = socket.getOutputStream();
+            String command = "SET long ";
+            out.write(command.getBytes(StandardCharsets.ISO_8859_1));
+            writeBytes(out, TextProtocol.MAX_LINE_LENGTH - command.length());
+            out.write("\nPING\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            assertEquals("OK", in.readLine());
+            assertEquals("PONG", in.readLine());
+        } finally {
+            Database.getInstance().clearAll();
+        }
+    }
+
+    @Test
+    void lineOverTheLimitClosesTheConnection() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            BufferedReader in = reader(socket);
+            OutputStream out = socket.getOutputStream();
+            // Senza a capo: il server legge tutti i byte, quindi chiude senza dati non letti.
+            writeBytes(out, TextProtocol.MAX_LINE_LENGTH + 1);
+            out.flush();
+
+            assertEquals("ERR Line too long", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        // Se il server non risponde il test fallisce invece di attendere per sempre.
+        socket.setSoTimeout(10_000);
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Scrive il numero indicato di byte 'x' a blocchi, senza creare un array grande quanto la riga.
+     */
+    private static void writeBytes(OutputStream out, int count) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'x');
+        for (int written = 0; written < count; written += chunk.length) {
+            out.write(chunk, 0, Math.min(chunk.length, count - written));
+        }
+    }
+}
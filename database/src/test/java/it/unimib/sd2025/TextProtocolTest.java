@@ -0,0 +1,102 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Divisione delle righe del protocollo testuale in comandi e argomenti (vedi TCP.md).
+ */
+class TextProtocolTest {
+    @Test
+    void knownCommandNameIsTheLowerCaseConstant() {
+        String[] lower = parse("get k");
+        String[] mixed = parse("GeT k");
+        assertArrayEquals(new String[] { "get", "k" }, mixed);
+        assertSame(lower[0], mixed[0]);
+        for (String command : CommandProcessor.COMMANDS) {
+            // GET, CLEAR e CLEARL accettano una sola chiave, CAS e SETEX almeno tre argomenti.
+            String args = Set.of("get", "clear", "clearl").contains(command) ? " a" : " a 1 b";
+            assertSame(command, parse(command.toUpperCase() + args)[0], command);
+        }
+    }
+
+    @Test
+    void unknownCommandKeepsItsNameAndSplitsWords() {
+        assertArrayEquals(new String[] { "NoSuch", "a", "b" }, parse("NoSuch a  b"));
+    }
+
+    @Test
+    void valueIsTheRestOfTheLine() {
+        assertArrayEquals(new String[] { "set", "k", "hello  world" }, parse("  SET  k   hello  world \r"));
+        assertArrayEquals(new String[] { "addl", "k", "a b" }, parse("addl k a b"));
+        assertArrayEquals(new String[] { "cas", "k", "3", "a b" }, parse("cas k  3 a b"));
+        assertArrayEquals(new String[] { "setex", "k", "60", "v" }, parse("setex k 60 v"));
+    }
+
+    @Test
+    void listValuesAreSeparatedBySingleSpaces() {
+        assertArrayEquals(new String[] { "setl", "k", "a", "", "b" }, parse("setl k a  b"));
+        assertArrayEquals(new String[] { "setl", "k", "a" }, parse("setl  k  a"));
+    }
+
+    @Test
+    void wordsAreSeparatedByAnySpaces() {
+        assertArrayEquals(new String[] { "mset", "a", "1", "b", "2" }, parse("mset a 1   b 2"));
+        assertArrayEquals(new String[] { "ping" }, parse("PING"));
+        assertArrayEquals(new String[] { "get" }, parse("get"));
+    }
+
+    @Test
+    void invalidFormatsAreRejected() {
+        assertEquals("Invalid SET command format", invalid("set k"));
+        assertEquals("Invalid CAS command format", invalid("cas k 3"));
+        assertEquals("Invalid SETL command format", invalid("setl k"));
+        assertEquals("Invalid key format", invalid("get a b"));
+    }
+
+    @Test
+    void emptyAndNonPrintableLinesAreIgnored() {
+        assertNull(parse(""));
+        assertNull(parse(" \t\r"));
+        assertNull(parse("set k a\tb"));
+        assertNull(parse("set k café"));
+    }
+
+    @Test
+    void lineIsReadBetweenStartAndEnd() {
+        byte[] bytes = "xxGET kyy".getBytes(StandardCharsets.ISO_8859_1);
+        assertArrayEquals(new String[] { "get", "k" }, TextProtocol.parse(bytes, 2, bytes.length - 2));
+    }
+
+    @Test
+    void quitAndCommandName() {
+        byte[] quit = " Quit \r".getBytes(StandardCharsets.ISO_8859_1);
+        assertTrue(TextProtocol.isQuit(quit, 0, quit.length));
+        byte[] notQuit = "quit now".getBytes(StandardCharsets.ISO_8859_1);
+        assertFalse(TextProtocol.isQuit(notQuit, 0, notQuit.length));
+
+        byte[] known = "  GETL k".getBytes(StandardCharsets.ISO_8859_1);
+        assertSame("getl", TextProtocol.commandName(known, 0, known.length));
+        byte[] unknown = "NoSuch k".getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals("nosuch", TextProtocol.commandName(unknown, 0, unknown.length));
+    }
+
+    private static String[] parse(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        return TextProtocol.parse(bytes, 0, bytes.length);
+    }
+
+    private static String invalid(String line) {
+        return assertThrows(IllegalArgumentException.class, () -> parse(line)).getMessage();
+    }
+}
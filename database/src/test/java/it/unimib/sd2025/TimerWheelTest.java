@@ -0,0 +1,97 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Timer wheel con un orologio simulato.
+ */
+class TimerWheelTest {
+    private static final long TICK_MS = 10;
+    // Non allineato all'inizio di un giro di nessun livello.
+    private static final long START = 1_000_000_007L * TICK_MS + 3;
+
+    @Test
+    void keyIsReturnedAtTheFirstTickAfterItsDeadline() {
+        TimerWheel wheel = new TimerWheel(TICK_MS, START);
+        wheel.add("a", START + 55);
+
+        assertEquals(List.of(), wheel.advance(START + 54, Integer.MAX_VALUE));
+        // La scadenza è arrotondata per eccesso al tick successivo.
+        long tick = Math.ceilDiv(START + 55, TICK_MS) * TICK_MS;
+        assertEquals(List.of(), wheel.advance(tick - 1, Integer.MAX_VALUE));
+        assertEquals(List.of("a"), wheel.advance(tick, Integer.MAX_VALUE));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void pastDeadlineIsReturnedAtTheNextTick() {
+        TimerWheel wheel = new TimerWheel(TICK_MS, START);
+        wheel.add("a", START - 1000);
+
+        assertEquals(List.of("a"), wheel.advance(START + TICK_MS, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void everyDeadlineIsReturnedOnceAndOnTimeAtEveryLevel() {
+        // Tick di 1 ms: le scadenze arrivano oltre l'ultimo livello (64^4 tick), quindi passano
+        // da ogni livello e dall'elenco delle scadenze più lontane.
+        TimerWheel wheel = new TimerWheel(1, START);
+        Random random = new Random(1);
+        long[] scales = { 64, 64 * 64, 64 * 64 * 64, 64L * 64 * 64 * 64, 20_000_000 };
+        Map<String, Long> deadlines = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            long deadline = START + 1 + (long) (random.nextDouble() * scales[i % scales.length]);
+            deadlines.put("k" + i, deadline);
+            wheel.add("k" + i, deadline);
+        }
+        assertEquals(deadlines.size(), wheel.size());
+
+        Map<String, Long> returnedAt = new HashMap<>();
+        long now = START;
+        while (returnedAt.size() < deadlines.size()) {
+            long previous = now;
+            now += 1 + random.nextInt(50_000);
+            for (String key : wheel.advance(now, Integer.MAX_VALUE)) {
+                // Mai prima della scadenza, e nella prima chiamata in cui è passata.
+                long deadline = deadlines.get(key);
+                assertTrue(deadline <= now && deadline > previous, key + " returned late or early");
+                assertEquals(null, returnedAt.put(key, now), key + " returned twice");
+            }
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void advanceStopsAfterMaxKeys() {
+        TimerWheel wheel = new TimerWheel(TICK_MS, START);
+        for (int i = 1; i <= 5; i++) {
+            wheel.add("k" + i, START + i * TICK_MS);
+        }
+
+        long now = START + 10 * TICK_MS;
+        assertEquals(List.of("k1", "k2"), wheel.advance(now, 2));
+        assertEquals(List.of("k3", "k4"), wheel.advance(now, 2));
+        assertEquals(List.of("k5"), wheel.advance(now, 2));
+        assertEquals(List.of(), wheel.advance(now, 2));
+    }
+
+    @Test
+    void changedDeadlineKeepsBothEntries() {
+        // Chi riceve le chiavi controlla la scadenza attuale: la wheel non toglie quella vecchia.
+        TimerWheel wheel = new TimerWheel(TICK_MS, START);
+        wheel.add("a", START + 100);
+        wheel.add("a", START + 1000);
+
+        assertEquals(2, wheel.size());
+        assertEquals(List.of("a"), wheel.advance(START + 200, Integer.MAX_VALUE));
+        assertEquals(List.of("a"), wheel.advance(START + 2000, Integer.MAX_VALUE));
+    }
+}
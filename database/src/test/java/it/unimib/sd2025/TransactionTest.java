@@ -0,0 +1,188 @@
+package it.unimib.sd2025;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Transazioni MULTI/EXEC/DISCARD e WATCH, eseguite con CommandProcessor come se arrivassero da un client.
+ */
+class TransactionTest {
+    private final Database db = Database.getInstance();
+    private final CommandProcessor processor = new CommandProcessor(false, true);
+    private final Session session = new Session("test");
+
+    @BeforeEach
+    void clear() {
+        db.clearAll();
+    }
+
+    @AfterEach
+    void closeTransaction() {
+        if (session.inTransaction()) {
+            run(session, "DISCARD");
+        }
+    }
+
+    @Test
+    void execRunsQueuedCommandsInOrder() {
+        assertEquals("OK", run(session, "MULTI"));
+        assertEquals("QUEUED", run(session, "SET", "a", "1"));
+        assertEquals("QUEUED", run(session, "INCRBY", "a", "5"));
+        assertEquals("QUEUED", run(session, "GET", "a"));
+        // Nulla viene eseguito prima di EXEC.
+        assertEquals("OK ", run(new Session("other"), "GET", "a"));
+
+        assertEquals("OK 3 2 OK 4 OK 6 4 OK 6", run(session, "EXEC"));
+        assertEquals("OK 6", run(session, "GET", "a"));
+        assertEquals("ERR EXEC without MULTI", run(session, "EXEC"));
+    }
+
+    @Test
+    void discardDropsQueuedCommands() {
+        run(session, "MULTI");
+        run(session, "SET", "a", "1");
+        assertEquals("OK", run(session, "DISCARD"));
+
+        assertEquals("OK ", run(session, "GET", "a"));
+        assertEquals("ERR EXEC without MULTI", run(session, "EXEC"));
+    }
+
+    @Test
+    void unknownCommandDiscardsWholeTransaction() {
+        run(session, "MULTI");
+        run(session, "SET", "a", "1");
+        assertTrue(run(session, "NOSUCHCOMMAND", "a").startsWith("ERR "));
+        run(session, "SET", "b", "1");
+
+        assertEquals("ERR Transaction discarded because of previous errors", run(session, "EXEC"));
+        assertEquals("OK ", run(session, "GET", "a"));
+        assertEquals("OK ", run(session, "GET", "b"));
+    }
+
+    @Test
+    void malformedLineDiscardsWholeTransaction() {
+        assertEquals("OK", runLine(session, "MULTI"));
+        assertEquals("QUEUED", runLine(session, "SET a 1"));
+        assertEquals("ERR Invalid SET command format", runLine(session, "SET b"));
+
+        assertEquals("ERR Transaction discarded because of previous errors", runLine(session, "EXEC"));
+        assertEquals("OK ", runLine(session, "GET a"));
+    }
+
+    @Test
+    void watchedKeyWrittenByAnotherClientAbortsExec() {
+        run(session, "SET", "balance", "10");
+        assertEquals("OK", run(session, "WATCH", "balance"));
+        run(session, "MULTI");
+        run(session, "SET", "balance", "5");
+        run(session, "SET", "other", "x");
+
+        run(new Session("other"), "SET", "balance", "20");
+
+        assertEquals("ERR Transaction aborted because a watched key changed", run(session, "EXEC"));
+        assertEquals("OK 20", run(session, "GET", "balance"));
+        assertEquals("OK ", run(session, "GET", "other"));
+    }
+
+    @Test
+    void unchangedWatchedKeyLetsExecRun() {
+        run(session, "SET", "balance", "10");
+        run(session, "WATCH", "balance");
+        run(session, "MULTI");
+        run(session, "SET", "balance", "5");
+
+        assertEquals("OK 1 2 OK", run(session, "EXEC"));
+        assertEquals("OK 5", run(session, "GET", "balance"));
+    }
+
+    @Test
+    void failedConditionSkipsLaterCommandsButKeepsEarlierOnes() {
+        run(session, "SET", "balance", "10");
+        run(session, "MULTI");
+        run(session, "SET", "before", "1");
+        run(session, "DECRBYFLOATIF", "balance", "20");
+        run(session, "SET", "after", "1");
+
+        String reply = run(session, "EXEC");
+        assertTrue(reply.startsWith("OK 3 2 OK "), reply);
+        assertTrue(reply.endsWith(" ERR Not executed because a condition failed"), reply);
+        assertEquals("OK 1", run(session, "GET", "before"));
+        assertEquals("OK 10", run(session, "GET", "balance"));
+        assertEquals("OK ", run(session, "GET", "after"));
+    }
+
+    @Test
+    void writesOfATransactionAreNotifiedTogether() {
+        List<List<String[]>> notified = new ArrayList<>();
+        WriteListener listener = notified::add;
+        db.addWriteListener(listener);
+        try {
+            run(session, "MULTI");
+            run(session, "SET", "a", "1");
+            run(session, "GET", "a");
+            run(session, "SET", "b", "2");
+            run(session, "EXEC");
+        } finally {
+            db.removeWriteListener(listener);
+        }
+
+        assertEquals(1, notified.size());
+        assertEquals(List.of("SET a 1", "SET b 2"), notified.get(0).stream().map(c -> String.join(" ", c)).toList());
+    }
+
+    @Test
+    void otherTransactionsNeverSeeHalfOfATransaction() throws InterruptedException {
+        run(session, "MSET", "a", "0", "b", "0");
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> mismatch = new AtomicReference<>();
+
+        Thread reader = new Thread(() -> {
+            Session readerSession = new Session("reader");
+            while (!done.get() && mismatch.get() == null) {
+                run(readerSession, "MULTI");
+                run(readerSession, "GET", "a");
+                run(readerSession, "GET", "b");
+                // `OK 2 len1 OK x len2 OK y`: i due valori devono essere uguali.
+                String[] parts = run(readerSession, "EXEC").split(" ");
+                if (!parts[4].equals(parts[7])) {
+                    mismatch.set(String.join(" ", parts));
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 1; i <= 2000; i++) {
+                run(session, "MULTI");
+                run(session, "SET", "a", String.valueOf(i));
+                run(session, "SET", "b", String.valueOf(i));
+                run(session, "EXEC");
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+
+        assertNull(mismatch.get());
+        assertEquals("OK 2000 2000", run(session, "MGET", "a", "b"));
+    }
+
+    private String run(Session session, String... args) {
+        return processor.process(session, args).toText();
+    }
+
+    private String runLine(Session session, String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        return processor.process(session, bytes, 0, bytes.length).toText();
+    }
+}
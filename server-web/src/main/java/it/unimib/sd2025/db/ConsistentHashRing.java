@@ -0,0 +1,76 @@
+package it.unimib.sd2025.db;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns every key to one of the shards with consistent hashing.
+ * Every shard is placed on a ring of 64-bit positions in VIRTUAL_NODES points, computed from
+ * its name, and a key belongs to the first point after the position of its hash tag.
+ * Adding a shard only moves to it the keys that fall just before its points, about 1/n of
+ * the keys, taken evenly from the other shards; removing a shard spreads its keys over the others.
+ * The ring depends only on the names of the shards, so every web server and the Rebalancer
+ * route the keys in the same way if they are given the same names.
+ */
+public class ConsistentHashRing {
+    private static final int VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    private final List<String> shards;
+
+    public ConsistentHashRing(List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<String>(shards));
+        for (String shard : shards) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the name of the shard that holds the key
+     */
+    public String getShard(String key) {
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(getHashTag(key)));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * All the keys of a user start with its fiscal code followed by a dot ("fiscalCode",
+     * "fiscalCode.vouchersIds", "fiscalCode.voucherN"), so only the part before the first dot
+     * is hashed and they all end up on the same shard, where they can be changed in one transaction.
+     */
+    public static String getHashTag(String key) {
+        int dot = key.indexOf('.');
+        return dot < 0 ? key : key.substring(0, dot);
+    }
+
+    /**
+     * The first 8 bytes of the MD5 of the text, which are spread evenly on the ring.
+     */
+    private static long hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("MD5 is not available", exception);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package it.unimib.sd2025.db;
+
+/**
+ * Thrown when an operation cannot be reported as done: the database could not be reached,
+ * the connection was lost after the commands were sent (so it is not known whether they
+ * were applied), or the database answered with an unexpected error.
+ */
+public class DatabaseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DatabaseException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,213 @@
+package it.unimib.sd2025.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A persistent connection to the database.
+ * Right after connecting it switches to the binary protocol, where every argument
+ * and every value is sent with its length, so values can contain spaces or any other character.
+ * Every command has exactly one response, so more commands can be sent back to back
+ * (pipelining) and the responses are read in the same order.
+ */
+public class DbConnection implements Closeable {
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final DataOutputStream output;
+    private final DataInputStream input;
+
+    public DbConnection(String address, int port) throws IOException {
+        // The socket is opened through a channel only so that isStale() can read without blocking
+        channel = SocketChannel.open(new InetSocketAddress(address, port));
+        socket = channel.socket();
+        try {
+            socket.setTcpNoDelay(true);
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            // The protocol is chosen with a text command, answered with a text line
+            output.write("PROTOCOL BINARY\n".getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+            StringBuilder response = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException("Connection closed by the database");
+                }
+                response.append((char) c);
+            }
+            if (!response.toString().equals("OK")) {
+                throw new IOException("The database does not support the binary protocol: " + response);
+            }
+        } catch (IOException exception) {
+            // Not close(), which a subclass could override before this object is fully built
+            closeSocket();
+            throw exception;
+        }
+    }
+
+    public DbReply execute(List<String> command) throws IOException {
+        return executeAll(List.of(command)).get(0);
+    }
+
+    /**
+     * Sends all the commands with a single write and then reads one response per command.
+     * Every command is its name followed by its arguments.
+     */
+    public List<DbReply> executeAll(List<List<String>> commands) throws IOException {
+        for (List<String> command : commands) {
+            writeVarint(command.size());
+            for (String argument : command) {
+                byte[] bytes = argument.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                output.write(bytes);
+            }
+        }
+        output.flush();
+
+        List<DbReply> responses = new ArrayList<DbReply>(commands.size());
+        for (int i = 0; i < commands.size(); i++) {
+            responses.add(readReply());
+        }
+        return responses;
+    }
+
+    /**
+     * Runs the commands in a MULTI/EXEC block, so the database applies them atomically.
+     * MULTI, the commands and EXEC are sent with a single write.
+     *
+     * @return the response of every command, or the error returned by EXEC
+     */
+    public List<DbReply> executeTransaction(List<List<String>> commands) throws IOException {
+        List<List<String>> block = new ArrayList<List<String>>(commands.size() + 2);
+        block.add(List.of("MULTI"));
+        block.addAll(commands);
+        block.add(List.of("EXEC"));
+
+        // The responses to MULTI and to the queued commands come first, then EXEC
+        // answers with the list of the responses of the commands
+        List<DbReply> responses = executeAll(block);
+        DbReply execResponse = responses.get(responses.size() - 1);
+        if (execResponse.isError()) {
+            return List.of(execResponse);
+        }
+        return execResponse.getElements();
+    }
+
+    /**
+     * Reads a response: a type byte, then the length of the value or the number
+     * of elements of a list. A missing value is just its type byte.
+     */
+    private DbReply readReply() throws IOException {
+        int type = input.read();
+        if (type == -1) {
+            throw new EOFException("Connection closed by the database");
+        }
+        if (type == '_') {
+            return DbReply.value(null);
+        }
+        int length = readVarint();
+        switch (type) {
+            case '+':
+                return DbReply.status(readString(length));
+            case '-':
+                return DbReply.error(readString(length));
+            case '$':
+                return DbReply.value(readString(length));
+            case '*':
+                List<DbReply> elements = new ArrayList<DbReply>(length);
+                for (int i = 0; i < length; i++) {
+                    elements.add(readReply());
+                }
+                return DbReply.list(elements);
+            default:
+                throw new IOException("Unknown response type: " + type);
+        }
+    }
+
+    /**
+     * Lengths and counts are varints: 7 bits per byte, least significant first,
+     * with the high bit set when another byte follows.
+     */
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid length in the response");
+    }
+
+    private String readString(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /**
+     * Checks, without sending anything, whether an idle connection can still be used.
+     * The database never writes on a connection that is not waiting for a response, so
+     * if there is something to read the connection has been closed by the database
+     * (for example after its idle timeout, or because it restarted) or is out of sync.
+     *
+     * @return true if the connection must be discarded
+     */
+    public boolean isStale() {
+        if (socket.isClosed()) {
+            return true;
+        }
+        try {
+            if (input.available() > 0) {
+                return true;
+            }
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) != 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException exception) {
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException exception) {
+            // The connection is being discarded anyway
+        }
+    }
+}
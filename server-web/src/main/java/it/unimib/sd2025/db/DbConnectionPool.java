@@ -0,0 +1,116 @@
+package it.unimib.sd2025.db;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of persistent connections to one database node.
+ * Resources are created for every HTTP request, so the pools are shared by address
+ * and the same sockets are reused across requests instead of connecting for every command.
+ */
+public class DbConnectionPool {
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+    private static final ConcurrentHashMap<String, DbConnectionPool> pools = new ConcurrentHashMap<>();
+
+    private final String address;
+    private final int port;
+    private final ConcurrentLinkedDeque<DbConnection> idleConnections = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private DbConnectionPool(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    public static DbConnectionPool forAddress(String address, int port) {
+        return pools.computeIfAbsent(address + ":" + port, k -> new DbConnectionPool(address, port));
+    }
+
+    /**
+     * Runs the commands pipelined on a pooled connection.
+     */
+    public List<DbReply> executeAll(List<List<String>> commands) throws IOException {
+        return execute(connection -> connection.executeAll(commands));
+    }
+
+    /**
+     * Runs the commands in a MULTI/EXEC block on a pooled connection.
+     */
+    public List<DbReply> executeTransaction(List<List<String>> commands) throws IOException {
+        return execute(connection -> connection.executeTransaction(commands));
+    }
+
+    /**
+     * Runs an operation on a pooled connection, or on a new one if there are none.
+     * Idle connections closed by the database (for example after its idle timeout) are
+     * found and discarded before anything is sent on them. Once the commands have been
+     * sent the operation is never retried: if the connection is lost before the responses
+     * arrive the commands may have been applied, and sending them again would apply
+     * writes such as ADDL or INCRBYH twice.
+     *
+     * @throws NotSentException if no connection could be opened, so nothing was sent
+     * @throws IOException      if the connection was lost after sending the commands
+     */
+    private <T> T execute(ConnectionOperation<T> operation) throws IOException {
+        DbConnection connection = takeIdleConnection();
+        if (connection == null) {
+            try {
+                connection = new DbConnection(address, port);
+            } catch (IOException exception) {
+                throw new NotSentException(exception);
+            }
+        }
+
+        try {
+            T result = operation.run(connection);
+            release(connection);
+            return result;
+        } catch (IOException exception) {
+            connection.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * @return an idle connection that can still be used, or null if there are none
+     */
+    private DbConnection takeIdleConnection() {
+        DbConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (!connection.isStale()) {
+                return connection;
+            }
+            connection.close();
+        }
+        return null;
+    }
+
+    private void release(DbConnection connection) {
+        if (connection.isClosed() || idleCount.incrementAndGet() > MAX_IDLE_CONNECTIONS) {
+            idleCount.decrementAndGet();
+            connection.close();
+            return;
+        }
+        idleConnections.offerFirst(connection);
+    }
+
+    /**
+     * Failure that happened before any command was sent, so the commands can safely
+     * be sent again, also to another node.
+     */
+    public static class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    private interface ConnectionOperation<T> {
+        T run(DbConnection connection) throws IOException;
+    }
+}
@@ -0,0 +1,74 @@
+package it.unimib.sd2025.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response of the database in the binary protocol.
+ * It is either a status (for example "OK"), an error, a single value (null if missing)
+ * or a list of other responses.
+ */
+public class DbReply {
+    private final boolean error;
+    private final String value;
+    private final List<DbReply> elements;
+
+    private DbReply(boolean error, String value, List<DbReply> elements) {
+        this.error = error;
+        this.value = value;
+        this.elements = elements;
+    }
+
+    static DbReply status(String status) {
+        return new DbReply(false, status, null);
+    }
+
+    static DbReply error(String message) {
+        return new DbReply(true, message, null);
+    }
+
+    static DbReply value(String value) {
+        return new DbReply(false, value, null);
+    }
+
+    static DbReply list(List<DbReply> elements) {
+        return new DbReply(false, null, elements);
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    /**
+     * @return the value, the status or the error message
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the responses of a list, for example the results of a transaction
+     */
+    public List<DbReply> getElements() {
+        return elements;
+    }
+
+    /**
+     * @return the values of a list (GETL, MGET), with null for the missing ones
+     */
+    public List<String> getValues() {
+        List<String> values = new ArrayList<String>(elements.size());
+        for (DbReply element : elements) {
+            values.add(element.value);
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        if (elements != null) {
+            return elements.toString();
+        }
+        return error ? "ERR " + value : String.valueOf(value);
+    }
+}
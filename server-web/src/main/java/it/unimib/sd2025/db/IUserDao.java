@@ -5,11 +5,42 @@ import java.util.List;
 import it.unimib.sd2025.models.User;
 import it.unimib.sd2025.models.Voucher;
 
+/**
+ * The methods that change data throw DatabaseException when the database cannot be reached,
+ * or when it is not known whether the change has been applied.
+ */
 public interface IUserDao {
     public List<User> getAllUsers();
-    public void addUser(User user);
+    /**
+     * @return the user with the given fiscal code, or null if there is no such user
+     */
+    public User getUser(String fiscalCode);
+    public boolean containsUser(String fiscalCode);
+    /**
+     * @return false if there is already a user with the same fiscal code,
+     *         in which case nothing is saved
+     */
+    public boolean addUser(User user);
     public void modifyUser(User user);
-    public void addVoucherToUser(Voucher voucher, User user);
-    public void modifyUserVoucher(Voucher voucher, User user);
-    public void deleteUserVoucher(Voucher voucher, User user);
+    /**
+     * Assigns a new ID to the voucher, then saves it and subtracts its value from the
+     * balance of the user as a single atomic operation.
+     *
+     * @return false if the balance of the user is lower than the value of the voucher,
+     *         in which case nothing is saved
+     */
+    public boolean addVoucherToUser(Voucher voucher, String fiscalCode);
+    /**
+     * Saves the voucher only if it has not changed since it was read.
+     *
+     * @return false if the voucher has changed (or has been deleted) since it was read
+     */
+    public boolean modifyUserVoucher(Voucher voucher, User user);
+    /**
+     * Deletes a voucher of the user and gives its value back to the user,
+     * as a single atomic operation, only if the voucher has not changed since it was read.
+     *
+     * @return false if the voucher has changed (or has been deleted) since it was read
+     */
+    public boolean deleteUserVoucher(Voucher voucher, User user);
 }
\ No newline at end of file
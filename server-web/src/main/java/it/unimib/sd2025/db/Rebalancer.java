@@ -0,0 +1,206 @@
+package it.unimib.sd2025.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Moves every user to the shard where the ring puts it, after shards have been added or removed.
+ * It is given the primaries of the new shards, with the same names used by the web servers
+ * (-Ddb.shards), and optionally the primaries of the shards that are being removed:
+ *
+ *     java -cp target/classes it.unimib.sd2025.db.Rebalancer localhost:3030,localhost:3040 [localhost:3050]
+ *
+ * The users of every shard are read from its list "fiscalCodes". A user that belongs to another
+ * shard is copied there in one transaction, then deleted from its old shard in a transaction
+ * that is executed only if none of its keys has changed in the meantime (WATCH);
+ * otherwise it is copied again, and after MAX_ATTEMPTS it is left where it is until the next run.
+ * The web servers can keep using the old shards while the
+ * users are moved: once they use the new ones, the tool should be run again to move
+ * the users created in between.
+ */
+public class Rebalancer {
+    private static final int MAX_ATTEMPTS = 10;
+
+    private final ConsistentHashRing ring;
+    private final Map<String, DbConnection> connections = new LinkedHashMap<String, DbConnection>();
+    private int skipped;
+
+    public Rebalancer(List<String> shards) {
+        this.ring = new ConsistentHashRing(shards);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: Rebalancer host:port,host:port,... [removed host:port,...]");
+            System.exit(1);
+        }
+        List<String> shards = Arrays.asList(args[0].trim().split("\\s*,\\s*"));
+        List<String> sources = new ArrayList<String>(shards);
+        if (args.length > 1) {
+            sources.addAll(Arrays.asList(args[1].trim().split("\\s*,\\s*")));
+        }
+
+        Rebalancer rebalancer = new Rebalancer(shards);
+        int moved = 0;
+        try {
+            for (String source : sources) {
+                moved += rebalancer.rebalance(source);
+            }
+        } catch (IOException exception) {
+            System.err.println("Rebalancing failed: " + exception.getMessage());
+            System.exit(1);
+        } finally {
+            rebalancer.close();
+        }
+        System.out.println("Moved " + moved + " users");
+        if (rebalancer.skipped > 0) {
+            System.err.println(rebalancer.skipped + " users kept changing and have not been moved, run again to move them");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Moves the users of a shard that belong to other shards.
+     *
+     * @return the number of users moved
+     */
+    public int rebalance(String source) throws IOException {
+        List<String> fiscalCodes = getConnection(source).execute(List.of("GETL", "fiscalCodes")).getValues();
+        Map<String, Integer> moved = new TreeMap<String, Integer>();
+        for (String fiscalCode : fiscalCodes) {
+            String target = ring.getShard(fiscalCode);
+            if (!target.equals(source)) {
+                if (move(fiscalCode, source, target)) {
+                    moved.merge(target, 1, Integer::sum);
+                } else {
+                    System.err.println(source + ": " + fiscalCode + " keeps changing, it has not been moved");
+                    skipped++;
+                }
+            }
+        }
+
+        int total = 0;
+        for (Map.Entry<String, Integer> entry : moved.entrySet()) {
+            System.out.println(source + ": moved " + entry.getValue() + " users to " + entry.getKey());
+            total += entry.getValue();
+        }
+        System.out.println(source + ": kept " + (fiscalCodes.size() - total) + " users");
+        return total;
+    }
+
+    /**
+     * Copies the user with its vouchers to the target shard and deletes it from the source.
+     *
+     * @return false if the user has changed during every attempt, so it is still on the source
+     */
+    private boolean move(String fiscalCode, String source, String target) throws IOException {
+        DbConnection from = getConnection(source);
+        DbConnection to = getConnection(target);
+        String vouchersIdsKey = fiscalCode + ".vouchersIds";
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            // The keys are watched before reading them, so the values that are copied
+            // are the ones that the deletion checks
+            from.execute(List.of("WATCH", fiscalCode, vouchersIdsKey));
+            List<DbReply> user = from.executeAll(List.of(
+                List.of("GETALLH", fiscalCode),
+                List.of("GETL", vouchersIdsKey)
+            ));
+            List<String> userFields = user.get(0).getValues();
+            List<String> vouchersIds = user.get(1).getValues();
+            List<String> voucherKeys = new ArrayList<String>();
+            for (String voucherId : vouchersIds) {
+                voucherKeys.add(String.format("%s.voucher%s", fiscalCode, voucherId));
+            }
+            List<DbReply> vouchers = new ArrayList<DbReply>();
+            if (!voucherKeys.isEmpty()) {
+                from.execute(getCommand("WATCH", voucherKeys));
+                vouchers = from.execute(getCommand("MGETALLH", voucherKeys)).getElements();
+            }
+
+            // The copy replaces whatever the target has for the user, for example
+            // a copy left by a previous run that could not delete the source
+            List<List<String>> copy = new ArrayList<List<String>>();
+            copy.add(List.of("CLEARH", fiscalCode));
+            if (!userFields.isEmpty()) {
+                copy.add(getCommand("SETH", fiscalCode, userFields));
+            }
+            copy.add(List.of("CLEARL", vouchersIdsKey));
+            if (!vouchersIds.isEmpty()) {
+                copy.add(getCommand("SETL", vouchersIdsKey, vouchersIds));
+            }
+            for (int i = 0; i < voucherKeys.size(); i++) {
+                copy.add(List.of("CLEARH", voucherKeys.get(i)));
+                if (!vouchers.get(i).getValues().isEmpty()) {
+                    copy.add(getCommand("SETH", voucherKeys.get(i), vouchers.get(i).getValues()));
+                }
+            }
+            if (!Boolean.parseBoolean(to.execute(List.of("CONTAINSL", "fiscalCodes", fiscalCode)).getValue())) {
+                copy.add(List.of("ADDL", "fiscalCodes", fiscalCode));
+            }
+            checkResponses(target, to.executeTransaction(copy));
+
+            List<List<String>> delete = new ArrayList<List<String>>();
+            delete.add(List.of("CLEARH", fiscalCode));
+            delete.add(List.of("CLEARL", vouchersIdsKey));
+            for (String voucherKey : voucherKeys) {
+                delete.add(List.of("CLEARH", voucherKey));
+            }
+            delete.add(List.of("REMOVEL", "fiscalCodes", fiscalCode));
+            List<DbReply> responses = from.executeTransaction(delete);
+            if (responses.size() != 1 || !responses.get(0).isError()) {
+                checkResponses(source, responses);
+                return true;
+            }
+            // A watched key has changed: the user is copied again
+            if (attempt == MAX_ATTEMPTS - 1) {
+                // The copy is removed, the user stays only on the source
+                checkResponses(target, to.executeTransaction(delete));
+            }
+        }
+        return false;
+    }
+
+    private void checkResponses(String node, List<DbReply> responses) throws IOException {
+        for (DbReply response : responses) {
+            if (response == null || response.isError()) {
+                throw new IOException("Error from " + node + ": " + (response == null ? "no response" : response.getValue()));
+            }
+        }
+    }
+
+    private List<String> getCommand(String name, List<String> arguments) {
+        List<String> command = new ArrayList<String>(arguments.size() + 1);
+        command.add(name);
+        command.addAll(arguments);
+        return command;
+    }
+
+    private List<String> getCommand(String name, String key, List<String> arguments) {
+        List<String> command = new ArrayList<String>(arguments.size() + 2);
+        command.add(name);
+        command.add(key);
+        command.addAll(arguments);
+        return command;
+    }
+
+    private DbConnection getConnection(String node) throws IOException {
+        DbConnection connection = connections.get(node);
+        if (connection == null) {
+            int separator = node.lastIndexOf(':');
+            connection = new DbConnection(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+            connections.put(node, connection);
+        }
+        return connection;
+    }
+
+    private void close() {
+        for (DbConnection connection : connections.values()) {
+            connection.close();
+        }
+    }
+}
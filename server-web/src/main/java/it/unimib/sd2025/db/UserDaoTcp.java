@@ -1,207 +1,537 @@
 package it.unimib.sd2025.db;
 import it.unimib.sd2025.models.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every user is a hash with the fiscal code as key, every voucher a hash with key
+ * "fiscalCode.voucherID", so a user or a voucher is read or written with a single command.
+ * The list "fiscalCode.vouchersIds" holds the IDs of the vouchers of the user.
+ *
+ * The users can be split over more shards (see ConsistentHashRing): all the keys of a user
+ * are on the shard of its fiscal code, and every shard has its own list "fiscalCodes"
+ * with the users it holds, so every operation on a user uses a single shard.
+ */
 public class UserDaoTcp implements IUserDao {
-    private String address;
-    private int port;
+    /**
+     * Attempts to seed the voucher counter of a user that does not have it
+     * before giving up because the user keeps changing.
+     */
+    private static final int MAX_SEED_ATTEMPTS = 10;
+    /**
+     * Commands that only read, so they can be sent again to another node of the shard
+     * if the connection is lost before their responses arrive.
+     */
+    private static final Set<String> READ_COMMANDS = Set.of(
+        "GET", "GETL", "CONTAINSL", "GETH", "GETALLH", "MGETALLH", "MGETL", "VERSION"
+    );
+
+    private final ConsistentHashRing ring;
+    private final Map<String, Shard> shards = new HashMap<String, Shard>();
 
-    private final char SPACE_DELIMITER = '~';
-    
     public UserDaoTcp(String address, int port) {
-        this.address = address;
-        this.port = port;
+        this(List.of(address + ":" + port));
+    }
+
+    /**
+     * Spreads the commands over database nodes with the same data, for example the read
+     * replicas and the primary: every batch of commands goes to the next node in turn,
+     * or to the following ones if that node cannot be reached.
+     * Replicas reject the commands that change data, so with more nodes only reads can be used.
+     *
+     * @param nodes the nodes as "host:port"
+     */
+    public UserDaoTcp(List<String> nodes) {
+        this(singleShard(nodes));
+    }
+
+    /**
+     * Splits the users over more shards, each with one or more nodes with the same data.
+     * The names of the shards decide where the keys are, so the same shard must always
+     * have the same name, for example the address of its primary.
+     *
+     * @param shards the nodes of every shard as "host:port", by name of the shard
+     */
+    public UserDaoTcp(Map<String, List<String>> shards) {
+        for (Map.Entry<String, List<String>> shard : shards.entrySet()) {
+            this.shards.put(shard.getKey(), new Shard(shard.getValue()));
+        }
+        ring = new ConsistentHashRing(new ArrayList<String>(shards.keySet()));
+    }
+
+    private static Map<String, List<String>> singleShard(List<String> nodes) {
+        Map<String, List<String>> shards = new LinkedHashMap<String, List<String>>();
+        shards.put(nodes.get(0).trim(), nodes);
+        return shards;
     }
 
     public List<User> getAllUsers() {
-        List<String> fiscalCodes = getListFromDB("fiscalCodes");
         List<User> users = new ArrayList<User>();
+        for (String shard : ring.getShards()) {
+            users.addAll(getAllUsers(shards.get(shard)));
+        }
+        return users;
+    }
+
+    private List<User> getAllUsers(Shard shard) {
+        List<String> fiscalCodes = getListFromDB(shard, "fiscalCodes");
+        List<User> users = new ArrayList<User>();
+        if (fiscalCodes.isEmpty()) {
+            return users;
+        }
 
+        // The users and the voucher IDs of every user are requested
+        // with two multi-key commands in a single round trip
+        List<String> vouchersIdsKeys = new ArrayList<String>();
         for (String fiscalCode : fiscalCodes) {
-            String userName = getUserPropertyFromDB(fiscalCode, "name");
-            String userSurname = getUserPropertyFromDB(fiscalCode, "surname");
-            String userEmail = getUserPropertyFromDB(fiscalCode, "email");
-            String userBalanceRaw = getUserPropertyFromDB(fiscalCode, "balance");
-            List<Voucher> userVouchers = getUserVouchers(fiscalCode);
-
-            User user = new User();
-            user.setFiscalCode(fiscalCode);
-            user.setName(userName);
-            user.setSurname(userSurname);
-            user.setEmail(userEmail);
-            user.setBalance(Float.parseFloat(userBalanceRaw.replace(",", ".")));
-            user.setVouchers(userVouchers);
+            vouchersIdsKeys.add(String.format("%s.vouchersIds", fiscalCode));
+        }
+        List<DbReply> responses = executeDBCommands(shard, List.of(
+            getCommand("MGETALLH", fiscalCodes),
+            getCommand("MGETL", vouchersIdsKeys)
+        ));
+        List<DbReply> userHashes = responses.get(0).getElements();
+        List<List<String>> vouchersIds = new ArrayList<List<String>>();
+        for (DbReply list : responses.get(1).getElements()) {
+            vouchersIds.add(list.getValues());
+        }
+        List<List<Voucher>> vouchers = getVouchersFromDB(shard, fiscalCodes, vouchersIds);
 
-            users.add(user);
+        for (int i = 0; i < fiscalCodes.size(); i++) {
+            users.add(getUserFromFields(fiscalCodes.get(i), getFields(userHashes.get(i)), vouchers.get(i)));
         }
 
         return users;
     }
 
-    public void addUser(User user) {
-        String balanceRaw = String.valueOf(user.getBalance());
+    public User getUser(String fiscalCode) {
+        // Membership in the list of fiscal codes is checked by the database without
+        // reading the list, together with the user and its voucher IDs in a single round trip
+        Shard shard = getShard(fiscalCode);
+        List<DbReply> responses = executeDBCommands(shard, List.of(
+            List.of("CONTAINSL", "fiscalCodes", fiscalCode),
+            List.of("GETALLH", fiscalCode),
+            List.of("GETL", String.format("%s.vouchersIds", fiscalCode))
+        ));
+        if (!Boolean.parseBoolean(responses.get(0).getValue())) {
+            return null;
+        }
+
+        List<Voucher> vouchers = getVouchersFromDB(shard, List.of(fiscalCode), List.of(responses.get(2).getValues())).get(0);
+        return getUserFromFields(fiscalCode, getFields(responses.get(1)), vouchers);
+    }
+
+    public boolean containsUser(String fiscalCode) {
+        return Boolean.parseBoolean(executeDBCommand(getShard(fiscalCode),
+            List.of("CONTAINSL", "fiscalCodes", fiscalCode)).getValue());
+    }
+
+    private User getUserFromFields(String fiscalCode, Map<String, String> userFields, List<Voucher> vouchers) {
+        String userName = userFields.get("name");
+        String userSurname = userFields.get("surname");
+        String userEmail = userFields.get("email");
+        String userBalanceRaw = userFields.get("balance");
+
+        User user = new User();
+        user.setFiscalCode(fiscalCode);
+        user.setName(userName);
+        user.setSurname(userSurname);
+        user.setEmail(userEmail);
+        user.setBalance(Float.parseFloat(userBalanceRaw.replace(",", ".")));
+        user.setVouchers(vouchers);
+        return user;
+    }
 
-        addItemToListInDB("fiscalCodes", user.getFiscalCode());
-        saveUserPropertyInDB(user.getFiscalCode(), "name", user.getName());
-        saveUserPropertyInDB(user.getFiscalCode(), "surname", user.getSurname());
-        saveUserPropertyInDB(user.getFiscalCode(), "email", user.getEmail());
-        saveUserPropertyInDB(user.getFiscalCode(), "balance", balanceRaw);
+    public boolean addUser(User user) {
+        // CASH with version 0 creates the user only if the key does not exist, and if it
+        // fails the rest of the transaction is not executed. The fiscal code is added to
+        // the list after the user data, so whoever reads the list always finds the data of the user.
+        List<DbReply> responses = executeDBTransaction(getShard(user.getFiscalCode()), List.of(
+            getSaveUserCommand(user),
+            List.of("ADDL", "fiscalCodes", user.getFiscalCode())
+        ));
+        if (isVersionMismatch(responses.get(0))) {
+            return false;
+        }
+        checkResponse(responses.get(0));
+        return true;
     }
 
     public List<Voucher> getUserVouchers(String fiscalCode) {
-        List<Voucher> vouchers = new ArrayList<Voucher>();
-
-        List<String> vouchersIds = getListFromDB(String.format("%s.vouchersIds", fiscalCode));
-
-        for (String voucherIdRaw : vouchersIds) {
-            int voucherId = Integer.parseInt(voucherIdRaw);
-
-            String voucherValueRaw = getVoucherPropertyFromDB(fiscalCode, voucherId, "value");
-            String voucherConsumedRaw = getVoucherPropertyFromDB(fiscalCode, voucherId, "consumed");
-            String voucherType = getVoucherPropertyFromDB(fiscalCode, voucherId, "type");
-            String voucherCreatedDateTime = getVoucherPropertyFromDB(fiscalCode, voucherId, "createdDateTime");
-            String voucherConsumedDateTime = getVoucherPropertyFromDB(fiscalCode, voucherId, "consumedDateTime");
-
-            Voucher voucher = new Voucher();
-            voucher.setId(voucherId);
-            voucher.setValue(Float.parseFloat(voucherValueRaw.replace(",", ".")));
-            voucher.setConsumed(Boolean.parseBoolean(voucherConsumedRaw));
-            voucher.setType(voucherType);
-            
-            voucher.setCreatedDateTime(voucherCreatedDateTime);
-            if (voucherConsumedDateTime != null) {
-                voucher.setConsumedDateTime(voucherConsumedDateTime);
+        Shard shard = getShard(fiscalCode);
+        List<String> vouchersIds = getListFromDB(shard, String.format("%s.vouchersIds", fiscalCode));
+        return getVouchersFromDB(shard, List.of(fiscalCode), List.of(vouchersIds)).get(0);
+    }
+
+    /**
+     * Reads the vouchers of more users with a single MGETALLH, together with their versions.
+     * 
+     * @param shard the shard that holds the users
+     * @param fiscalCodes the fiscal codes of the users
+     * @param vouchersIds for every user, the IDs of its vouchers
+     * @return for every user, the list of its vouchers
+     */
+    private List<List<Voucher>> getVouchersFromDB(Shard shard, List<String> fiscalCodes,
+                                                  List<List<String>> vouchersIds) {
+        List<String> voucherKeys = new ArrayList<String>();
+        for (int i = 0; i < fiscalCodes.size(); i++) {
+            for (String voucherIdRaw : vouchersIds.get(i)) {
+                voucherKeys.add(getVoucherKey(fiscalCodes.get(i), voucherIdRaw));
+            }
+        }
+
+        List<DbReply> voucherHashes = new ArrayList<DbReply>();
+        List<String> voucherVersions = new ArrayList<String>();
+        if (!voucherKeys.isEmpty()) {
+            // The versions are read before the vouchers: if a voucher changes in between
+            // its version is older than its data, so saving it fails and it is read again
+            List<DbReply> responses = executeDBCommands(shard, List.of(
+                getCommand("VERSION", voucherKeys),
+                getCommand("MGETALLH", voucherKeys)
+            ));
+            voucherVersions = responses.get(0).getValues();
+            voucherHashes = responses.get(1).getElements();
+        }
+
+        List<List<Voucher>> vouchers = new ArrayList<List<Voucher>>();
+        int offset = 0;
+        for (List<String> userVouchersIds : vouchersIds) {
+            List<Voucher> userVouchers = new ArrayList<Voucher>();
+
+            for (String voucherIdRaw : userVouchersIds) {
+                long voucherVersion = Long.parseLong(voucherVersions.get(offset));
+                Map<String, String> voucherFields = getFields(voucherHashes.get(offset++));
+                if (voucherVersion == 0) {
+                    // Deleted after its ID was read
+                    continue;
+                }
+                String voucherValueRaw = voucherFields.get("value");
+                String voucherConsumedRaw = voucherFields.get("consumed");
+                String voucherType = voucherFields.get("type");
+                String voucherCreatedDateTime = voucherFields.get("createdDateTime");
+                String voucherConsumedDateTime = voucherFields.get("consumedDateTime");
+
+                Voucher voucher = new Voucher();
+                voucher.setId(Integer.parseInt(voucherIdRaw));
+                voucher.setVersion(voucherVersion);
+                voucher.setValue(Float.parseFloat(voucherValueRaw.replace(",", ".")));
+                voucher.setConsumed(Boolean.parseBoolean(voucherConsumedRaw));
+                voucher.setType(voucherType);
+
+                voucher.setCreatedDateTime(voucherCreatedDateTime);
+                if (voucherConsumedDateTime != null) {
+                    voucher.setConsumedDateTime(voucherConsumedDateTime);
+                }
+
+                userVouchers.add(voucher);
             }
 
-            vouchers.add(voucher);
+            vouchers.add(userVouchers);
         }
 
         return vouchers;
     }
 
     public void modifyUser(User user) {
-        saveUserPropertyInDB(user.getFiscalCode(), "name", user.getName());
-        saveUserPropertyInDB(user.getFiscalCode(), "surname", user.getSurname());
-        saveUserPropertyInDB(user.getFiscalCode(), "email", user.getEmail());
-        saveUserPropertyInDB(user.getFiscalCode(), "balance", ""+user.getBalance());
+        // The balance is changed only by the database, when vouchers are added or deleted
+        checkResponse(executeDBCommand(getShard(user.getFiscalCode()), List.of("SETH", user.getFiscalCode(),
+            "name", user.getName(),
+            "surname", user.getSurname(),
+            "email", user.getEmail()
+        )));
     }
 
-    public void addVoucherToUser(Voucher voucher, User user) {
-        // First I add the new voucher ID to the voucherIds list of the user
-        executeDBCommand(String.format("ADDL %s.vouchersIds %d", user.getFiscalCode(), voucher.getId()));
+    public boolean addVoucherToUser(Voucher voucher, String fiscalCode) {
+        // The ID comes from a counter in the hash of the user, so two concurrent requests
+        // never get the same ID and the IDs of deleted vouchers are not reused
+        Shard shard = getShard(fiscalCode);
+        seedVoucherCounter(shard, fiscalCode);
+        DbReply counter = checkResponse(executeDBCommand(shard,
+            List.of("INCRBYH", fiscalCode, "nextVoucherId", "1")));
+        int voucherId = Integer.parseInt(counter.getValue()) - 1;
+        voucher.setId(voucherId);
+
+        // The balance is decreased by the database only if it stays non-negative. It is the
+        // first command of the transaction, so if it fails the others are not executed.
+        // The ID is added after the data, so whoever reads the list of IDs
+        // always finds the data of the voucher.
+        List<DbReply> responses = executeDBTransaction(shard, List.of(
+            List.of("DECRBYFLOATIFH", fiscalCode, "balance", String.valueOf(voucher.getValue())),
+            getSaveVoucherCommand(fiscalCode, voucher),
+            List.of("ADDL", String.format("%s.vouchersIds", fiscalCode), String.valueOf(voucherId))
+        ));
+        DbReply response = responses.get(0);
+        if (response != null && response.isError() && response.getValue().startsWith("Insufficient value")) {
+            return false;
+        }
+        checkResponse(response);
+        return true;
+    }
 
-        // Then I save the voucher data in the DB
-        String fiscalCode = user.getFiscalCode();
-        int voucherId = voucher.getId();
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "type", voucher.getType());
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "value", String.valueOf(voucher.getValue()));
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "consumed", Boolean.toString(voucher.isConsumed()));
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "createdDateTime", voucher.getCreatedDateTime());
+    /**
+     * Users saved before the voucher counter existed do not have it, and INCRBYH would
+     * start it from 0, giving IDs that their vouchers already use. The counter of such a user
+     * is set to the highest ID of its vouchers plus one, only if the user has not changed
+     * since its vouchers were read: a concurrent request that adds a voucher changes the user,
+     * so it either finds the counter already set or makes this attempt fail and read again.
+     */
+    private void seedVoucherCounter(Shard shard, String fiscalCode) {
+        for (int attempt = 0; attempt < MAX_SEED_ATTEMPTS; attempt++) {
+            // The version is read before the IDs: if they change in between, the CASH fails
+            List<DbReply> responses = executeDBCommands(shard, List.of(
+                List.of("GETH", fiscalCode, "nextVoucherId"),
+                List.of("VERSION", fiscalCode),
+                List.of("GETL", String.format("%s.vouchersIds", fiscalCode))
+            ));
+            for (DbReply response : responses) {
+                checkResponse(response);
+            }
+            if (responses.get(0).getValue() != null) {
+                return;
+            }
+            String version = responses.get(1).getValues().get(0);
+            if (version.equals("0")) {
+                // The CASH would create a hash with only the counter
+                throw new DatabaseException("The user " + fiscalCode + " does not exist");
+            }
+
+            int nextVoucherId = 0;
+            for (String voucherId : responses.get(2).getValues()) {
+                nextVoucherId = Math.max(nextVoucherId, Integer.parseInt(voucherId) + 1);
+            }
+            DbReply response = executeDBCommand(shard, List.of("CASH", fiscalCode, version,
+                "nextVoucherId", String.valueOf(nextVoucherId)));
+            if (!isVersionMismatch(response)) {
+                checkResponse(response);
+                return;
+            }
+        }
+        throw new DatabaseException("The voucher counter of " + fiscalCode + " could not be set");
     }
 
-    public void modifyUserVoucher(Voucher voucher, User user) {
-        String fiscalCode = user.getFiscalCode();
-        int voucherId = voucher.getId();
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "type", voucher.getType());
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "value", String.valueOf(voucher.getValue()));
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "consumed", Boolean.toString(voucher.isConsumed()));
-        saveVoucherPropertyInDB(fiscalCode, voucherId, "createdDateTime", voucher.getCreatedDateTime());
-        if (voucher.getConsumedDateTime() != null) {
-            saveVoucherPropertyInDB(fiscalCode, voucherId, "consumedDateTime", voucher.getConsumedDateTime());
+    public boolean modifyUserVoucher(Voucher voucher, User user) {
+        DbReply response = executeDBCommand(getShard(user.getFiscalCode()),
+            getCompareAndSetVoucherCommand(user.getFiscalCode(), voucher));
+        if (isVersionMismatch(response)) {
+            return false;
         }
+        checkResponse(response);
+        voucher.setVersion(Long.parseLong(response.getValue()));
+        return true;
     }
 
-    public void deleteUserVoucher(Voucher voucher, User user) {
+    public boolean deleteUserVoucher(Voucher voucher, User user) {
         String fiscalCode = user.getFiscalCode();
         int voucherId = voucher.getId();
 
-        String deleteIdCommand = String.format("REMOVEL %s.vouchersIds %d", fiscalCode, voucherId);
-        String deleteTypeCommand = String.format("CLEAR %s.voucher%d.type", fiscalCode, voucherId);
-        String deleteValueCommand = String.format("CLEAR %s.voucher%d.value", fiscalCode, voucherId);
-        String deleteConsumedCommand = String.format("CLEAR %s.voucher%d.consumed", fiscalCode, voucherId);
-        String deleteCreatedDateTimeCommand = String.format("CLEAR %s.voucher%d.createdDateTime", fiscalCode, voucherId);
-        String deleteConsumedDateTimeCommand = String.format("CLEAR %s.voucher%d.consumedDateTime", fiscalCode, voucherId);
+        // The first command saves the voucher as it was read, only if it has not changed:
+        // if it fails, the voucher is not deleted and its value is not given back
+        List<DbReply> responses = executeDBTransaction(getShard(fiscalCode), List.of(
+            getCompareAndSetVoucherCommand(fiscalCode, voucher),
+            List.of("REMOVEL", String.format("%s.vouchersIds", fiscalCode), String.valueOf(voucherId)),
+            List.of("CLEARH", getVoucherKey(fiscalCode, String.valueOf(voucherId))),
+            List.of("INCRBYFLOATH", fiscalCode, "balance", String.valueOf(voucher.getValue()))
+        ));
+        if (isVersionMismatch(responses.get(0))) {
+            return false;
+        }
+        checkResponse(responses.get(0));
+        return true;
+    }
 
-        executeDBCommand(deleteIdCommand);
-        executeDBCommand(deleteTypeCommand);
-        executeDBCommand(deleteValueCommand);
-        executeDBCommand(deleteConsumedCommand);
-        executeDBCommand(deleteCreatedDateTimeCommand);
-        executeDBCommand(deleteConsumedDateTimeCommand);
+    /**
+     * Builds a command with the given name followed by the arguments.
+     */
+    private List<String> getCommand(String name, List<String> arguments) {
+        List<String> command = new ArrayList<String>(arguments.size() + 1);
+        command.add(name);
+        command.addAll(arguments);
+        return command;
     }
 
-    private String getUserPropertyFromDB(String fiscalCode, String property) {
-        String serverResponseWithOk = executeDBCommand(String.format("GET %s.%s", fiscalCode, property));
-        if (serverResponseWithOk.equals("OK ")) {
-            return null;
+    private String getVoucherKey(String fiscalCode, String voucherId) {
+        return String.format("%s.voucher%s", fiscalCode, voucherId);
+    }
+
+    /**
+     * Converts the fields and values of a hash, as returned by the database, into a map.
+     */
+    private Map<String, String> getFields(DbReply hash) {
+        List<String> fieldsAndValues = hash.getValues();
+        Map<String, String> fields = new HashMap<String, String>();
+        for (int i = 0; i + 1 < fieldsAndValues.size(); i += 2) {
+            fields.put(fieldsAndValues.get(i), fieldsAndValues.get(i + 1));
         }
-        String serverResponseWithoutSpaces = serverResponseWithOk.split(" ")[1];
+        return fields;
+    }
 
-        // Before returning the response, I replace every space delimiter with a space character
-        String serverResponse = serverResponseWithoutSpaces.replace(SPACE_DELIMITER, ' ');
-        return serverResponse;
+    /**
+     * @return true if the response is the error of a CAS or CASH on a key that has changed
+     */
+    private boolean isVersionMismatch(DbReply response) {
+        return response != null && response.isError() && "Version mismatch".equals(response.getValue());
     }
 
-    private String getVoucherPropertyFromDB(String fiscalCode, int voucherId, String property) {
-        String serverResponse = executeDBCommand(String.format("GET %s.voucher%d.%s", fiscalCode, voucherId, property));
-        if (serverResponse.equals("OK ")) {
-            return null;            
+    /**
+     * A null response means that the database could not be reached, or that the connection
+     * was lost before the response arrived, so the commands may or may not have been applied:
+     * like an unexpected error, it is never taken as a success.
+     *
+     * @return the response, if it is not null nor an error
+     */
+    private DbReply checkResponse(DbReply response) {
+        if (response == null) {
+            throw new DatabaseException("The database could not be reached");
         }
+        if (response.isError()) {
+            throw new DatabaseException("The database answered with an error: " + response.getValue());
+        }
+        return response;
+    }
 
-        String serverResponseWithoutSpaces = serverResponse.split(" ")[1];
-        String serverResponseWithSpaces = serverResponseWithoutSpaces.replace(SPACE_DELIMITER, ' ');
-        return serverResponseWithSpaces;
+    private List<String> getSaveUserCommand(User user) {
+        return List.of("CASH", user.getFiscalCode(), "0",
+            "name", user.getName(),
+            "surname", user.getSurname(),
+            "email", user.getEmail(),
+            "balance", String.valueOf(user.getBalance()),
+            "nextVoucherId", "0"
+        );
     }
 
-    private void saveVoucherPropertyInDB(String fiscalCode, int voucherId, String property, String value) {
-        // Before running the command, I convert each space with the special character
-        String valueWithoutSpaces = value.replace(' ', SPACE_DELIMITER);
+    private List<String> getSaveVoucherCommand(String fiscalCode, Voucher voucher) {
+        List<String> arguments = new ArrayList<String>();
+        arguments.add(getVoucherKey(fiscalCode, String.valueOf(voucher.getId())));
+        arguments.addAll(getVoucherFields(voucher));
+        return getCommand("SETH", arguments);
+    }
 
-        executeDBCommand(String.format("SET %s.voucher%d.%s %s", fiscalCode, voucherId, property, valueWithoutSpaces));
+    /**
+     * Builds a CASH that saves the voucher only if it still has the version it had when it was read.
+     */
+    private List<String> getCompareAndSetVoucherCommand(String fiscalCode, Voucher voucher) {
+        List<String> arguments = new ArrayList<String>();
+        arguments.add(getVoucherKey(fiscalCode, String.valueOf(voucher.getId())));
+        arguments.add(String.valueOf(voucher.getVersion()));
+        arguments.addAll(getVoucherFields(voucher));
+        return getCommand("CASH", arguments);
+    }
+
+    /**
+     * Returns the fields and values of the voucher, alternated.
+     */
+    private List<String> getVoucherFields(Voucher voucher) {
+        List<String> fields = new ArrayList<String>();
+        fields.addAll(List.of("type", voucher.getType()));
+        fields.addAll(List.of("value", String.valueOf(voucher.getValue())));
+        fields.addAll(List.of("consumed", Boolean.toString(voucher.isConsumed())));
+        fields.addAll(List.of("createdDateTime", voucher.getCreatedDateTime()));
+        if (voucher.getConsumedDateTime() != null) {
+            fields.addAll(List.of("consumedDateTime", voucher.getConsumedDateTime()));
+        }
+        return fields;
     }
 
-    private void saveUserPropertyInDB(String fiscalCode, String property, String value) {
-        // Before running the command, I have to replace spaces with a special character because
-        String valueWithoutSpaces = value.replace(' ', SPACE_DELIMITER);
-        executeDBCommand(String.format("SET %s.%s %s", fiscalCode, property, valueWithoutSpaces));
+    private Shard getShard(String fiscalCode) {
+        return shards.get(ring.getShard(fiscalCode));
     }
 
-    private void addItemToListInDB(String listName, String item) {
-        executeDBCommand(String.format("ADDL %s %s", listName, item));
+    private List<String> getListFromDB(Shard shard, String listName) {
+        return executeDBCommand(shard, List.of("GETL", listName)).getValues();
     }
 
-    private List<String> getListFromDB(String listName) {
-        String listRaw = executeDBCommand(String.format("GETL %s", listName));
-        String[] listWithOk = listRaw.split(" ");
-        String[] list = Arrays.copyOfRange(listWithOk, 1, listWithOk.length);
-        return Arrays.asList(list);
+    private DbReply executeDBCommand(Shard shard, List<String> command) {
+        return executeDBCommands(shard, List.of(command)).get(0);
     }
 
-    private String executeDBCommand(String command) {
-        String response = null;
-        
-        try (Socket socket = new Socket(address, port)) {
-            PrintWriter socketOutputStream = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader socketInputStream = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    /**
+     * Sends the commands pipelined on a pooled connection and returns one response per command.
+     * If the database cannot be reached every response is null.
+     */
+    private List<DbReply> executeDBCommands(Shard shard, List<List<String>> commands) {
+        if (commands.isEmpty()) {
+            return List.of();
+        }
 
-            socketOutputStream.println(command);
+        boolean readOnly = true;
+        for (List<String> command : commands) {
+            readOnly &= READ_COMMANDS.contains(command.get(0));
+        }
 
-            String temp;
-            while ((temp = socketInputStream.readLine()) != null) {
-                response = temp;
-            }
+        try {
+            return shard.onAnyNode(pool -> pool.executeAll(commands), readOnly);
         } catch (IOException exception) {
             exception.printStackTrace();
         }
 
-        return response;
+        return Arrays.asList(new DbReply[commands.size()]);
+    }
+
+    /**
+     * Sends the commands as a single MULTI/EXEC transaction, so they are applied atomically.
+     */
+    private List<DbReply> executeDBTransaction(Shard shard, List<List<String>> commands) {
+        try {
+            return shard.onAnyNode(pool -> pool.executeTransaction(commands), false);
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+
+        return Arrays.asList(new DbReply[commands.size()]);
+    }
+
+    /**
+     * The nodes of a shard, which all have the same data.
+     */
+    private static class Shard {
+        private final List<DbConnectionPool> connectionPools = new ArrayList<DbConnectionPool>();
+        private final AtomicInteger nextPool = new AtomicInteger();
+
+        Shard(List<String> nodes) {
+            for (String node : nodes) {
+                int separator = node.trim().lastIndexOf(':');
+                connectionPools.add(DbConnectionPool.forAddress(node.trim().substring(0, separator),
+                                                                Integer.parseInt(node.trim().substring(separator + 1))));
+            }
+        }
+
+        /**
+         * Runs the operation on the next node in turn, trying the others if it cannot be reached.
+         * An operation that writes is tried on another node only if nothing was sent
+         * (see DbConnectionPool.NotSentException): if the connection was lost after sending it,
+         * it may have been applied, so the error is thrown instead of applying it twice.
+         *
+         * @param readOnly true if the operation only reads, so it can always be sent again
+         * @throws IOException the error of the last node tried
+         */
+        List<DbReply> onAnyNode(PoolOperation operation, boolean readOnly) throws IOException {
+            int first = Math.floorMod(nextPool.getAndIncrement(), connectionPools.size());
+            IOException error = null;
+            for (int i = 0; i < connectionPools.size(); i++) {
+                try {
+                    return operation.run(connectionPools.get((first + i) % connectionPools.size()));
+                } catch (DbConnectionPool.NotSentException exception) {
+                    error = exception;
+                } catch (IOException exception) {
+                    if (!readOnly) {
+                        throw exception;
+                    }
+                    error = exception;
+                }
+            }
+            throw error;
+        }
+    }
+
+    private interface PoolOperation {
+        List<DbReply> run(DbConnectionPool pool) throws IOException;
     }
 }
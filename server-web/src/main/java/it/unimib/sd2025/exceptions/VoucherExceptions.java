@@ -19,6 +19,15 @@ public class VoucherExceptions {
         }
     }
 
+    public static class VoucherConflictException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public VoucherConflictException(String fiscalCode, int voucherId) {
+            super(String.format("Voucher '%d' of user '%s' keeps being changed by other requests, try again",
+                                voucherId, fiscalCode));
+        }
+    }
+
     public static class InvalidDeleteVoucherException extends Exception {
         public InvalidDeleteVoucherException(String fiscalCode, int voucherId) {
             super(String.format("Cannot delete voucher '%d' from user '%s'",
@@ -1,5 +1,7 @@
 package it.unimib.sd2025.models;
 
+import jakarta.json.bind.annotation.JsonbTransient;
+
 public class Voucher {
     private int id;
     private String type;
@@ -7,6 +9,9 @@ public class Voucher {
     private String createdDateTime;
     private String consumedDateTime;
     private boolean consumed;
+    // Version of the voucher in the database when it was read, used to save it
+    // only if nobody changed it in the meantime. It is not part of the JSON.
+    private long version;
 
     public int getId() {
         return id;
@@ -65,6 +70,16 @@ public class Voucher {
         this.consumed = consumed;
     }
 
+    @JsonbTransient
+    public long getVersion() {
+        return version;
+    }
+
+    @JsonbTransient
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public boolean equals(Voucher anotherVoucher) {
         boolean idEquals = (id == anotherVoucher.getId());
         boolean valueEquals = (value == anotherVoucher.getValue());
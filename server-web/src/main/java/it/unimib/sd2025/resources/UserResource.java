@@ -2,7 +2,11 @@ package it.unimib.sd2025.resources;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import it.unimib.sd2025.models.User;
 import it.unimib.sd2025.models.Voucher;
@@ -11,6 +15,7 @@ import it.unimib.sd2025.exceptions.UserExceptions.*;
 import it.unimib.sd2025.exceptions.VoucherExceptions.InvalidDeleteVoucherException;
 import it.unimib.sd2025.exceptions.VoucherExceptions.InvalidModifyVoucherException;
 import it.unimib.sd2025.exceptions.VoucherExceptions.InvalidVoucherException;
+import it.unimib.sd2025.exceptions.VoucherExceptions.VoucherConflictException;
 import it.unimib.sd2025.exceptions.VoucherExceptions.VoucherNotFoundException;
 import it.unimib.sd2025.db.UserDaoTcp;
 
@@ -27,11 +32,43 @@ import jakarta.ws.rs.core.Response;
 
 @Path("users")
 public class UserResource {
+    // The primary database receives all the commands that change data. Requests that only read
+    // are spread over the read replicas, if any, and the primary.
+    // Both can be set with system properties, e.g. -Ddb.replicas=localhost:3031,localhost:3032
+    private static final String DB_PRIMARY = System.getProperty("db.primary", "localhost:3030");
+    private static final String DB_REPLICAS = System.getProperty("db.replicas", "");
+    // The users can be split over more shards, each with its primary followed by its replicas,
+    // e.g. -Ddb.shards=localhost:3030/localhost:3031,localhost:3040. It replaces the two above.
+    private static final String DB_SHARDS = System.getProperty("db.shards", "");
+
+    // The shards are named after their primary, so the keys are routed in the same way
+    // by the DAO for writes and the one for reads
+    private static final Map<String, List<String>> WRITE_NODES = new LinkedHashMap<String, List<String>>();
+    private static final Map<String, List<String>> READ_NODES = new LinkedHashMap<String, List<String>>();
+
+    static {
+        List<String> shards = DB_SHARDS.isBlank()
+            ? List.of(DB_PRIMARY + (DB_REPLICAS.isBlank() ? "" : "/" + DB_REPLICAS.replace(',', '/')))
+            : Arrays.asList(DB_SHARDS.split(","));
+        for (String shard : shards) {
+            List<String> nodes = Arrays.asList(shard.trim().split("/"));
+            String primary = nodes.get(0).trim();
+            List<String> readNodes = new ArrayList<String>(nodes.subList(1, nodes.size()));
+            readNodes.add(primary);
+            WRITE_NODES.put(primary, List.of(primary));
+            READ_NODES.put(primary, readNodes);
+        }
+    }
+
+    // Resources are created for every request, the DAOs only once
+    private static final UserService USER_SERVICE = WRITE_NODES.equals(READ_NODES)
+        ? new UserService(new UserDaoTcp(WRITE_NODES))
+        : new UserService(new UserDaoTcp(WRITE_NODES), new UserDaoTcp(READ_NODES));
+
     private UserService userService;
 
     public UserResource() {
-        UserDaoTcp database = new UserDaoTcp("localhost", 3030);
-        userService = new UserService(database);
+        userService = USER_SERVICE;
     }
 
     @GET
@@ -154,6 +191,8 @@ public class UserResource {
             return getNotFoundResponse(e.getMessage());
         } catch (InvalidVoucherException | InvalidModifyVoucherException e) {
             return getBadRequestResponse(e.getMessage());
+        } catch (VoucherConflictException e) {
+            return getConflictResponse(e.getMessage());
         } catch (Exception e) {
             String errorMessage = "Internal Server Error while modifying user voucher";
             return getServerErrorResponse(errorMessage);
@@ -171,6 +210,8 @@ public class UserResource {
             return getNotFoundResponse(e.getMessage());
         } catch (InvalidDeleteVoucherException e) {
             return getBadRequestResponse(e.getMessage());
+        } catch (VoucherConflictException e) {
+            return getConflictResponse(e.getMessage());
         }
     }
 
@@ -190,6 +231,14 @@ public class UserResource {
                        .build();
     }
 
+    private Response getConflictResponse(String errorMessage) {
+        String responseBody = String.format("{\"error\": \"%s\"}", errorMessage);
+        return Response.status(Response.Status.CONFLICT)
+                       .entity(responseBody)
+                       .type(MediaType.APPLICATION_JSON)
+                       .build();
+    }
+
     private Response getServerErrorResponse(String errorMessage) {
         String responseBody = String.format("{\"error\": \"%s\"}", errorMessage);
         return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Date;
@@ -18,25 +19,37 @@ import it.unimib.sd2025.exceptions.UserExceptions.UserNotFoundException;
 import it.unimib.sd2025.exceptions.VoucherExceptions.InvalidModifyVoucherException;
 import it.unimib.sd2025.exceptions.VoucherExceptions.InvalidVoucherException;
 import it.unimib.sd2025.exceptions.VoucherExceptions.InvalidDeleteVoucherException;
+import it.unimib.sd2025.exceptions.VoucherExceptions.VoucherConflictException;
 import it.unimib.sd2025.exceptions.VoucherExceptions.VoucherNotFoundException;
 import it.unimib.sd2025.exceptions.UserExceptions.InvalidModifyUserException;
 
 public class UserService {
     private IUserDao userDao;
+    // Used by the requests that only read, so they can be served by the read replicas.
+    // Requests that change data read from userDao, so they never start from stale data.
+    private IUserDao readDao;
     private final float START_BALANCE = 500;
+    // A voucher saved with CAS is read and checked again at most this many times if other
+    // requests keep changing it, waiting a random time up to BASE_BACKOFF_MS * 2^attempt
+    // before every new attempt so that concurrent requests stop colliding
+    private final int MAX_CAS_ATTEMPTS = 5;
+    private final long BASE_BACKOFF_MS = 5;
     private final String[] voucherTypes = {"cinema", "musica", "concerti", "eventi culturali", 
                                            "libri", "musei", "strumenti musicali", "teatro",
                                            "danza"};
 
     public UserService(IUserDao userDao) {
+        this(userDao, userDao);
+    }
+
+    public UserService(IUserDao userDao, IUserDao readDao) {
         this.userDao = userDao;
+        this.readDao = readDao;
     }
 
     public List<User> getAllUsers() {
-        synchronized (userDao) {
-            List<User> users = userDao.getAllUsers();
-            return users;
-        }
+        List<User> users = readDao.getAllUsers();
+        return users;
     }
 
     public void addUser(User user) throws InvalidUserException {
@@ -53,22 +66,17 @@ public class UserService {
 
         user.setBalance(START_BALANCE);
 
-        synchronized (userDao) {
-            if (!isFiscalCodeUnique(user.getFiscalCode())) {
-                throw new InvalidUserException(String.format("fiscal code '%s' is already used",
-                                                             user.getFiscalCode()));
-            }
-            userDao.addUser(user);
+        // The database creates the user only if the fiscal code is not used yet,
+        // so the check holds even with concurrent requests on different web servers
+        if (!userDao.addUser(user)) {
+            throw new InvalidUserException(String.format("fiscal code '%s' is already used",
+                                                         user.getFiscalCode()));
         }
     }
 
     public User getUserByFiscalCode(String fiscalCode)
                 throws UserNotFoundException {
-        User user = null;
-
-        synchronized (userDao) {
-            user = findUserByFiscalCode(fiscalCode);
-        }
+        User user = readDao.getUser(fiscalCode);
 
         if (user != null) {
             return user;
@@ -79,14 +87,10 @@ public class UserService {
 
     public User modifyUserByFiscalCode(String fiscalCode, User user)
                 throws InvalidModifyUserException, UserNotFoundException {
-        User userToModify = null;
+        User userToModify = findUserByFiscalCode(fiscalCode);
 
-        synchronized (userDao) {
-            userToModify = findUserByFiscalCode(fiscalCode);
-
-            if (userToModify == null) {
-                throw new UserNotFoundException(fiscalCode);
-            }
+        if (userToModify == null) {
+            throw new UserNotFoundException(fiscalCode);
         }
 
         Map<String, String> fieldsToCheck = new HashMap<String, String>();
@@ -124,22 +128,16 @@ public class UserService {
             }
         }
 
-        synchronized (userDao) {
-            userToModify.setName(user.getName());
-            userToModify.setSurname(user.getSurname());
-            userToModify.setEmail(user.getEmail());
+        userToModify.setName(user.getName());
+        userToModify.setSurname(user.getSurname());
+        userToModify.setEmail(user.getEmail());
 
-            userDao.modifyUser(userToModify);
-        }
+        userDao.modifyUser(userToModify);
         return userToModify;
     }
 
     public List<Voucher> getUserVouchers(String fiscalCode) throws UserNotFoundException {
-        User user;
-
-        synchronized (userDao) {
-            user = findUserByFiscalCode(fiscalCode);
-        }
+        User user = readDao.getUser(fiscalCode);
 
         if (user == null) {
             throw new UserNotFoundException(fiscalCode);
@@ -150,11 +148,7 @@ public class UserService {
 
     public Voucher addVoucherToUser(String fiscalCode, Voucher voucher)
                    throws UserNotFoundException, InvalidVoucherException {
-        User user = null;
-
-        synchronized (userDao) {
-            user = findUserByFiscalCode(fiscalCode);
-        }
+        User user = findUserByFiscalCode(fiscalCode);
 
         if (user == null) {
             throw new UserNotFoundException(fiscalCode);
@@ -174,48 +168,27 @@ public class UserService {
             throw new InvalidVoucherException("Voucher must not be consumed when created");
         }
 
-        if (voucher.getValue() <= user.getBalance()) {
-            int maxVoucherId = -1;
-            synchronized (userDao) {
-                for (Voucher v : user.getVouchers()) {
-                    if (v.getId() > maxVoucherId) {
-                        maxVoucherId = v.getId();
-                    }
-                }
-
-                voucher.setId(maxVoucherId + 1);
-
-                user.setBalance(user.getBalance() - voucher.getValue());
-                userDao.addVoucherToUser(voucher, user);
-
-                userDao.modifyUser(user);
-            }
-
-            return voucher;
-        } else {
+        // The balance read above may be stale: the database checks it again
+        // when it subtracts the value of the voucher
+        if (voucher.getValue() > user.getBalance() || !userDao.addVoucherToUser(voucher, fiscalCode)) {
             String exceptionMessage = "Voucher value is greather than the user balance (%f > %f)";
             throw new InvalidVoucherException(String.format(exceptionMessage,
                                                             voucher.getValue(),
                                                             user.getBalance()));
         }
+
+        return voucher;
     }
 
     public Voucher getUserVoucherById(String fiscalCode, int voucherId)
                    throws UserNotFoundException, VoucherNotFoundException {
-        User user;
-
-        synchronized (userDao) {
-            user = findUserByFiscalCode(fiscalCode);
-        }
+        User user = readDao.getUser(fiscalCode);
 
         if (user == null) {
             throw new UserNotFoundException(fiscalCode);
         }
 
-        Voucher voucher;
-        synchronized (userDao) {
-            voucher = findUserVoucherById(user, voucherId);
-        }
+        Voucher voucher = findUserVoucherById(user, voucherId);
 
         if (voucher == null) {
             throw new VoucherNotFoundException(fiscalCode, voucherId);
@@ -226,7 +199,7 @@ public class UserService {
 
     public Voucher modifyUserVoucherById(String fiscalCode, int voucherId, Voucher newVoucher)
                    throws UserNotFoundException, VoucherNotFoundException, InvalidVoucherException,
-                   InvalidModifyVoucherException {
+                   InvalidModifyVoucherException, VoucherConflictException {
 
         List<String> invalidAttributes = getInvalidVoucherAttributes(newVoucher);
         if (invalidAttributes.size() > 0) {
@@ -235,7 +208,14 @@ public class UserService {
             throw new InvalidVoucherException(errorMessage);
         }
 
-        synchronized (userDao) {
+        // The voucher is saved only if nobody changed it after it was read, otherwise
+        // it is read and checked again: no lock is needed, even across web servers.
+        // It is read from the primary (see findUserByFiscalCode): a replica may be behind
+        // it, and then the CAS would fail at every attempt.
+        for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                backOff(attempt);
+            }
             User user = findUserByFiscalCode(fiscalCode);
 
             if (user == null) {
@@ -264,16 +244,22 @@ public class UserService {
                 originalVoucher.setConsumedDateTime(newVoucher.getConsumedDateTime());
             }
 
-            userDao.modifyUserVoucher(originalVoucher, user);
-
-            return originalVoucher;
+            if (userDao.modifyUserVoucher(originalVoucher, user)) {
+                return originalVoucher;
+            }
         }
+        throw new VoucherConflictException(fiscalCode, voucherId);
     }
 
     public void deleteUserVoucherById(String fiscalCode, int voucherId)
                 throws UserNotFoundException, VoucherNotFoundException,
-                       InvalidDeleteVoucherException {
-        synchronized (userDao) {
+                       InvalidDeleteVoucherException, VoucherConflictException {
+        // As in modifyUserVoucherById, the voucher is deleted only if it has not
+        // changed after it was read (for example because it has been consumed)
+        for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                backOff(attempt);
+            }
             User user = findUserByFiscalCode(fiscalCode);
             if (user == null) {
                 throw new UserNotFoundException(fiscalCode);
@@ -288,14 +274,21 @@ public class UserService {
             if (voucher.isConsumed()) {
                 throw new InvalidDeleteVoucherException(fiscalCode, voucherId);
             }
-            userDao.deleteUserVoucher(voucher, user);
-
-            user.getVouchers().remove(voucher);
-            user.setBalance(START_BALANCE);
-            for (Voucher v : user.getVouchers()) {
-                user.setBalance(user.getBalance() - v.getValue());
+            if (userDao.deleteUserVoucher(voucher, user)) {
+                return;
             }
-            userDao.modifyUser(user);
+        }
+        throw new VoucherConflictException(fiscalCode, voucherId);
+    }
+
+    /**
+     * Waits a random time, up to BASE_BACKOFF_MS * 2^attempt, before the given attempt.
+     */
+    private void backOff(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong((BASE_BACKOFF_MS << attempt) + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -339,21 +332,14 @@ public class UserService {
     }
 
     public boolean isFiscalCodeUnique(String fiscalCode) {
-        for (User user : userDao.getAllUsers()) {
-            if (user.getFiscalCode().equals(fiscalCode)) {
-                return false;
-            }
-        }
-        return true;
+        return !userDao.containsUser(fiscalCode);
     }
 
+    /**
+     * Reads the user from the primary, for the requests that change it.
+     */
     private User findUserByFiscalCode(String fiscalCode) {
-        for (User user : userDao.getAllUsers()) {
-            if (user.getFiscalCode().equals(fiscalCode)) {
-                return user;
-            }
-        }
-        return null;
+        return userDao.getUser(fiscalCode);
     }
 
     private List<String> getInvalidVoucherAttributes(Voucher voucher) {
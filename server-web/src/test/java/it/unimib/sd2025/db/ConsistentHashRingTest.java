@@ -0,0 +1,112 @@
+package it.unimib.sd2025.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Which keys move between shards when the list of shards changes.
+ */
+class ConsistentHashRingTest {
+    private static final int KEYS = 20000;
+    private static final List<String> SHARDS = List.of("localhost:3030", "localhost:3040", "localhost:3050");
+
+    @Test
+    void keysAreSpreadEvenly() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS);
+        for (String key : keys()) {
+            counts.merge(ring.getShard(key), 1, Integer::sum);
+        }
+
+        assertEquals(SHARDS.size(), counts.size());
+        for (int count : counts.values()) {
+            assertTrue(Math.abs(count - KEYS / SHARDS.size()) < KEYS / 10, counts.toString());
+        }
+    }
+
+    @Test
+    void addedShardTakesAboutItsShareOnly() {
+        List<String> grown = new ArrayList<String>(SHARDS);
+        grown.add("localhost:3060");
+        Map<String, String> before = assign(new ConsistentHashRing(SHARDS));
+        Map<String, String> after = assign(new ConsistentHashRing(grown));
+
+        int moved = 0;
+        for (String key : keys()) {
+            if (!before.get(key).equals(after.get(key))) {
+                // Keys only move to the new shard, never between the old ones.
+                assertEquals("localhost:3060", after.get(key), key);
+                moved++;
+            }
+        }
+        assertTrue(Math.abs(moved - KEYS / grown.size()) < KEYS / 20, moved + " keys moved");
+    }
+
+    @Test
+    void removedShardKeysAreTheOnlyOnesToMove() {
+        Map<String, String> before = assign(new ConsistentHashRing(SHARDS));
+        Map<String, String> after = assign(new ConsistentHashRing(SHARDS.subList(0, 2)));
+
+        Map<String, Integer> received = new HashMap<String, Integer>();
+        for (String key : keys()) {
+            if (before.get(key).equals("localhost:3050")) {
+                received.merge(after.get(key), 1, Integer::sum);
+            } else {
+                assertEquals(before.get(key), after.get(key), key);
+            }
+        }
+        // The keys of the removed shard are spread over both of the others.
+        assertEquals(2, received.size(), received.toString());
+    }
+
+    @Test
+    void ringDependsOnlyOnShardNames() {
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS);
+        ConsistentHashRing reversed = new ConsistentHashRing(SHARDS.reversed());
+        for (String key : keys()) {
+            assertEquals(ring.getShard(key), reversed.getShard(key), key);
+        }
+    }
+
+    @Test
+    void keysOfAUserShareTheirShard() {
+        ConsistentHashRing ring = new ConsistentHashRing(SHARDS);
+        for (String fiscalCode : keys().subList(0, 100)) {
+            String shard = ring.getShard(fiscalCode);
+            assertEquals(shard, ring.getShard(fiscalCode + ".vouchersIds"));
+            assertEquals(shard, ring.getShard(fiscalCode + ".voucher7"));
+        }
+    }
+
+    @Test
+    void ringNeedsAShard() {
+        assertThrows(IllegalArgumentException.class, () -> new ConsistentHashRing(List.of()));
+    }
+
+    private static Map<String, String> assign(ConsistentHashRing ring) {
+        Map<String, String> shards = new HashMap<String, String>();
+        for (String key : keys()) {
+            shards.put(key, ring.getShard(key));
+        }
+        return shards;
+    }
+
+    /**
+     * Keys shaped like fiscal codes.
+     */
+    private static List<String> keys() {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(String.format("RSSMRA%02dA01F%03dX", i % 100, i / 100));
+        }
+        return keys;
+    }
+}